@@ -0,0 +1,337 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * Upgrades stored records off the login request path.
+ * <p>
+ * After a successful verification of a record below policy, the caller
+ * submits a task that computes the upgraded record. Tasks run on a single
+ * low-priority background thread. Results are queued and written back in
+ * JDBC batches, either when a batch is full or on the next periodic flush.
+ * <p>
+ * The update statement takes three parameters: the new record, the username
+ * and the old record, i.e.
+ * <code>UPDATE Users SET password=? WHERE username=? AND password=?</code>.
+ * The old record in the WHERE clause ensures a concurrent password change is
+ * never overwritten.
+ * <p>
+ * Work is bounded: submissions beyond the queue size are dropped, and a user
+ * already waiting for an upgrade is not queued twice. Dropped or failed
+ * upgrades are simply retried on the user's next login.
+ * <p>
+ * Both background threads exit when there is no work and are started again
+ * on the next submission. {@link #close()} stops them for good, i.e. on
+ * application undeploy.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class RecordRehasher {
+
+	private static final Logger LOG = Logger.getLogger(RecordRehasher.class.getName());
+
+	/** Time after which the idle upgrade thread exits. */
+	private static final long IDLE_MILLIS = 60000;
+
+	protected final String dsJndiName;
+
+	protected final String updateQuery;
+
+	protected final int batchSize;
+
+	protected final long flushMillis;
+
+	private final ThreadPoolExecutor executor;
+
+	private final BlockingQueue<String[]> pending;
+
+	/** Usernames submitted and not yet written or dropped. */
+	private final Set<String> inFlight = new HashSet<String>();
+
+	/** Periodic flush thread while upgrades are in flight; guarded by inFlight. */
+	private Thread flusher = null;
+
+	/** Set by close(); guarded by inFlight. */
+	private boolean closed = false;
+
+	private final AtomicLong submitted = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong updated = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dsJndiName JNDI name of the DataSource to update
+	 * @param updateQuery Update statement, parameters new record, username, old record
+	 * @param queueSize Maximum number of queued upgrades
+	 * @param batchSize Upgrades per JDBC batch
+	 * @param flushMillis Interval of the periodic flush of partial batches
+	 */
+	public RecordRehasher(String dsJndiName, String updateQuery, int queueSize, int batchSize,
+			long flushMillis) {
+		if (queueSize <= 0 || batchSize <= 0 || flushMillis <= 0) {
+			throw new IllegalArgumentException("Queue size, batch size and interval must be positive.");
+		}
+		this.dsJndiName = dsJndiName;
+		this.updateQuery = updateQuery;
+		this.batchSize = batchSize;
+		this.flushMillis = flushMillis;
+		this.pending = new ArrayBlockingQueue<String[]>(queueSize);
+		this.executor = new ThreadPoolExecutor(1, 1, IDLE_MILLIS, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "PBKDF2-rehash");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queue an upgrade. Returns immediately.
+	 *
+	 * @param username User whose record is upgraded
+	 * @param oldRecord Record as currently stored
+	 * @param upgrade Computes the new record. It holds the clear-text password
+	 *            until run, so the queue size should stay small.
+	 * @return <code>true</code> if queued, <code>false</code> if dropped
+	 *         because the queue is full or the user is already queued.
+	 */
+	public boolean submit(final String username, final String oldRecord, final Callable<String> upgrade) {
+		synchronized (inFlight) {
+			if (closed || !inFlight.add(username)) {
+				return false;
+			}
+			if (flusher == null) {
+				flusher = new Thread(new Flusher(), "PBKDF2-rehash-flush");
+				flusher.setDaemon(true);
+				flusher.start();
+			}
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					String newRecord = null;
+					try {
+						newRecord = upgrade.call();
+					} catch (Exception e) {
+						LOG.log(Level.WARNING, "Record upgrade failed", e);
+					}
+					if (newRecord == null || !pending.offer(new String[] { newRecord, username, oldRecord })) {
+						done(username, false);
+						return;
+					}
+					if (pending.size() >= batchSize) {
+						flush();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			done(username, false);
+			return false;
+		}
+		submitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Write queued upgrades now, in batches.
+	 *
+	 * @return Number of records updated
+	 */
+	public synchronized int flush() {
+		int count = 0;
+		List<String[]> batch = new ArrayList<String[]>(batchSize);
+		while (pending.drainTo(batch, batchSize) > 0) {
+			count += write(batch);
+			batch.clear();
+		}
+		return count;
+	}
+
+	private int write(List<String[]> batch) {
+		int count = 0;
+		boolean[] ok = new boolean[batch.size()];
+		try {
+			Connection con = getDataSource().getConnection();
+			try {
+				PreparedStatement ps = con.prepareStatement(updateQuery);
+				try {
+					for (String[] u : batch) {
+						ps.setString(1, u[0]);
+						ps.setString(2, u[1]);
+						ps.setString(3, u[2]);
+						ps.addBatch();
+					}
+					int[] r = ps.executeBatch();
+					for (int i = 0; i < r.length && i < ok.length; i++) {
+						ok[i] = r[i] > 0 || r[i] == Statement.SUCCESS_NO_INFO;
+					}
+				} finally {
+					ps.close();
+				}
+			} finally {
+				con.close();
+			}
+		} catch (SQLException e) {
+			LOG.log(Level.WARNING, "Record upgrade batch failed", e);
+		} catch (NamingException e) {
+			LOG.log(Level.WARNING, "Record upgrade batch failed", e);
+		}
+		for (int i = 0; i < ok.length; i++) {
+			done(batch.get(i)[1], ok[i]);
+			if (ok[i]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void done(String username, boolean ok) {
+		synchronized (inFlight) {
+			inFlight.remove(username);
+		}
+		if (ok) {
+			updated.incrementAndGet();
+			updated(username);
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stop the background threads. Upgrades already computed are written;
+	 * queued ones are dropped. Later submissions are refused.
+	 */
+	public void close() {
+		Thread t;
+		synchronized (inFlight) {
+			closed = true;
+			t = flusher;
+			flusher = null;
+		}
+		if (t != null) {
+			t.interrupt();
+		}
+		int discarded = executor.shutdownNow().size();
+		try {
+			executor.awaitTermination(flushMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		synchronized (inFlight) {
+			dropped.addAndGet(discarded);
+			inFlight.clear();
+		}
+	}
+
+	/**
+	 * Callback after a user's record was written. Default does nothing.
+	 *
+	 * @param username User whose record changed
+	 */
+	protected void updated(String username) {
+	}
+
+	/**
+	 * Look up the DataSource. Override for non-JNDI environments.
+	 *
+	 * @return DataSource to update
+	 * @throws NamingException Lookup failed
+	 */
+	protected DataSource getDataSource() throws NamingException {
+		InitialContext ctx = new InitialContext();
+		try {
+			return (DataSource) ctx.lookup(dsJndiName);
+		} finally {
+			ctx.close();
+		}
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return Upgrades not written: rejected, failed or not matching the
+	 *         stored record any more.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getUpdated() {
+		return updated.get();
+	}
+
+	/**
+	 * Flushes periodically; exits once no upgrade is in flight.
+	 */
+	private class Flusher implements Runnable {
+		public void run() {
+			for (;;) {
+				try {
+					Thread.sleep(flushMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+				flush();
+				synchronized (inFlight) {
+					if (flusher != Thread.currentThread()) {
+						return;
+					}
+					if (inFlight.isEmpty()) {
+						flusher = null;
+						return;
+					}
+				}
+			}
+		}
+	}
+}
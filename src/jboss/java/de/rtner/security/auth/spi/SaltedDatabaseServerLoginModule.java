@@ -20,7 +20,18 @@
 
 package de.rtner.security.auth.spi;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
@@ -49,11 +60,83 @@ public class SaltedDatabaseServerLoginModule extends DatabaseServerLoginModule {
 	private static final String FORMATTER = "formatter";
 	private static final String ENGINE = "engine";
 	private static final String ENGINE_PARAMETERS = "engine-parameters";
+	private static final String MAX_ITERATIONS = "maxIterations";
+	private static final String VERIFY_TIMEOUT = "verifyTimeout";
+	private static final String ADAPTIVE_CONCURRENCY = "adaptiveConcurrency";
+	private static final String MAX_CONCURRENCY = "maxConcurrency";
+	private static final String MAX_ATTEMPTS_PER_USER = "maxAttemptsPerUser";
+	private static final String ATTEMPT_WINDOW = "attemptWindow";
+	private static final String WARMUP = "warmup";
+	private static final String WARMUP_MILLIS = "warmupMillis";
+	private static final String RECORD_CACHE_SIZE = "recordCacheSize";
+	private static final String RECORD_CACHE_TTL = "recordCacheTtl";
+	private static final String REHASH_ITERATIONS = "rehashIterations";
+	private static final String REHASH_QUERY = "rehashQuery";
+	private static final String REHASH_BATCH_SIZE = "rehashBatchSize";
+	private static final String REHASH_QUEUE_SIZE = "rehashQueueSize";
+	private static final String VERIFICATION_SERVER = "verificationServer";
+
+	private static final Logger LOG = Logger.getLogger(SaltedDatabaseServerLoginModule.class.getName());
 
 	private static final String[] ALL_VALID_OPTIONS = {
-		HMAC_ALGORITHM, HASH_CHARSET, FORMATTER, ENGINE, ENGINE_PARAMETERS
+		HMAC_ALGORITHM, HASH_CHARSET, FORMATTER, ENGINE, ENGINE_PARAMETERS,
+		MAX_ITERATIONS, VERIFY_TIMEOUT, ADAPTIVE_CONCURRENCY, MAX_CONCURRENCY,
+		MAX_ATTEMPTS_PER_USER, ATTEMPT_WINDOW, WARMUP, WARMUP_MILLIS,
+		RECORD_CACHE_SIZE, RECORD_CACHE_TTL, REHASH_ITERATIONS, REHASH_QUERY,
+		REHASH_BATCH_SIZE, REHASH_QUEUE_SIZE, VERIFICATION_SERVER
 	};
 
+	/**
+	 * Returned by getUsersPassword() instead of the stored record when the
+	 * decoded record was found in the cache. Compared by identity.
+	 */
+	private static final String CACHED_RECORD = new String("cached");
+
+	/**
+	 * Limiter shared by all instances of this class, created by the first
+	 * initialize() that enables it.
+	 */
+	private static AdaptiveConcurrencyLimiter sharedLimiter = null;
+
+	/** Option maxConcurrency the shared limiter was created with. */
+	private static int sharedLimiterMax = 0;
+
+	/**
+	 * Throttle shared by all instances of this class, created by the first
+	 * initialize() that enables it.
+	 */
+	private static AttemptThrottle sharedThrottle = null;
+
+	/**
+	 * JIT warm-up, started once by the first initialize() that enables it.
+	 */
+	private static volatile PBKDF2Warmup warmup = null;
+
+	/**
+	 * Stored record caches by data source and principals query, shared by all
+	 * instances of this class. A record cached for one security domain is
+	 * never served to another.
+	 */
+	private static final Map<String, PBKDF2ParametersCache> sharedRecordCaches =
+			new HashMap<String, PBKDF2ParametersCache>();
+
+	/**
+	 * Record upgraders by data source and update query, shared by all
+	 * instances of this class.
+	 */
+	private static final Map<String, RecordRehasher> sharedRehashers = new HashMap<String, RecordRehasher>();
+
+	/**
+	 * Connections to verification servers by address, shared by all instances
+	 * of this class. A connection is replaced on the next verification after
+	 * it failed.
+	 */
+	private static final Map<String, VerificationClient> sharedVerificationClients =
+			new HashMap<String, VerificationClient>();
+
+	/** Salt source for upgraded records. */
+	private static final SecureRandom rehashRandom = new SecureRandom();
+
 	/**
      * The default formatter to use if not specified as a property.
      */
@@ -110,6 +193,97 @@ public class SaltedDatabaseServerLoginModule extends DatabaseServerLoginModule {
      */
     protected String parameterClassName = null;
 
+    /**
+     * Stored records with a higher iteration count are rejected before any
+     * derivation starts. For layered records, both stages count. Zero
+     * (default) means no limit.
+     */
+    protected int maxIterations = 0;
+
+    /**
+     * Time limit for one verification in milliseconds. Only effective with
+     * engines derived from InterruptiblePBKDF2Engine, or with option
+     * verificationServer, where it also limits connecting to the server. Zero
+     * (default) means no limit.
+     *
+     * @see de.rtner.security.auth.spi.InterruptiblePBKDF2Engine
+     */
+    protected long verifyTimeout = 0;
+
+    /**
+     * Limits concurrent verifications when option adaptiveConcurrency is
+     * &quot;true&quot;; <code>null</code> otherwise. Verifications beyond the
+     * limit fail immediately. Option maxConcurrency caps the limit (default
+     * four times the number of processors). The limiter guards the CPU of
+     * the whole process and is shared by all security domains; the first
+     * domain to enable it sets maxConcurrency.
+     *
+     * @see de.rtner.security.auth.spi.AdaptiveConcurrencyLimiter
+     */
+    protected AdaptiveConcurrencyLimiter concurrencyLimiter = null;
+
+    /**
+     * Per-username attempt limit when option maxAttemptsPerUser is set;
+     * <code>null</code> otherwise. Option attemptWindow sets the window in
+     * seconds (default 60). Attempts beyond the limit are rejected before any
+     * derivation runs. The throttle is shared by all security domains; the
+     * first domain to enable it sets both options.
+     *
+     * @see de.rtner.security.auth.spi.AttemptThrottle
+     */
+    protected AttemptThrottle attemptThrottle = null;
+
+    /**
+     * Cache of decoded stored records when option recordCacheSize is set;
+     * <code>null</code> otherwise. Option recordCacheTtl sets the time to live
+     * in seconds (default 60). A hit skips both the database query and the
+     * formatter's parse. Domains with the same dsJndiName and principalsQuery
+     * share a cache and must use the same size and time to live. Call
+     * {@link #invalidateCachedRecord(String)} after changing a stored
+     * password.
+     *
+     * @see de.rtner.security.auth.spi.PBKDF2ParametersCache
+     */
+    protected PBKDF2ParametersCache recordCache = null;
+
+    /**
+     * Records with a lower iteration count are upgraded to this count after a
+     * successful login when option rehashIterations is set. Zero (default)
+     * disables upgrades.
+     */
+    protected int rehashIterations = 0;
+
+    /**
+     * Upgrades records off the request path when options rehashIterations and
+     * rehashQuery are set; <code>null</code> otherwise. Options
+     * rehashBatchSize (default 50) and rehashQueueSize (default the batch
+     * size) bound the database writes and the pending work. Queued upgrades
+     * hold clear-text passwords, so keep the queue small.
+     *
+     * @see de.rtner.security.auth.spi.RecordRehasher
+     */
+    protected RecordRehasher rehasher = null;
+
+    /**
+     * Address (host:port) of a VerificationServer when option
+     * verificationServer is set; <code>null</code> otherwise. Verifications
+     * are then delegated to that server instead of running the configured
+     * engine locally; verifyTimeout limits the wait for the answer.
+     *
+     * @see de.rtner.security.auth.spi.VerificationServer
+     */
+    protected String verificationServer = null;
+
+    /**
+     * Decoded record found in the cache by the current login's
+     * getUsersPassword(), consumed by validatePassword().
+     */
+    private PBKDF2Parameters cachedRecord = null;
+
+    /**
+     * Stored record string that cachedRecord was decoded from, if known.
+     */
+    private String cachedEncodedRecord = null;
 
     @Override
     public void initialize(Subject subject, CallbackHandler callbackHandler,
@@ -141,6 +315,90 @@ public class SaltedDatabaseServerLoginModule extends DatabaseServerLoginModule {
             parameterClassName = DEFAULT_PARAMETER;
         }
 
+        String s = (String) options.get(MAX_ITERATIONS);
+        if (s != null) {
+            maxIterations = Integer.parseInt(s);
+        }
+
+        s = (String) options.get(VERIFY_TIMEOUT);
+        if (s != null) {
+            verifyTimeout = Long.parseLong(s);
+        }
+
+        if (Boolean.parseBoolean((String) options.get(ADAPTIVE_CONCURRENCY))) {
+            s = (String) options.get(MAX_CONCURRENCY);
+            int cores = Runtime.getRuntime().availableProcessors();
+            int max = (s != null) ? Integer.parseInt(s) : 4 * cores;
+            concurrencyLimiter = getSharedLimiter(cores, max);
+        }
+
+        s = (String) options.get(MAX_ATTEMPTS_PER_USER);
+        if (s != null) {
+            String w = (String) options.get(ATTEMPT_WINDOW);
+            long window = (w != null) ? Long.parseLong(w) : 60;
+            attemptThrottle = getSharedThrottle(Integer.parseInt(s), window * 1000);
+        }
+
+        if (Boolean.parseBoolean((String) options.get(WARMUP))) {
+            s = (String) options.get(WARMUP_MILLIS);
+            startWarmup((s != null) ? Long.parseLong(s) : 5000);
+        }
+
+        s = (String) options.get(RECORD_CACHE_SIZE);
+        if (s != null) {
+            String t = (String) options.get(RECORD_CACHE_TTL);
+            long ttl = (t != null) ? Long.parseLong(t) : 60;
+            recordCache = getSharedRecordCache(dsJndiName, principalsQuery, Integer.parseInt(s), ttl * 1000);
+        }
+
+        s = (String) options.get(REHASH_ITERATIONS);
+        String q = (String) options.get(REHASH_QUERY);
+        if (s != null && q != null) {
+            rehashIterations = Integer.parseInt(s);
+            String b = (String) options.get(REHASH_BATCH_SIZE);
+            String n = (String) options.get(REHASH_QUEUE_SIZE);
+            int batchSize = (b != null) ? Integer.parseInt(b) : 50;
+            rehasher = getSharedRehasher(dsJndiName, q,
+                    (n != null) ? Integer.parseInt(n) : batchSize, batchSize);
+        }
+
+        verificationServer = (String) options.get(VERIFICATION_SERVER);
+
+    }
+
+    /**
+     * Get the stored record. With option recordCacheSize set, a cached decoded
+     * record is used if present and the database is not queried.
+     *
+     * @return Stored record as found in the database, or an opaque marker that
+     *         validatePassword() recognizes as cache hit.
+     */
+    @Override
+    protected String getUsersPassword() throws LoginException {
+        cachedRecord = null;
+        cachedEncodedRecord = null;
+        String username = getUsername();
+        if (recordCache != null && username != null) {
+            PBKDF2Parameters p = getEngineParameters();
+            String stored = (p != null) ? recordCache.getEncoded(username, p) : null;
+            if (stored != null) {
+                cachedEncodedRecord = stored;
+                return usePreparsedRecord(p);
+            }
+        }
+        return super.getUsersPassword();
+    }
+
+    /**
+     * For getUsersPassword() implementations that obtain records already
+     * decoded: hand the record to validatePassword(), bypassing the formatter.
+     *
+     * @param p Decoded stored record
+     * @return Opaque marker to return from getUsersPassword()
+     */
+    protected String usePreparsedRecord(PBKDF2Parameters p) {
+        cachedRecord = p;
+        return CACHED_RECORD;
     }
 
     /**
@@ -165,18 +423,44 @@ public class SaltedDatabaseServerLoginModule extends DatabaseServerLoginModule {
 	        if (inputPassword == null || expectedPassword == null) {
 	            break;
 	        }
-	
-	        PBKDF2Parameters p = getEngineParameters();
-	        if( p == null ) {
+
+	        if (attemptThrottle != null && getUsername() != null
+	                && !attemptThrottle.tryAttempt(getUsername())) {
+	            setValidateError(new LoginException("Too many login attempts"));
 	            break;
 	        }
 	
-	        PBKDF2Formatter f = getFormatter();
-	        if( f == null ) {
-	            break;
+	        PBKDF2Parameters p = cachedRecord;
+	        String storedRecord = cachedEncodedRecord;
+	        cachedRecord = null;
+	        cachedEncodedRecord = null;
+	        if (p == null || expectedPassword != CACHED_RECORD) {
+	            storedRecord = expectedPassword;
+	            p = getEngineParameters();
+	            if( p == null ) {
+	                break;
+	            }
+
+	            PBKDF2Formatter f = getFormatter();
+	            if( f == null ) {
+	                break;
+	            }
+
+	            if (f.fromString(p, expectedPassword)) {
+	                break;
+	            }
+
+	            if (recordCache != null && getUsername() != null) {
+	                recordCache.put(getUsername(), p, expectedPassword);
+	            }
 	        }
 
-	        if (f.fromString(p, expectedPassword)) {
+	        // Layered records cost both stages
+	        int iterations = (p instanceof LayeredPBKDF2Parameters)
+	                ? ((LayeredPBKDF2Parameters) p).getTotalIterationCount() : p.getIterationCount();
+	        if (maxIterations > 0 && iterations > maxIterations) {
+	            setValidateError(new LoginException("Iteration count "
+	                    + iterations + " exceeds maximum " + maxIterations));
 	            break;
 	        }
 
@@ -184,12 +468,392 @@ public class SaltedDatabaseServerLoginModule extends DatabaseServerLoginModule {
 	        if( pBKDF2Engine == null ) {
 	            break;
 	        }
-	        verifyOK = pBKDF2Engine.verifyKey(inputPassword);
+
+	        AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+	        if (limiter != null && !limiter.tryAcquire()) {
+	            setValidateError(new LoginException("Too many concurrent password verifications"));
+	            break;
+	        }
+	        long start = System.nanoTime();
+	        try {
+	            if (verificationServer != null) {
+	                verifyOK = getSharedVerificationClient(verificationServer,
+	                        (int) Math.min(verifyTimeout, Integer.MAX_VALUE)).verify(p, inputPassword, verifyTimeout);
+	            } else {
+	                verifyOK = pBKDF2Engine.verifyKey(inputPassword);
+	            }
+	            // Preparsed records without their stored form cannot be compared
+	            if (verifyOK && rehasher != null && iterations < rehashIterations && storedRecord != null) {
+	                submitRehash(inputPassword, storedRecord, p);
+	            }
+	        } catch (DerivationAbortedException e) {
+	            LoginException le = new LoginException(e.getMessage());
+	            le.initCause(e);
+	            setValidateError(le);
+	        } catch (IOException e) {
+	            LoginException le = new LoginException("Verification server: " + e.getMessage());
+	            le.initCause(e);
+	            setValidateError(le);
+	        } finally {
+	            if (limiter != null) {
+	                // Per iteration, so that costly records do not look like overload
+	                limiter.release(System.nanoTime() - start, iterations);
+	            }
+	        }
 	        break;
     	}
         return verifyOK;
     }
 
+	/**
+	 * Queue the upgrade of the current user's record. The new record keeps the
+	 * salt length and gets a fresh salt and the rehashIterations count. Returns
+	 * immediately; the derivation runs on the rehasher's thread.
+	 * <p>
+	 * Engine, parameters and formatter are created here, so that the queued
+	 * task holds no reference to this module. The task holds the password as
+	 * a char array that it wipes after hashing.
+	 *
+	 * @param inputPassword Verified password
+	 * @param oldRecord Record as currently stored
+	 * @param old Decoded current record
+	 */
+	protected void submitRehash(String inputPassword, String oldRecord, PBKDF2Parameters old) {
+		final PBKDF2Formatter f = getFormatter();
+		final PBKDF2Parameters p = getEngineParameters();
+		final PBKDF2 e = (p != null) ? getEngine(p) : null;
+		String username = getUsername();
+		if (f == null || e == null || username == null) {
+			return;
+		}
+		final int saltSize = (old.getSalt() != null && old.getSalt().length > 0) ? old.getSalt().length : 8;
+		final int iterations = rehashIterations;
+		final char[] password = inputPassword.toCharArray();
+		boolean queued = rehasher.submit(username, oldRecord, new Callable<String>() {
+			public String call() {
+				try {
+					byte[] salt = new byte[saltSize];
+					rehashRandom.nextBytes(salt);
+					p.setSalt(salt);
+					p.setIterationCount(iterations);
+					p.setDerivedKey(deriveKey(e, password));
+					return f.toString(p);
+				} finally {
+					Arrays.fill(password, '\0');
+				}
+			}
+		});
+		if (!queued) {
+			Arrays.fill(password, '\0');
+		}
+	}
+
+	/**
+	 * Derive a key from a password held in a char array. PBKDF2Engine and
+	 * subclasses get the encoded octets, which are wiped afterwards; other
+	 * engines only accept a String.
+	 */
+	private static byte[] deriveKey(PBKDF2 e, char[] password) {
+		if (!(e instanceof PBKDF2Engine)) {
+			return e.deriveKey(new String(password));
+		}
+		String cs = e.getParameters().getHashCharset();
+		ByteBuffer b = ((cs != null) ? Charset.forName(cs) : Charset.defaultCharset())
+				.encode(CharBuffer.wrap(password));
+		byte[] P = new byte[b.remaining()];
+		b.get(P);
+		try {
+			return ((PBKDF2Engine) e).deriveKey(P, 0);
+		} finally {
+			Arrays.fill(P, (byte) 0);
+			if (b.hasArray()) {
+				Arrays.fill(b.array(), (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Start the JIT warm-up in a background thread, unless already started.
+	 * Synthetic derivations use the configured algorithm, charset, formatter,
+	 * engine and parameter classes.
+	 *
+	 * @param budgetMillis Upper bound for the warm-up duration
+	 */
+	protected void startWarmup(long budgetMillis) {
+		synchronized (SaltedDatabaseServerLoginModule.class) {
+			if (warmup != null) {
+				return;
+			}
+			PBKDF2Warmup w = newWarmup(getClass().getClassLoader(), hashAlgorithm, hashCharset,
+					formatterClassName, engineClassName, parameterClassName, budgetMillis);
+			if (w == null) {
+				return;
+			}
+			w.startInBackground();
+			warmup = w;
+		}
+	}
+
+	/**
+	 * Factory method for the JIT warm-up. Takes class names and option values
+	 * only, so that the warm-up, which lives as long as the class, keeps no
+	 * module instance reachable.
+	 *
+	 * @param loader Class loader for the configured classes
+	 * @param hashAlgorithm Mac algorithm
+	 * @param hashCharset Password charset, may be <code>null</code>
+	 * @param formatterClassName FQCN of the formatter
+	 * @param engineClassName FQCN of the engine
+	 * @param parameterClassName FQCN of the engine parameters
+	 * @param budgetMillis Upper bound for the warm-up duration
+	 * @return Warm-up, not started; <code>null</code> if the formatter cannot
+	 *         be instantiated.
+	 */
+	protected static PBKDF2Warmup newWarmup(ClassLoader loader, String hashAlgorithm, String hashCharset,
+			String formatterClassName, String engineClassName, String parameterClassName,
+			long budgetMillis) {
+		PBKDF2Formatter f = instantiate(loader, formatterClassName, PBKDF2Formatter.class);
+		if (f == null) {
+			return null;
+		}
+		return new ConfiguredWarmup(loader, hashAlgorithm, hashCharset, f, engineClassName,
+				parameterClassName, budgetMillis);
+	}
+
+	/**
+	 * Load and instantiate a class without reporting errors; for background
+	 * work that falls back to defaults.
+	 *
+	 * @return Instance, or <code>null</code> on error.
+	 */
+	private static <T> T instantiate(ClassLoader loader, String name, Class<T> clazz) {
+		try {
+			return clazz.cast(loader.loadClass(name).newInstance());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Warm-up of the configured engine and parameter classes, falling back to
+	 * the defaults if they cannot be instantiated.
+	 */
+	private static final class ConfiguredWarmup extends PBKDF2Warmup {
+
+		private final ClassLoader loader;
+
+		private final String engineClassName;
+
+		private final String parameterClassName;
+
+		ConfiguredWarmup(ClassLoader loader, String hashAlgorithm, String hashCharset,
+				PBKDF2Formatter formatter, String engineClassName, String parameterClassName,
+				long budgetMillis) {
+			super(hashAlgorithm, hashCharset, formatter, budgetMillis);
+			this.loader = loader;
+			this.engineClassName = engineClassName;
+			this.parameterClassName = parameterClassName;
+		}
+
+		@Override
+		protected PBKDF2 newEngine(PBKDF2Parameters p) {
+			PBKDF2 e = instantiate(loader, engineClassName, PBKDF2.class);
+			if (e == null) {
+				return super.newEngine(p);
+			}
+			e.setParameters(p);
+			return e;
+		}
+
+		@Override
+		protected PBKDF2Parameters newParameters() {
+			PBKDF2Parameters p = instantiate(loader, parameterClassName, PBKDF2Parameters.class);
+			if (p == null) {
+				return super.newParameters();
+			}
+			p.setHashAlgorithm(hashAlgorithm);
+			p.setHashCharset(hashCharset);
+			p.setIterationCount(ITERATIONS);
+			return p;
+		}
+	}
+
+	/**
+	 * Report JIT warm-up status.
+	 *
+	 * @return <code>true</code> once the warm-up started via option
+	 *         &quot;warmup&quot; has finished.
+	 */
+	public static boolean isWarmupFinished() {
+		PBKDF2Warmup w = warmup;
+		return w != null && w.isFinished();
+	}
+
+	/**
+	 * Get or create the limiter shared by all instances of this class. The
+	 * limiter is process-wide: a later call with a different maxLimit gets the
+	 * existing limiter and logs a warning.
+	 *
+	 * @param initialLimit Starting limit
+	 * @param maxLimit Upper bound of the limit
+	 * @return Shared limiter
+	 */
+	protected static synchronized AdaptiveConcurrencyLimiter getSharedLimiter(int initialLimit, int maxLimit) {
+		if (sharedLimiter == null) {
+			sharedLimiter = new AdaptiveConcurrencyLimiter(initialLimit, 1, maxLimit);
+			sharedLimiterMax = maxLimit;
+		} else if (maxLimit != sharedLimiterMax) {
+			LOG.warning("Concurrency limiter is shared by all security domains; ignoring "
+					+ MAX_CONCURRENCY + "=" + maxLimit + ", keeping " + sharedLimiterMax);
+		}
+		return sharedLimiter;
+	}
+
+	/**
+	 * Get or create the attempt throttle shared by all instances of this class.
+	 * The throttle is process-wide: a later call with different settings gets
+	 * the existing throttle and logs a warning.
+	 *
+	 * @param maxAttempts Attempts allowed per username and window
+	 * @param windowMillis Window length in milliseconds
+	 * @return Shared throttle
+	 */
+	protected static synchronized AttemptThrottle getSharedThrottle(int maxAttempts, long windowMillis) {
+		if (sharedThrottle == null) {
+			sharedThrottle = new AttemptThrottle(maxAttempts, windowMillis);
+		} else if (maxAttempts != sharedThrottle.getMaxAttempts()
+				|| windowMillis != sharedThrottle.getWindowMillis()) {
+			LOG.warning("Attempt throttle is shared by all security domains; ignoring "
+					+ MAX_ATTEMPTS_PER_USER + "=" + maxAttempts + ", " + ATTEMPT_WINDOW + "=" + windowMillis / 1000
+					+ ", keeping " + sharedThrottle.getMaxAttempts() + ", " + sharedThrottle.getWindowMillis() / 1000);
+		}
+		return sharedThrottle;
+	}
+
+	/**
+	 * Get or create the stored record cache for a data source and principals
+	 * query, shared by all instances of this class that read records the same
+	 * way.
+	 *
+	 * @param dsJndiName JNDI name of the DataSource
+	 * @param principalsQuery Query that reads the stored record
+	 * @param maxEntries Maximum number of cached records
+	 * @param ttlMillis Time to live in milliseconds
+	 * @return Shared cache
+	 * @throws IllegalArgumentException A cache for the same data source and
+	 *             query exists with a different size or time to live
+	 */
+	protected static synchronized PBKDF2ParametersCache getSharedRecordCache(String dsJndiName,
+			String principalsQuery, int maxEntries, long ttlMillis) {
+		String key = dsJndiName + "\n" + principalsQuery;
+		PBKDF2ParametersCache c = sharedRecordCaches.get(key);
+		if (c == null) {
+			c = new PBKDF2ParametersCache(maxEntries, ttlMillis);
+			sharedRecordCaches.put(key, c);
+		} else if (c.getMaxEntries() != maxEntries || c.getTtlMillis() != ttlMillis) {
+			throw new IllegalArgumentException("Record cache for " + dsJndiName + " already configured with "
+					+ RECORD_CACHE_SIZE + "=" + c.getMaxEntries() + ", " + RECORD_CACHE_TTL + "="
+					+ c.getTtlMillis() / 1000);
+		}
+		return c;
+	}
+
+	/**
+	 * Get or create the record upgrader for a data source and update query,
+	 * shared by all instances of this class. Queue and batch size are those of
+	 * the first call. Written records are dropped from the record caches.
+	 *
+	 * @param dsJndiName JNDI name of the DataSource
+	 * @param updateQuery Update statement, parameters new record, username, old record
+	 * @param queueSize Maximum number of queued upgrades
+	 * @param batchSize Upgrades per JDBC batch
+	 * @return Shared upgrader
+	 */
+	protected static synchronized RecordRehasher getSharedRehasher(String dsJndiName, String updateQuery,
+			int queueSize, int batchSize) {
+		String key = dsJndiName + "\n" + updateQuery;
+		RecordRehasher r = sharedRehashers.get(key);
+		if (r == null) {
+			r = new RecordRehasher(dsJndiName, updateQuery, queueSize, batchSize, 1000) {
+				@Override
+				protected void updated(String username) {
+					invalidateCachedRecord(username);
+				}
+			};
+			sharedRehashers.put(key, r);
+		}
+		return r;
+	}
+
+	/**
+	 * Get the connection to a verification server shared by all instances of
+	 * this class, connecting if there is none or the previous one failed. The
+	 * connect runs outside the class lock, so that a slow or unreachable
+	 * server does not block other logins; when two threads race, the loser's
+	 * connection is closed.
+	 *
+	 * @param address Server address, host:port
+	 * @param connectTimeoutMillis Connect timeout, zero means none
+	 * @return Shared client
+	 * @throws IOException Connection failed
+	 */
+	protected static VerificationClient getSharedVerificationClient(String address, int connectTimeoutMillis)
+			throws IOException {
+		synchronized (SaltedDatabaseServerLoginModule.class) {
+			VerificationClient c = sharedVerificationClients.get(address);
+			if (c != null && !c.isClosed()) {
+				return c;
+			}
+		}
+		VerificationClient c = new VerificationClient(VerificationClient.parseAddress(address), connectTimeoutMillis);
+		synchronized (SaltedDatabaseServerLoginModule.class) {
+			VerificationClient other = sharedVerificationClients.get(address);
+			if (other != null && !other.isClosed()) {
+				c.close();
+				return other;
+			}
+			sharedVerificationClients.put(address, c);
+			return c;
+		}
+	}
+
+	/**
+	 * Drop a user's cached records in all security domains. Call after
+	 * changing the stored password.
+	 *
+	 * @param username User whose record changed
+	 */
+	public static synchronized void invalidateCachedRecord(String username) {
+		for (PBKDF2ParametersCache c : sharedRecordCaches.values()) {
+			c.invalidate(username);
+		}
+	}
+
+	/**
+	 * Stop the threads of all shared record upgraders, i.e. on application
+	 * undeploy. The next initialize() with rehash options creates a new one.
+	 */
+	public static void closeSharedRehasher() {
+		List<RecordRehasher> closing;
+		synchronized (SaltedDatabaseServerLoginModule.class) {
+			closing = new ArrayList<RecordRehasher>(sharedRehashers.values());
+			sharedRehashers.clear();
+		}
+		// Outside the class lock: the final flush calls invalidateCachedRecord()
+		for (RecordRehasher r : closing) {
+			r.close();
+		}
+	}
+
+	/**
+	 * Drop all cached records.
+	 */
+	public static synchronized void invalidateAllCachedRecords() {
+		for (PBKDF2ParametersCache c : sharedRecordCaches.values()) {
+			c.invalidateAll();
+		}
+	}
+
 	/**
 	 * Factory method: instantiate the PBKDF2 engine parameters. Override or
 	 * change the class via attribute.
@@ -221,6 +885,9 @@ public class SaltedDatabaseServerLoginModule extends DatabaseServerLoginModule {
         PBKDF2 engine = newInstance(engineClassName, PBKDF2.class);
         if( engine != null ) {
         	engine.setParameters(parameters);
+        	if (verifyTimeout > 0 && engine instanceof InterruptiblePBKDF2Engine) {
+        		((InterruptiblePBKDF2Engine) engine).setTimeout(verifyTimeout);
+        	}
         }
         return engine;
     }
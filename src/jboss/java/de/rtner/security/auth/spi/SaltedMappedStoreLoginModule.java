@@ -0,0 +1,159 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.acl.Group;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.jboss.security.SimpleGroup;
+import org.jboss.security.SimplePrincipal;
+
+/**
+ * Variant of SaltedDatabaseServerLoginModule that looks up stored records in a
+ * local {@link MappedCredentialStore} file instead of a database. All
+ * verification options of the base class apply.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>storeFile: path of the store file, required. Opened read-only and
+ * shared by all instances.</li>
+ * <li>roles: comma-separated roles granted to every authenticated user. If
+ * unset, roles come from the inherited rolesQuery.</li>
+ * </ul>
+ * The per-record algorithm id overrides option hmacAlgorithm.
+ *
+ * @author Matthias G&auml;rtner
+ * @see de.rtner.security.auth.spi.SaltedDatabaseServerLoginModule
+ */
+public class SaltedMappedStoreLoginModule extends SaltedDatabaseServerLoginModule {
+
+	private static final String STORE_FILE = "storeFile";
+	private static final String ROLES = "roles";
+
+	private static final String[] ALL_VALID_OPTIONS = { STORE_FILE, ROLES };
+
+	/**
+	 * Open stores by canonical path, shared by all instances of this class.
+	 */
+	private static final Map<String, MappedCredentialStore> sharedStores = new HashMap<String, MappedCredentialStore>();
+
+	/**
+	 * Store to read records from.
+	 */
+	protected MappedCredentialStore store = null;
+
+	/**
+	 * Roles for all users, or <code>null</code> to use rolesQuery.
+	 */
+	protected String[] roles = null;
+
+	@Override
+	public void initialize(Subject subject, CallbackHandler callbackHandler,
+			Map<String,?> sharedState, Map<String,?> options) {
+		addValidOptions(ALL_VALID_OPTIONS);
+		super.initialize(subject, callbackHandler, sharedState, options);
+
+		String s = (String) options.get(STORE_FILE);
+		if (s != null) {
+			try {
+				store = getSharedStore(new File(s));
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Cannot open credential store " + s, e);
+			}
+		}
+		s = (String) options.get(ROLES);
+		if (s != null) {
+			roles = s.split(",");
+		}
+	}
+
+	/**
+	 * Look up the user's record in the store.
+	 *
+	 * @return Marker for validatePassword(), the record is passed decoded.
+	 * @throws LoginException No store configured or unknown user
+	 */
+	@Override
+	protected String getUsersPassword() throws LoginException {
+		if (store == null) {
+			throw new LoginException("Option " + STORE_FILE + " not set");
+		}
+		PBKDF2Parameters p = getEngineParameters();
+		if (p == null || getUsername() == null || !store.get(getUsername(), p)) {
+			throw new FailedLoginException("No matching username found");
+		}
+		return usePreparsedRecord(p);
+	}
+
+	@Override
+	protected Group[] getRoleSets() throws LoginException {
+		if (roles == null) {
+			return super.getRoleSets();
+		}
+		SimpleGroup g = new SimpleGroup("Roles");
+		for (String r : roles) {
+			if (r.trim().length() > 0) {
+				g.addMember(new SimplePrincipal(r.trim()));
+			}
+		}
+		return new Group[] { g };
+	}
+
+	/**
+	 * Get or open the read-only store for a file.
+	 *
+	 * @param file Store file
+	 * @return Shared store
+	 * @throws IOException File access failed
+	 */
+	protected static MappedCredentialStore getSharedStore(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		synchronized (sharedStores) {
+			MappedCredentialStore s = sharedStores.get(key);
+			if (s == null) {
+				s = MappedCredentialStore.open(file, true);
+				sharedStores.put(key, s);
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Drop a shared store, i.e. after the file was recreated. Compactions by
+	 * a writer are followed without this. The next login reopens it.
+	 *
+	 * @param file Store file
+	 * @throws IOException Path resolution failed
+	 */
+	public static void reopenStore(File file) throws IOException {
+		synchronized (sharedStores) {
+			sharedStores.remove(file.getCanonicalPath());
+		}
+	}
+}
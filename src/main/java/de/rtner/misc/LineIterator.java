@@ -0,0 +1,98 @@
+/*
+ * Free auxiliary functions. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.misc;
+
+import java.io.BufferedReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-ahead iterator over a line source. Subclasses implement
+ * {@link #read()}; exceptions surface as RuntimeException.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public abstract class LineIterator implements Iterator<String>
+{
+    private String next;
+
+    private boolean done;
+
+    /**
+     * Adapt a reader.
+     *
+     * @param r
+     *            Input. Not closed.
+     * @return Lines without line terminators
+     */
+    public static LineIterator of(final BufferedReader r)
+    {
+        return new LineIterator()
+        {
+            @Override
+            protected String read() throws Exception
+            {
+                return r.readLine();
+            }
+        };
+    }
+
+    /**
+     * Read the next line.
+     *
+     * @return Next line, <code>null</code> at the end of input.
+     * @throws Exception
+     *             Reading failed
+     */
+    protected abstract String read() throws Exception;
+
+    public boolean hasNext()
+    {
+        if (next == null && !done)
+        {
+            try
+            {
+                next = read();
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+            done = (next == null);
+        }
+        return next != null;
+    }
+
+    public String next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        String s = next;
+        next = null;
+        return s;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Free auxiliary functions. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.misc;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Order-preserving parallel map over a stream of inputs.
+ * <p>
+ * {@link #map(Iterator)} returns a lazy iterator of results in input order.
+ * At most <code>window</code> inputs are in flight at any time, so memory is
+ * bounded regardless of the input size. The input iterator is only consumed
+ * by the thread that iterates the results.
+ * <p>
+ * {@link #apply(Object)} runs concurrently on the worker threads. Keep
+ * per-worker state, i.e. engines that are not thread-safe, in a ThreadLocal.
+ *
+ * @param <I> Input type
+ * @param <O> Output type
+ * @author Matthias G&auml;rtner
+ */
+public abstract class ParallelMapper<I, O>
+{
+    private final ExecutorService executor;
+
+    private final int window;
+
+    /**
+     * Constructor for a mapper with one worker per processor and a window of
+     * four inputs per worker.
+     */
+    public ParallelMapper()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor with a window of four inputs per worker.
+     *
+     * @param threads
+     *            Number of worker threads
+     */
+    public ParallelMapper(int threads)
+    {
+        this(threads, 4 * threads);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threads
+     *            Number of worker threads
+     * @param window
+     *            Maximum number of inputs in flight, at least
+     *            <code>threads</code> to keep all workers busy.
+     */
+    public ParallelMapper(int threads, int window)
+    {
+        if (threads <= 0 || window <= 0)
+        {
+            throw new IllegalArgumentException("Threads and window must be positive.");
+        }
+        this.window = window;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ParallelMapper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The mapping function. Called concurrently from the worker threads.
+     *
+     * @param input
+     *            One input element
+     * @return Result for this element
+     * @throws Exception
+     *             Surfaces from the result iterator's next() as
+     *             RuntimeException with this exception as cause.
+     */
+    protected abstract O apply(I input) throws Exception;
+
+    /**
+     * Map a stream of inputs.
+     *
+     * @param inputs
+     *            Inputs, consumed lazily
+     * @return Results in input order
+     */
+    public Iterator<O> map(final Iterator<? extends I> inputs)
+    {
+        return new Iterator<O>()
+        {
+            private final ArrayDeque<Future<O>> inFlight = new ArrayDeque<Future<O>>(window);
+
+            public boolean hasNext()
+            {
+                fill();
+                return !inFlight.isEmpty();
+            }
+
+            public O next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                Future<O> f = inFlight.poll();
+                try
+                {
+                    O o = f.get();
+                    fill();
+                    return o;
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                catch (ExecutionException e)
+                {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            private void fill()
+            {
+                while (inFlight.size() < window && inputs.hasNext())
+                {
+                    final I input = inputs.next();
+                    inFlight.add(executor.submit(new Callable<O>()
+                    {
+                        public O call() throws Exception
+                        {
+                            return apply(input);
+                        }
+                    }));
+                }
+            }
+        };
+    }
+
+    /**
+     * Stop the worker threads. Results not yet retrieved are discarded.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
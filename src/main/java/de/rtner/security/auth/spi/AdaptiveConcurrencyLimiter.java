@@ -0,0 +1,219 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+/**
+ * Adaptive limit on the number of concurrently running derivations.
+ * <p>
+ * PBKDF2 is pure CPU work: once the number of concurrent derivations exceeds
+ * the number of cores available, additional concurrency only adds latency.
+ * This limiter finds that knee without per-host tuning, using additive
+ * increase / multiplicative decrease driven by observed latency:
+ * <ul>
+ * <li>A baseline is kept as the lowest latency seen recently (it is
+ * re-learned every {@link #BASELINE_WINDOW} samples so that it follows
+ * changes in hardware).</li>
+ * <li>If a sample stays within {@link #getTolerance()} times the baseline and
+ * the limit was actually used, the limit grows by 1/limit, i.e. by one per
+ * &quot;round&quot;.</li>
+ * <li>Otherwise the limit shrinks by factor {@link #getBackoff()}, at most
+ * once per round: slow samples of operations that were still running at the
+ * last decrease report the same overload and are not counted again.</li>
+ * </ul>
+ * Operations of different cost must report their latency per unit of work,
+ * see {@link #release(long, long)}; otherwise every expensive operation looks
+ * like overload.
+ * Callers that do not obtain a permit from {@link #tryAcquire()} should fail
+ * fast instead of queueing.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class AdaptiveConcurrencyLimiter
+{
+    /**
+     * Number of samples after which the latency baseline is re-learned.
+     */
+    public static final int BASELINE_WINDOW = 1000;
+
+    protected final int minLimit;
+
+    protected final int maxLimit;
+
+    protected double tolerance = 1.5;
+
+    protected double backoff = 0.9;
+
+    private double limit;
+
+    private int inFlight = 0;
+
+    private long baseline = Long.MAX_VALUE;
+
+    private long windowMin = Long.MAX_VALUE;
+
+    private int samples = 0;
+
+    /**
+     * Operations still running at the last decrease, whose slow samples are
+     * not counted again.
+     */
+    private int overlapping = 0;
+
+    private long rejected = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param initialLimit
+     *            Starting limit, i.e. the number of cores.
+     * @param minLimit
+     *            Lower bound, at least 1.
+     * @param maxLimit
+     *            Upper bound.
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit)
+    {
+        if (minLimit < 1 || maxLimit < minLimit)
+        {
+            throw new IllegalArgumentException("Require 1 <= minLimit <= maxLimit.");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Obtain a permit without waiting.
+     *
+     * @return <code>true</code> if a permit was granted; the caller must then
+     *         call {@link #release(long)}.
+     */
+    public synchronized boolean tryAcquire()
+    {
+        if (inFlight >= (int) limit)
+        {
+            rejected++;
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Return a permit and record the latency of the guarded operation.
+     *
+     * @param latencyNanos
+     *            Duration of the operation in nanoseconds.
+     */
+    public synchronized void release(long latencyNanos)
+    {
+        release(latencyNanos, 1);
+    }
+
+    /**
+     * Return a permit and record the latency of the guarded operation per
+     * unit of work, i.e. per PBKDF2 iteration.
+     *
+     * @param latencyNanos
+     *            Duration of the operation in nanoseconds.
+     * @param work
+     *            Units of work done by the operation, values below 1 count
+     *            as 1.
+     */
+    public synchronized void release(long latencyNanos, long work)
+    {
+        latencyNanos /= Math.max(1, work);
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        windowMin = Math.min(windowMin, latencyNanos);
+        baseline = Math.min(baseline, latencyNanos);
+        if (++samples >= BASELINE_WINDOW)
+        {
+            baseline = windowMin;
+            windowMin = Long.MAX_VALUE;
+            samples = 0;
+        }
+        if (latencyNanos <= baseline * tolerance)
+        {
+            if (saturated)
+            {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+        else if (overlapping == 0)
+        {
+            limit = Math.max(minLimit, limit * backoff);
+            overlapping = inFlight + 1;
+        }
+        if (overlapping > 0)
+        {
+            overlapping--;
+        }
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    /**
+     * @return Number of permits refused so far.
+     */
+    public synchronized long getRejected()
+    {
+        return rejected;
+    }
+
+    public synchronized double getTolerance()
+    {
+        return tolerance;
+    }
+
+    /**
+     * @param tolerance
+     *            Latency factor over baseline still considered unloaded,
+     *            greater than 1.
+     */
+    public synchronized void setTolerance(double tolerance)
+    {
+        this.tolerance = tolerance;
+    }
+
+    public synchronized double getBackoff()
+    {
+        return backoff;
+    }
+
+    /**
+     * @param backoff
+     *            Factor applied to the limit on a slow sample, between 0 and
+     *            1.
+     */
+    public synchronized void setBackoff(double backoff)
+    {
+        this.backoff = backoff;
+    }
+}
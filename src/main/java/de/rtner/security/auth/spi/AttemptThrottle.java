@@ -0,0 +1,295 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-key (i.e. per-username) attempt counter with constant memory.
+ * <p>
+ * Attempts are counted in a count-min sketch: <i>depth</i> rows of
+ * <i>width</i> atomic counters, each row indexed by a Murmur3 hash of the
+ * key's UTF-8 bytes with a seed of its own. Keys that collide in one row are
+ * thus unlikely to collide in the others (note that String.hashCode() would
+ * not do: equal hash codes collide in every row). The estimate for a key is
+ * the minimum over its counters; it can only be too high (when keys collide
+ * in all rows), never too low. Memory is fixed at two sketches, no matter how
+ * many distinct keys are seen. Choose the width well above the number of
+ * distinct keys expected per window divided by maxAttempts, otherwise
+ * innocent keys start to share the limit of busy ones.
+ * <p>
+ * Counting uses fixed windows of {@link #getWindowMillis()}. The estimate is
+ * the current window's count plus the previous window's count weighted by
+ * the part of it still inside a sliding window, which smooths the boundary.
+ * Windows are swapped with a single compare-and-set; counting itself is
+ * lock-free. Each row's counter is checked against the limit and incremented
+ * in one compare-and-set, so concurrent attempts for a key cannot all pass
+ * the check before any of them is counted.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class AttemptThrottle
+{
+    public static final int DEFAULT_WIDTH = 4096;
+
+    public static final int DEFAULT_DEPTH = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected final int maxAttempts;
+
+    protected final long windowMillis;
+
+    protected final int depth;
+
+    protected final int mask;
+
+    private final AtomicReference<Window> window;
+
+    /**
+     * Constructor with default sketch size (4 x 4096 counters).
+     *
+     * @param maxAttempts
+     *            Attempts allowed per key and window, positive.
+     * @param windowMillis
+     *            Window length in milliseconds, positive.
+     */
+    public AttemptThrottle(int maxAttempts, long windowMillis)
+    {
+        this(maxAttempts, windowMillis, DEFAULT_WIDTH, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxAttempts
+     *            Attempts allowed per key and window, positive.
+     * @param windowMillis
+     *            Window length in milliseconds, positive.
+     * @param width
+     *            Counters per row, rounded up to a power of two. Larger
+     *            values mean fewer false positives.
+     * @param depth
+     *            Number of rows, positive.
+     */
+    public AttemptThrottle(int maxAttempts, long windowMillis, int width, int depth)
+    {
+        if (maxAttempts <= 0 || windowMillis <= 0 || width <= 0 || depth <= 0)
+        {
+            throw new IllegalArgumentException("All arguments must be positive.");
+        }
+        this.maxAttempts = maxAttempts;
+        this.windowMillis = windowMillis;
+        this.depth = depth;
+        int w = Integer.highestOneBit(width);
+        if (w < width)
+        {
+            w <<= 1;
+        }
+        this.mask = w - 1;
+        long epoch = System.currentTimeMillis() / windowMillis;
+        this.window = new AtomicReference<Window>(new Window(epoch,
+                new AtomicIntegerArray(w * depth), new AtomicIntegerArray(w * depth)));
+    }
+
+    /**
+     * Record an attempt if the key is below its limit.
+     *
+     * @param key
+     *            I.e. the username, non-<code>null</code>.
+     * @return <code>true</code> attempt allowed and counted,
+     *         <code>false</code> limit reached.
+     */
+    public boolean tryAttempt(String key)
+    {
+        long now = System.currentTimeMillis();
+        Window w = current(now);
+        byte[] k = key.getBytes(UTF8);
+        int[] indexes = new int[depth];
+        int prev = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+        {
+            indexes[row] = index(k, row);
+            prev = Math.min(prev, w.previous.get(indexes[row]));
+        }
+        int limit = maxAttempts - weighted(w, prev, now);
+        for (int row = 0; row < depth; row++)
+        {
+            if (!incrementBelow(w.counts, indexes[row], limit))
+            {
+                // Refused attempts are not counted
+                for (int i = 0; i < row; i++)
+                {
+                    w.counts.decrementAndGet(indexes[i]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Increment a counter unless it has reached the limit.
+     */
+    private static boolean incrementBelow(AtomicIntegerArray counts, int i, int limit)
+    {
+        for (;;)
+        {
+            int n = counts.get(i);
+            if (n >= limit)
+            {
+                return false;
+            }
+            if (counts.compareAndSet(i, n, n + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Estimated attempts of a key within the sliding window.
+     *
+     * @param key
+     *            I.e. the username, non-<code>null</code>.
+     * @return Estimate, never lower than the true count.
+     */
+    public int estimate(String key)
+    {
+        long now = System.currentTimeMillis();
+        return estimate(current(now), key.getBytes(UTF8), now);
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    public long getWindowMillis()
+    {
+        return windowMillis;
+    }
+
+    private int estimate(Window w, byte[] k, long now)
+    {
+        int cur = Integer.MAX_VALUE;
+        int prev = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+        {
+            int i = index(k, row);
+            cur = Math.min(cur, w.counts.get(i));
+            prev = Math.min(prev, w.previous.get(i));
+        }
+        return cur + weighted(w, prev, now);
+    }
+
+    /**
+     * Previous window's count weighted by its part in the sliding window.
+     */
+    private int weighted(Window w, int prev, long now)
+    {
+        double inPrevious = 1.0 - (double) (now - w.epoch * windowMillis) / windowMillis;
+        return (int) Math.ceil(prev * Math.max(0.0, inPrevious));
+    }
+
+    /**
+     * Current window, rotating if the epoch has moved on.
+     */
+    private Window current(long now)
+    {
+        long epoch = now / windowMillis;
+        for (;;)
+        {
+            Window w = window.get();
+            if (w.epoch >= epoch)
+            {
+                return w;
+            }
+            AtomicIntegerArray previous = (w.epoch == epoch - 1) ? w.counts
+                    : new AtomicIntegerArray(w.counts.length());
+            Window n = new Window(epoch, new AtomicIntegerArray(w.counts.length()), previous);
+            if (window.compareAndSet(w, n))
+            {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Counter of a key in a row: Murmur3 (x86, 32 bit) of the key bytes,
+     * seeded by row.
+     */
+    private int index(byte[] k, int row)
+    {
+        int h = 0x9E3779B9 * (row + 1);
+        int n = k.length & ~3;
+        for (int i = 0; i < n; i += 4)
+        {
+            h ^= mixK((k[i] & 0xFF) | (k[i + 1] & 0xFF) << 8
+                    | (k[i + 2] & 0xFF) << 16 | k[i + 3] << 24);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+        }
+        if (n < k.length)
+        {
+            int t = 0;
+            for (int i = k.length - 1; i >= n; i--)
+            {
+                t = (t << 8) | (k[i] & 0xFF);
+            }
+            h ^= mixK(t);
+        }
+        h ^= k.length;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private static int mixK(int k)
+    {
+        k *= 0xCC9E2D51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1B873593;
+    }
+
+    /**
+     * Immutable pair of sketches for one window.
+     */
+    private static final class Window
+    {
+        final long epoch;
+
+        final AtomicIntegerArray counts;
+
+        final AtomicIntegerArray previous;
+
+        Window(long epoch, AtomicIntegerArray counts, AtomicIntegerArray previous)
+        {
+            this.epoch = epoch;
+            this.counts = counts;
+            this.previous = previous;
+        }
+    }
+}
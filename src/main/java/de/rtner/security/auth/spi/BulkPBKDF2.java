@@ -0,0 +1,204 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import de.rtner.misc.BinTools;
+import de.rtner.misc.ParallelMapper;
+
+/**
+ * Thread-safe bulk creation of formatted records.
+ * <p>
+ * Passwords are hashed in parallel, results come back in input order. Each
+ * worker thread owns a {@link SimplePBKDF2} (and thereby its own salt
+ * source) and a reusable character buffer for hex formatting. Inputs are
+ * consumed lazily and at most the mapper's window is in flight, so memory use
+ * does not depend on the input size: a slow consumer holds back the input.
+ * <p>
+ * Streams are supported via their iterators. On Java 8 and later, pass
+ * <code>stream.iterator()</code> and wrap the result with
+ * <code>Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED)</code> and
+ * <code>StreamSupport.stream()</code>. Do not use a parallel stream on the
+ * input; the parallelism is here.
+ * <p>
+ * Example: <code>new BulkPBKDF2(8, 10000, 4).deriveKeysFormatted(passwords)</code>
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class BulkPBKDF2 extends ParallelMapper<String, String>
+{
+    protected final int saltSize;
+
+    protected final int iterationCount;
+
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>()
+    {
+        @Override
+        protected Worker initialValue()
+        {
+            return new Worker(newEngine());
+        }
+    };
+
+    /**
+     * Constructor with one worker per processor.
+     *
+     * @param saltSize
+     *            Salt size.
+     * @param iterationCount
+     *            Iteration count.
+     */
+    public BulkPBKDF2(int saltSize, int iterationCount)
+    {
+        this(saltSize, iterationCount, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param saltSize
+     *            Salt size.
+     * @param iterationCount
+     *            Iteration count.
+     * @param threads
+     *            Number of worker threads.
+     */
+    public BulkPBKDF2(int saltSize, int iterationCount, int threads)
+    {
+        super(threads);
+        this.saltSize = saltSize;
+        this.iterationCount = iterationCount;
+    }
+
+    /**
+     * Factory method for the per-worker engine. Override to change algorithm,
+     * charset, formatter or salt generator.
+     *
+     * @return New engine, used by one worker thread only.
+     */
+    protected SimplePBKDF2 newEngine()
+    {
+        return new SimplePBKDF2(saltSize, iterationCount);
+    }
+
+    /**
+     * Hash passwords.
+     *
+     * @param passwords
+     *            Passwords, consumed lazily
+     * @return Records as by {@link SimplePBKDF2#deriveKeyFormatted(String)},
+     *         in input order
+     */
+    public Iterator<String> deriveKeysFormatted(Iterator<String> passwords)
+    {
+        return map(passwords);
+    }
+
+    /**
+     * Hash passwords. Each iteration of the result hashes the input anew.
+     *
+     * @param passwords
+     *            Passwords
+     * @return Records in input order
+     */
+    public Iterable<String> deriveKeysFormatted(final Iterable<String> passwords)
+    {
+        return new Iterable<String>()
+        {
+            public Iterator<String> iterator()
+            {
+                return map(passwords.iterator());
+            }
+        };
+    }
+
+    @Override
+    protected String apply(String password)
+    {
+        Worker w = workers.get();
+        SimplePBKDF2 e = w.engine;
+        PBKDF2Parameters p = e.getParameters();
+        p.setSalt(e.generateSalt());
+        byte[] dk = e.deriveKey(password);
+        p.setDerivedKey(dk);
+        try
+        {
+            PBKDF2Formatter f = e.getFormatter();
+            return (f.getClass() == PBKDF2HexFormatter.class) ? w.format(p) : f.toString(p);
+        }
+        finally
+        {
+            Arrays.fill(dk, (byte) 0);
+            p.setDerivedKey(null);
+        }
+    }
+
+    /**
+     * Per-thread state.
+     */
+    private static final class Worker
+    {
+        final SimplePBKDF2 engine;
+
+        private char[] buf = new char[128];
+
+        Worker(SimplePBKDF2 engine)
+        {
+            this.engine = engine;
+        }
+
+        /**
+         * Same output as PBKDF2HexFormatter, without intermediate Strings.
+         */
+        String format(PBKDF2Parameters p)
+        {
+            byte[] salt = p.getSalt();
+            byte[] dk = p.getDerivedKey();
+            String c = String.valueOf(p.getIterationCount());
+            int n = 2 * salt.length + c.length() + 2 * dk.length + 2;
+            if (buf.length < n)
+            {
+                buf = new char[n];
+            }
+            int pos = hex(salt, 0);
+            buf[pos++] = ':';
+            c.getChars(0, c.length(), buf, pos);
+            pos += c.length();
+            buf[pos++] = ':';
+            pos = hex(dk, pos);
+            String s = new String(buf, 0, pos);
+            Arrays.fill(buf, 0, pos, '\0');
+            return s;
+        }
+
+        private int hex(byte[] b, int pos)
+        {
+            for (int i = 0; i < b.length; i++)
+            {
+                buf[pos++] = BinTools.hex.charAt((b[i] >> 4) & 15);
+                buf[pos++] = BinTools.hex.charAt(b[i] & 15);
+            }
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pseudorandom Function that accepts input from heap or direct
+ * {@link ByteBuffer}s and writes its output into a caller-supplied array, so
+ * that the PBKDF2 inner loop runs without allocation.
+ *
+ * @see PBKDF2Engine#deriveKey(ByteBuffer, ByteBuffer, int, ByteBuffer)
+ * @author Matthias G&auml;rtner
+ */
+public interface ByteBufferPRF extends PRF
+{
+    /**
+     * Initialize this instance with the user-supplied password.
+     *
+     * @param P
+     *            The password octets between position and limit. The position
+     *            is left unchanged.
+     */
+    public void init(ByteBuffer P);
+
+    /**
+     * Feed message bytes into the current computation.
+     *
+     * @param M
+     *            Input data between position and limit. The position is left
+     *            unchanged.
+     */
+    public void update(ByteBuffer M);
+
+    /**
+     * Feed message bytes into the current computation.
+     *
+     * @param M
+     *            Input data
+     * @param offset
+     *            Offset into M
+     * @param len
+     *            Number of bytes to use
+     */
+    public void update(byte[] M, int offset, int len);
+
+    /**
+     * Complete the current computation and reset for the next one.
+     *
+     * @param dest
+     *            Receives hLen bytes of output. May be the same array that
+     *            was passed to {@link #update(byte[], int, int)}.
+     * @param offset
+     *            Offset into dest
+     */
+    public void doFinal(byte[] dest, int offset);
+}
@@ -0,0 +1,63 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.IOException;
+
+/**
+ * Storage for derivation checkpoints, see {@link CheckpointedDerivation}.
+ * <p>
+ * A checkpoint contains the intermediate PBKDF2 values in clear and allows
+ * finishing the derivation without the password. Implementations must
+ * encrypt the data, for example with a key held by a key management service,
+ * unless the storage itself is as well protected as the derived key.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public interface CheckpointSink
+{
+    /**
+     * Read the last saved checkpoint.
+     *
+     * @return Checkpoint data, <code>null</code> if none.
+     * @throws IOException
+     *             on storage errors
+     */
+    public byte[] load() throws IOException;
+
+    /**
+     * Replace the saved checkpoint.
+     *
+     * @param checkpoint
+     *            Checkpoint data. The caller wipes the array after return.
+     * @throws IOException
+     *             on storage errors
+     */
+    public void save(byte[] checkpoint) throws IOException;
+
+    /**
+     * Wipe and remove the saved checkpoint, if any.
+     *
+     * @throws IOException
+     *             on storage errors
+     */
+    public void clear() throws IOException;
+}
@@ -0,0 +1,180 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Long-running derivation that periodically saves its state and resumes from
+ * it after a restart.
+ * <p>
+ * Intended for very high iteration counts, i.e. keys for backup encryption.
+ * The derivation runs in slices of {@link #getSliceIterations()} iterations;
+ * at least every {@link #getIntervalMillis()} milliseconds the current
+ * {@link PBKDF2State} is written to the {@link CheckpointSink}. When the
+ * thread is interrupted, a final checkpoint is written before
+ * {@link DerivationAbortedException} is thrown, so that a graceful shutdown
+ * loses no work. On completion the checkpoint is wiped.
+ * <p>
+ * A checkpoint that is corrupt or does not match the inputs (salt,
+ * iteration count or key length) is ignored and the derivation starts over.
+ * A checkpoint written for another password cannot be told apart and yields
+ * a wrong key; clear the sink when the password changes.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class CheckpointedDerivation
+{
+    public static final int DEFAULT_SLICE_ITERATIONS = 10000;
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 10000;
+
+    protected final PBKDF2Engine engine;
+
+    protected final CheckpointSink sink;
+
+    protected int sliceIterations = DEFAULT_SLICE_ITERATIONS;
+
+    protected long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    /**
+     * Constructor.
+     *
+     * @param engine
+     *            Engine with parameters set.
+     * @param sink
+     *            Checkpoint storage.
+     */
+    public CheckpointedDerivation(PBKDF2Engine engine, CheckpointSink sink)
+    {
+        this.engine = engine;
+        this.sink = sink;
+    }
+
+    /**
+     * Derive key, resuming from a saved checkpoint if there is one.
+     *
+     * @param inputPassword
+     *            Password
+     * @param dkLen
+     *            Desired key length, 0 means PRF block size.
+     * @return Derived key
+     * @throws IOException
+     *             Checkpoint storage failed.
+     * @throws DerivationAbortedException
+     *             Thread interrupted; state was saved.
+     */
+    public byte[] deriveKey(String inputPassword, int dkLen) throws IOException
+    {
+        PBKDF2State state = null;
+        byte[] checkpoint = sink.load();
+        if (checkpoint != null)
+        {
+            try
+            {
+                state = engine.resumeDerivation(inputPassword, dkLen, checkpoint);
+            }
+            catch (IllegalArgumentException e)
+            {
+                state = null;
+            }
+            finally
+            {
+                Arrays.fill(checkpoint, (byte) 0);
+            }
+        }
+        if (state == null)
+        {
+            state = engine.startDerivation(inputPassword, dkLen);
+        }
+        try
+        {
+            long next = System.currentTimeMillis() + intervalMillis;
+            while (!engine.advance(state, sliceIterations))
+            {
+                boolean interrupted = Thread.currentThread().isInterrupted();
+                if (interrupted || System.currentTimeMillis() >= next)
+                {
+                    save(state);
+                    next = System.currentTimeMillis() + intervalMillis;
+                }
+                if (interrupted)
+                {
+                    throw new DerivationAbortedException(
+                            "Derivation interrupted, checkpoint saved", false);
+                }
+            }
+            byte[] dk = state.getDerivedKey();
+            sink.clear();
+            return dk;
+        }
+        finally
+        {
+            state.destroy();
+        }
+    }
+
+    private void save(PBKDF2State state) throws IOException
+    {
+        byte[] checkpoint = state.toCheckpoint();
+        try
+        {
+            sink.save(checkpoint);
+        }
+        finally
+        {
+            Arrays.fill(checkpoint, (byte) 0);
+        }
+    }
+
+    public int getSliceIterations()
+    {
+        return sliceIterations;
+    }
+
+    /**
+     * @param sliceIterations
+     *            Iterations between checks, positive.
+     */
+    public void setSliceIterations(int sliceIterations)
+    {
+        if (sliceIterations <= 0)
+        {
+            throw new IllegalArgumentException("Slice size must be positive.");
+        }
+        this.sliceIterations = sliceIterations;
+    }
+
+    public long getIntervalMillis()
+    {
+        return intervalMillis;
+    }
+
+    /**
+     * @param intervalMillis
+     *            Minimum time between checkpoints in milliseconds.
+     */
+    public void setIntervalMillis(long intervalMillis)
+    {
+        this.intervalMillis = intervalMillis;
+    }
+}
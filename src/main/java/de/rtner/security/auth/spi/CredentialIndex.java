@@ -0,0 +1,144 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Open-addressing username index shared by {@link MappedCredentialStore} and
+ * {@link PackedCredentialTable}: FNV-1a over the UTF-8 username, linear
+ * probing over a power-of-two number of int slots. A slot holds the record
+ * number plus one, {@link #EMPTY} or {@link #TOMBSTONE}. Subclasses provide
+ * the slot and username storage.
+ *
+ * @author Matthias G&auml;rtner
+ */
+abstract class CredentialIndex
+{
+    static final int EMPTY = 0;
+
+    static final int TOMBSTONE = -1;
+
+    abstract int getSlotCount();
+
+    abstract int getSlot(int i);
+
+    abstract int getUsernameLength(int n);
+
+    abstract byte getUsernameByte(int n, int j);
+
+    /**
+     * @return Index slot referring to the user's record, or -1.
+     */
+    int find(byte[] u)
+    {
+        int slots = getSlotCount();
+        int mask = slots - 1;
+        for (int i = hash(u, 0, u.length) & mask, probes = 0; probes < slots; i = (i + 1) & mask, probes++)
+        {
+            int v = getSlot(i);
+            if (v == EMPTY)
+            {
+                return -1;
+            }
+            if (v != TOMBSTONE && matches(v - 1, u))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return First empty or deleted slot in the user's probe sequence.
+     */
+    int freeSlot(byte[] u)
+    {
+        int mask = getSlotCount() - 1;
+        int i = hash(u, 0, u.length) & mask;
+        for (;;)
+        {
+            int v = getSlot(i);
+            if (v == EMPTY || v == TOMBSTONE)
+            {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if record n holds username u.
+     */
+    boolean matches(int n, byte[] u)
+    {
+        if (getUsernameLength(n) != u.length)
+        {
+            return false;
+        }
+        for (int j = 0; j < u.length; j++)
+        {
+            if (getUsernameByte(n, j) != u[j])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Power of two, at least twice the number of records.
+     */
+    static int slotsFor(int records)
+    {
+        int s = 16;
+        while (s < 2 * records)
+        {
+            s <<= 1;
+        }
+        return s;
+    }
+
+    /**
+     * FNV-1a.
+     */
+    static int hash(byte[] b, int offset, int length)
+    {
+        int h = 0x811C9DC5;
+        for (int j = offset; j < offset + length; j++)
+        {
+            h = (h ^ (b[j] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    static byte[] encode(String username)
+    {
+        try
+        {
+            return username.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
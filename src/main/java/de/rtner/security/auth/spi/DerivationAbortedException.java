@@ -0,0 +1,59 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+/**
+ * Thrown when a derivation is abandoned before completion, because the thread
+ * was interrupted or the deadline passed.
+ *
+ * @see InterruptiblePBKDF2Engine
+ * @author Matthias G&auml;rtner
+ */
+public class DerivationAbortedException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final boolean timeout;
+
+    /**
+     * Constructor.
+     *
+     * @param message
+     *            Detail message
+     * @param timeout
+     *            <code>true</code> deadline passed, <code>false</code> thread
+     *            interrupted
+     */
+    public DerivationAbortedException(String message, boolean timeout)
+    {
+        super(message);
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return <code>true</code> if the deadline passed, <code>false</code> if
+     *         the thread was interrupted.
+     */
+    public boolean isTimeout()
+    {
+        return timeout;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many derivations on a small, fixed set of threads in slices of a fixed
+ * number of iterations.
+ * <p>
+ * Instead of running one derivation to completion while others queue behind
+ * it, each worker thread advances a derivation by one slice, then puts it back
+ * into the run queue. Ordering is either round-robin (every open derivation
+ * progresses at the same rate) or earliest-deadline-first (latency-critical
+ * logins overtake batch work, which still uses all idle capacity).
+ * Derivations whose deadline passes are completed with
+ * {@link DerivationAbortedException} without spending further CPU.
+ *
+ * @see PBKDF2State
+ * @author Matthias G&auml;rtner
+ */
+public class DerivationScheduler
+{
+    /**
+     * Default slice size in iterations.
+     */
+    public static final int DEFAULT_SLICE_ITERATIONS = 1000;
+
+    protected final int sliceIterations;
+
+    private final PriorityBlockingQueue<Task<?>> queue;
+
+    private final Thread[] workers;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Constructor. Starts the worker threads (daemons).
+     *
+     * @param threads
+     *            Number of worker threads, usually the number of cores
+     *            dedicated to hashing.
+     * @param sliceIterations
+     *            Iterations per slice, positive.
+     * @param earliestDeadlineFirst
+     *            <code>true</code> order by deadline, <code>false</code>
+     *            round-robin.
+     */
+    public DerivationScheduler(int threads, int sliceIterations,
+            boolean earliestDeadlineFirst)
+    {
+        if (threads <= 0 || sliceIterations <= 0)
+        {
+            throw new IllegalArgumentException("Threads and slice size must be positive.");
+        }
+        this.sliceIterations = sliceIterations;
+        this.queue = new PriorityBlockingQueue<Task<?>>(64,
+                earliestDeadlineFirst ? EDF : ROUND_ROBIN);
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    work();
+                }
+            }, "PBKDF2-scheduler-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Submit a derivation.
+     *
+     * @param engine
+     *            Engine with parameters set. Used exclusively by this
+     *            derivation until it completes.
+     * @param inputPassword
+     *            Candidate password
+     * @param dkLen
+     *            Desired key length, 0 means PRF block size.
+     * @param deadline
+     *            Absolute deadline as System.currentTimeMillis(), 0 for none.
+     * @return Future derived key
+     */
+    public Future<byte[]> submit(PBKDF2Engine engine, String inputPassword,
+            int dkLen, long deadline)
+    {
+        Task<byte[]> t = new Task<byte[]>(engine, inputPassword, dkLen, deadline)
+        {
+            @Override
+            byte[] result(byte[] dk)
+            {
+                return dk;
+            }
+        };
+        enqueue(t);
+        return t;
+    }
+
+    /**
+     * Submit a verification against the derived key held in the engine's
+     * parameters.
+     *
+     * @param engine
+     *            Engine with parameters, including the reference derived
+     *            key, set. Used exclusively by this verification.
+     * @param inputPassword
+     *            Candidate password
+     * @param deadline
+     *            Absolute deadline as System.currentTimeMillis(), 0 for none.
+     * @return Future verification result
+     */
+    public Future<Boolean> submitVerify(PBKDF2Engine engine,
+            String inputPassword, long deadline)
+    {
+        final byte[] referenceKey = engine.getParameters().getDerivedKey();
+        int dkLen = (referenceKey == null) ? 0 : referenceKey.length;
+        Task<Boolean> t = new Task<Boolean>(engine, inputPassword, dkLen, deadline)
+        {
+            @Override
+            Boolean result(byte[] dk)
+            {
+                return Boolean.valueOf(referenceKey != null
+                        && referenceKey.length > 0
+                        && PBKDF2Engine.isEqual(dk, referenceKey));
+            }
+        };
+        enqueue(t);
+        return t;
+    }
+
+    /**
+     * Stop the worker threads. Open derivations are cancelled.
+     */
+    public void shutdown()
+    {
+        shutdown = true;
+        for (Thread w : workers)
+        {
+            w.interrupt();
+        }
+        Task<?> t;
+        while ((t = queue.poll()) != null)
+        {
+            t.cancel(false);
+            t.discard();
+        }
+    }
+
+    /**
+     * @return Number of derivations waiting for their next slice.
+     */
+    public int getQueueLength()
+    {
+        return queue.size();
+    }
+
+    private void enqueue(Task<?> t)
+    {
+        if (shutdown)
+        {
+            throw new IllegalStateException("Scheduler is shut down");
+        }
+        t.seq = sequence.incrementAndGet();
+        queue.add(t);
+    }
+
+    private void work()
+    {
+        while (!shutdown)
+        {
+            Task<?> t;
+            try
+            {
+                t = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            if (t.runSlice(sliceIterations))
+            {
+                continue;
+            }
+            if (shutdown)
+            {
+                t.cancel(false);
+                t.discard();
+                break;
+            }
+            t.seq = sequence.incrementAndGet();
+            queue.add(t);
+        }
+    }
+
+    private static final Comparator<Task<?>> ROUND_ROBIN = new Comparator<Task<?>>()
+    {
+        public int compare(Task<?> a, Task<?> b)
+        {
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Task<?>> EDF = new Comparator<Task<?>>()
+    {
+        public int compare(Task<?> a, Task<?> b)
+        {
+            long da = (a.deadline == 0) ? Long.MAX_VALUE : a.deadline;
+            long db = (b.deadline == 0) ? Long.MAX_VALUE : b.deadline;
+            if (da != db)
+            {
+                return da < db ? -1 : 1;
+            }
+            return ROUND_ROBIN.compare(a, b);
+        }
+    };
+
+    /**
+     * One scheduled derivation and its Future.
+     */
+    abstract static class Task<V> implements Future<V>
+    {
+        final PBKDF2Engine engine;
+
+        final long deadline;
+
+        /**
+         * Queue position, reassigned on each enqueue.
+         */
+        volatile long seq;
+
+        private String inputPassword;
+
+        private final int dkLen;
+
+        private PBKDF2State state;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * Set once by whichever of completion, failure or cancellation comes
+         * first.
+         */
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private volatile boolean cancelled = false;
+
+        private V value;
+
+        private Throwable failure;
+
+        Task(PBKDF2Engine engine, String inputPassword, int dkLen, long deadline)
+        {
+            this.engine = engine;
+            this.inputPassword = inputPassword;
+            this.dkLen = dkLen;
+            this.deadline = deadline;
+        }
+
+        abstract V result(byte[] dk);
+
+        /**
+         * Run one slice. Only ever called by one worker at a time.
+         *
+         * @return <code>true</code> if the task is finished.
+         */
+        boolean runSlice(int sliceIterations)
+        {
+            if (!isDone())
+            {
+                try
+                {
+                    if (deadline != 0 && System.currentTimeMillis() >= deadline)
+                    {
+                        throw new DerivationAbortedException("Derivation deadline exceeded", true);
+                    }
+                    if (state == null)
+                    {
+                        state = engine.startDerivation(inputPassword, dkLen);
+                        inputPassword = null;
+                    }
+                    if (!engine.advance(state, sliceIterations))
+                    {
+                        return false;
+                    }
+                    finish(result(state.getDerivedKey()), null, false);
+                }
+                catch (Throwable e)
+                {
+                    // Errors included: the worker survives and the caller
+                    // must not wait forever
+                    finish(null, e, false);
+                }
+            }
+            discard();
+            return true;
+        }
+
+        /**
+         * Wipe intermediate state. Only called while no worker runs a slice
+         * of this task.
+         */
+        void discard()
+        {
+            inputPassword = null;
+            if (state != null)
+            {
+                state.destroy();
+                state = null;
+            }
+        }
+
+        /**
+         * Complete the task unless it already is.
+         *
+         * @return <code>true</code> if this call completed the task.
+         */
+        private boolean finish(V v, Throwable t, boolean cancel)
+        {
+            if (!completed.compareAndSet(false, true))
+            {
+                return false;
+            }
+            value = v;
+            failure = t;
+            cancelled = cancel;
+            done.countDown();
+            return true;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return finish(null, new CancellationException(), true);
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        public boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+
+        public V get() throws InterruptedException, ExecutionException
+        {
+            done.await();
+            return report();
+        }
+
+        public V get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException
+        {
+            if (!done.await(timeout, unit))
+            {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private V report() throws ExecutionException
+        {
+            if (cancelled)
+            {
+                throw new CancellationException();
+            }
+            if (failure != null)
+            {
+                throw new ExecutionException(failure);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Checkpoint storage in a local file. The data is not encrypted; use this
+ * class only on storage that is encrypted and access-controlled, or wrap it
+ * in an encrypting {@link CheckpointSink}.
+ * <p>
+ * Saving writes a temporary file next to the target and renames it, so that
+ * a crash never leaves a torn checkpoint. Clearing overwrites the file with
+ * zeros before deleting it. On copy-on-write file systems and flash storage
+ * overwriting does not guarantee that old blocks are gone; place the file on
+ * encrypted storage where that matters.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class FileCheckpointSink implements CheckpointSink
+{
+    protected final File file;
+
+    public FileCheckpointSink(File file)
+    {
+        this.file = file;
+    }
+
+    public byte[] load() throws IOException
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            byte[] r = new byte[(int) raf.length()];
+            raf.readFully(r);
+            return r;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    public void save(byte[] checkpoint) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try
+        {
+            out.write(checkpoint);
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+        {
+            // Windows does not rename over an existing file
+            wipe(file);
+            if (!tmp.renameTo(file))
+            {
+                wipe(tmp);
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    public void clear() throws IOException
+    {
+        wipe(file);
+        wipe(new File(file.getPath() + ".tmp"));
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    private static void wipe(File f) throws IOException
+    {
+        if (!f.exists())
+        {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try
+        {
+            raf.write(new byte[(int) raf.length()]);
+            raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+        if (!f.delete())
+        {
+            throw new IOException("Unable to delete " + f);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+/**
+ * PBKDF2 engine that acquires its iterations from an
+ * {@link IterationGovernor} in chunks of {@link #getCheckInterval()}
+ * iterations before running them. Interrupt and deadline checks of
+ * {@link InterruptiblePBKDF2Engine} apply, including while waiting for budget.
+ * <p>
+ * By default the process-wide governor is used with interactive priority;
+ * without a configured governor this engine behaves like its base class.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class GovernedPBKDF2Engine extends InterruptiblePBKDF2Engine
+{
+    /**
+     * Default chunk size; larger than the interrupt check interval to keep
+     * governor traffic low.
+     */
+    public static final int DEFAULT_CHUNK = 8192;
+
+    protected IterationGovernor governor = IterationGovernor.getDefault();
+
+    protected IterationGovernor.Priority priority = IterationGovernor.Priority.INTERACTIVE;
+
+    public GovernedPBKDF2Engine()
+    {
+        super();
+        checkInterval = DEFAULT_CHUNK;
+    }
+
+    public GovernedPBKDF2Engine(PBKDF2Parameters parameters)
+    {
+        super(parameters);
+        checkInterval = DEFAULT_CHUNK;
+    }
+
+    public GovernedPBKDF2Engine(PBKDF2Parameters parameters, PRF prf)
+    {
+        super(parameters, prf);
+        checkInterval = DEFAULT_CHUNK;
+    }
+
+    @Override
+    protected int beginSlice(int remaining)
+    {
+        int n = super.beginSlice(remaining);
+        if (governor != null)
+        {
+            governor.acquire(n, priority, deadline);
+        }
+        return n;
+    }
+
+    public IterationGovernor getGovernor()
+    {
+        return governor;
+    }
+
+    /**
+     * @param governor
+     *            Governor to use, <code>null</code> disables metering.
+     */
+    public void setGovernor(IterationGovernor governor)
+    {
+        this.governor = governor;
+    }
+
+    public IterationGovernor.Priority getPriority()
+    {
+        return priority;
+    }
+
+    public void setPriority(IterationGovernor.Priority priority)
+    {
+        this.priority = priority;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+/**
+ * PBKDF2 engine that can be abandoned while it runs.
+ * <p>
+ * Every {@link #getCheckInterval()} iterations the engine checks the current
+ * thread's interrupt flag and the optional deadline. If either fires it throws
+ * {@link DerivationAbortedException}. The interrupt flag is left set so that
+ * the caller's thread pool sees it, too.
+ * <p>
+ * Results are identical to {@link PBKDF2Engine}. Like that class, instances
+ * are not thread-safe.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class InterruptiblePBKDF2Engine extends PBKDF2Engine
+{
+    /**
+     * Default number of iterations between checks.
+     */
+    public static final int DEFAULT_CHECK_INTERVAL = 1024;
+
+    protected int checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    /**
+     * Absolute deadline as returned by System.currentTimeMillis(), 0 for none.
+     */
+    protected long deadline = 0;
+
+    public InterruptiblePBKDF2Engine()
+    {
+        super();
+    }
+
+    public InterruptiblePBKDF2Engine(PBKDF2Parameters parameters)
+    {
+        super(parameters);
+    }
+
+    public InterruptiblePBKDF2Engine(PBKDF2Parameters parameters, PRF prf)
+    {
+        super(parameters, prf);
+    }
+
+    @Override
+    protected int beginSlice(int remaining)
+    {
+        if (Thread.currentThread().isInterrupted())
+        {
+            throw new DerivationAbortedException("Derivation interrupted", false);
+        }
+        if (deadline != 0 && System.currentTimeMillis() >= deadline)
+        {
+            throw new DerivationAbortedException("Derivation deadline exceeded", true);
+        }
+        return Math.min(remaining, checkInterval);
+    }
+
+    public int getCheckInterval()
+    {
+        return checkInterval;
+    }
+
+    /**
+     * Set the number of iterations between checks.
+     *
+     * @param checkInterval
+     *            Must be positive.
+     */
+    public void setCheckInterval(int checkInterval)
+    {
+        if (checkInterval <= 0)
+        {
+            throw new IllegalArgumentException("Check interval must be positive.");
+        }
+        this.checkInterval = checkInterval;
+    }
+
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    /**
+     * Set the absolute deadline.
+     *
+     * @param deadline
+     *            Point in time as System.currentTimeMillis(), 0 for none.
+     */
+    public void setDeadline(long deadline)
+    {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Convenience: set the deadline relative to now.
+     *
+     * @param timeoutMillis
+     *            Milliseconds from now. 0 or less removes the deadline.
+     */
+    public void setTimeout(long timeoutMillis)
+    {
+        this.deadline = (timeoutMillis > 0) ? System.currentTimeMillis()
+                + timeoutMillis : 0;
+    }
+}
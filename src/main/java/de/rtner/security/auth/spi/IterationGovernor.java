@@ -0,0 +1,336 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Process-wide meter for PBKDF2 work: a token bucket of PRF iterations.
+ * <p>
+ * The bucket refills at {@link #getRate()} iterations per second up to
+ * {@link #getBurst()}. Derivations acquire budget in chunks (see
+ * {@link GovernedPBKDF2Engine}); a grant may overdraw the bucket, later
+ * requests then wait until the debt is repaid. Thus the long-run rate never
+ * exceeds the configured one, which caps the share of the node's CPU spent on
+ * hashing. Choose the rate as <i>share &times; cores &times; iterations per
+ * second per core</i>.
+ * <p>
+ * Two priority classes exist. Batch work is only granted while at least
+ * {@link #getBatchReserve()} iterations remain, so that interactive logins
+ * find budget even under a bulk load. Each class has a maximum wait; when
+ * exceeded, the acquisition is rejected with
+ * {@link DerivationAbortedException}. Grants, waits and rejects are counted
+ * per class and visible via JMX once {@link #register()} was called.
+ * <p>
+ * The default instance is configured with system properties
+ * <code>pbkdf2.governor.rate</code> (no governor if unset),
+ * <code>pbkdf2.governor.burst</code> (default: one second's worth),
+ * <code>pbkdf2.governor.interactiveMaxWait</code> and
+ * <code>pbkdf2.governor.batchMaxWait</code> (milliseconds).
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class IterationGovernor implements IterationGovernorMXBean
+{
+    /**
+     * Priority class of a derivation.
+     */
+    public static enum Priority
+    {
+        INTERACTIVE, BATCH
+    }
+
+    private static final Logger LOG = Logger.getLogger(IterationGovernor.class.getName());
+
+    private static IterationGovernor defaultGovernor;
+
+    private static boolean defaultInitialized = false;
+
+    protected final long rate;
+
+    protected final long burst;
+
+    protected long batchReserve;
+
+    protected long interactiveMaxWait = 1000;
+
+    protected long batchMaxWait = 60000;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    private final long[] granted = new long[2];
+
+    private final long[] waits = new long[2];
+
+    private final long[] waitNanos = new long[2];
+
+    private final long[] rejects = new long[2];
+
+    /**
+     * Constructor. The bucket starts full.
+     *
+     * @param rate
+     *            Iterations per second, positive.
+     * @param burst
+     *            Bucket capacity in iterations, positive.
+     */
+    public IterationGovernor(long rate, long burst)
+    {
+        if (rate <= 0 || burst <= 0)
+        {
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.batchReserve = burst / 2;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Process-wide instance, created on first call from system properties.
+     *
+     * @return Governor, <code>null</code> if none configured.
+     */
+    public static synchronized IterationGovernor getDefault()
+    {
+        if (!defaultInitialized)
+        {
+            defaultInitialized = true;
+            Long r = Long.getLong("pbkdf2.governor.rate");
+            if (r != null)
+            {
+                IterationGovernor g = new IterationGovernor(r.longValue(),
+                        Long.getLong("pbkdf2.governor.burst", r).longValue());
+                g.setMaxWait(Priority.INTERACTIVE, Long.getLong(
+                        "pbkdf2.governor.interactiveMaxWait", g.interactiveMaxWait).longValue());
+                g.setMaxWait(Priority.BATCH, Long.getLong(
+                        "pbkdf2.governor.batchMaxWait", g.batchMaxWait).longValue());
+                g.register();
+                defaultGovernor = g;
+            }
+        }
+        return defaultGovernor;
+    }
+
+    /**
+     * Replace the process-wide instance.
+     *
+     * @param governor
+     *            New default, <code>null</code> disables metering.
+     */
+    public static synchronized void setDefault(IterationGovernor governor)
+    {
+        defaultInitialized = true;
+        defaultGovernor = governor;
+    }
+
+    /**
+     * Acquire budget, waiting as long as the priority class allows.
+     *
+     * @param iterations
+     *            Iterations about to run.
+     * @param priority
+     *            Priority class
+     * @param deadline
+     *            Absolute deadline of the caller as System.currentTimeMillis(),
+     *            0 for none. The wait never extends past it.
+     * @throws DerivationAbortedException
+     *             Budget not available in time, or thread interrupted while
+     *             waiting.
+     */
+    public void acquire(int iterations, Priority priority, long deadline)
+    {
+        int k = priority.ordinal();
+        long reserve = (priority == Priority.BATCH) ? batchReserve : 0;
+        long start = System.nanoTime();
+        long maxWait = (priority == Priority.BATCH) ? batchMaxWait : interactiveMaxWait;
+        long limit = start + maxWait * 1000000L;
+        if (deadline != 0)
+        {
+            limit = Math.min(limit, start + (deadline - System.currentTimeMillis()) * 1000000L);
+        }
+        boolean waited = false;
+        synchronized (this)
+        {
+            for (;;)
+            {
+                long now = System.nanoTime();
+                refill(now);
+                if (tokens > reserve)
+                {
+                    tokens -= iterations;
+                    granted[k] += iterations;
+                    if (waited)
+                    {
+                        waits[k]++;
+                        waitNanos[k] += now - start;
+                    }
+                    return;
+                }
+                long needNanos = (long) ((reserve - tokens + 1) * 1e9 / rate);
+                if (now + needNanos > limit)
+                {
+                    rejects[k]++;
+                    throw new DerivationAbortedException("PBKDF2 iteration budget exhausted", true);
+                }
+                waited = true;
+                try
+                {
+                    long ms = Math.max(1, needNanos / 1000000L);
+                    wait(ms);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new DerivationAbortedException("Derivation interrupted", false);
+                }
+            }
+        }
+    }
+
+    private void refill(long now)
+    {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * 1e-9 * rate);
+        lastRefill = now;
+    }
+
+    /**
+     * Register with the platform MBean server as
+     * <code>de.rtner.PBKDF2:type=IterationGovernor</code>.
+     */
+    public void register()
+    {
+        try
+        {
+            ObjectName name = new ObjectName("de.rtner.PBKDF2:type=IterationGovernor");
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+        catch (Exception e)
+        {
+            LOG.log(Level.WARNING, "Unable to register IterationGovernor MBean", e);
+        }
+    }
+
+    /**
+     * Set the maximum wait of a priority class.
+     *
+     * @param priority
+     *            Priority class
+     * @param millis
+     *            Maximum wait in milliseconds, 0 rejects instead of waiting.
+     */
+    public synchronized void setMaxWait(Priority priority, long millis)
+    {
+        if (priority == Priority.BATCH)
+        {
+            batchMaxWait = millis;
+        }
+        else
+        {
+            interactiveMaxWait = millis;
+        }
+    }
+
+    /**
+     * @return Iterations batch work must leave in the bucket.
+     */
+    public synchronized long getBatchReserve()
+    {
+        return batchReserve;
+    }
+
+    /**
+     * @param batchReserve
+     *            Iterations batch work must leave in the bucket for
+     *            interactive derivations. Default is half the burst.
+     */
+    public synchronized void setBatchReserve(long batchReserve)
+    {
+        this.batchReserve = batchReserve;
+    }
+
+    public long getRate()
+    {
+        return rate;
+    }
+
+    public long getBurst()
+    {
+        return burst;
+    }
+
+    public synchronized long getAvailable()
+    {
+        refill(System.nanoTime());
+        return (long) tokens;
+    }
+
+    public synchronized long getInteractiveGranted()
+    {
+        return granted[0];
+    }
+
+    public synchronized long getInteractiveWaits()
+    {
+        return waits[0];
+    }
+
+    public synchronized long getInteractiveWaitMillis()
+    {
+        return waitNanos[0] / 1000000L;
+    }
+
+    public synchronized long getInteractiveRejects()
+    {
+        return rejects[0];
+    }
+
+    public synchronized long getBatchGranted()
+    {
+        return granted[1];
+    }
+
+    public synchronized long getBatchWaits()
+    {
+        return waits[1];
+    }
+
+    public synchronized long getBatchWaitMillis()
+    {
+        return waitNanos[1] / 1000000L;
+    }
+
+    public synchronized long getBatchRejects()
+    {
+        return rejects[1];
+    }
+}
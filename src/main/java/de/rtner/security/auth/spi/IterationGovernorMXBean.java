@@ -0,0 +1,84 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+/**
+ * Management interface of {@link IterationGovernor}.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public interface IterationGovernorMXBean
+{
+    /**
+     * @return Configured refill rate in iterations per second.
+     */
+    public long getRate();
+
+    /**
+     * @return Bucket capacity in iterations.
+     */
+    public long getBurst();
+
+    /**
+     * @return Currently available iterations, negative while in debt.
+     */
+    public long getAvailable();
+
+    /**
+     * @return Iterations granted to interactive derivations.
+     */
+    public long getInteractiveGranted();
+
+    /**
+     * @return Interactive acquisitions that had to wait.
+     */
+    public long getInteractiveWaits();
+
+    /**
+     * @return Total time interactive derivations spent waiting, milliseconds.
+     */
+    public long getInteractiveWaitMillis();
+
+    /**
+     * @return Interactive acquisitions rejected.
+     */
+    public long getInteractiveRejects();
+
+    /**
+     * @return Iterations granted to batch derivations.
+     */
+    public long getBatchGranted();
+
+    /**
+     * @return Batch acquisitions that had to wait.
+     */
+    public long getBatchWaits();
+
+    /**
+     * @return Total time batch derivations spent waiting, milliseconds.
+     */
+    public long getBatchWaitMillis();
+
+    /**
+     * @return Batch acquisitions rejected.
+     */
+    public long getBatchRejects();
+}
@@ -0,0 +1,96 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * PBKDF2 engine for layered records: PBKDF2 over the password, then PBKDF2
+ * over the resulting derived key using the outer salt and iteration count.
+ * With plain parameters, or an outer iteration count of zero, results are
+ * identical to {@link PBKDF2Engine}.
+ *
+ * @see de.rtner.security.auth.spi.LayeredPBKDF2Parameters
+ * @author Matthias G&auml;rtner
+ */
+public class LayeredPBKDF2Engine extends PBKDF2Engine
+{
+    public LayeredPBKDF2Engine()
+    {
+        super();
+    }
+
+    public LayeredPBKDF2Engine(PBKDF2Parameters parameters)
+    {
+        super(parameters);
+    }
+
+    public LayeredPBKDF2Engine(PBKDF2Parameters parameters, PRF prf)
+    {
+        super(parameters, prf);
+    }
+
+    @Override
+    public byte[] deriveKey(byte[] P, int dkLen)
+    {
+        return wrapKey(super.deriveKey(P, dkLen));
+    }
+
+    /**
+     * Invoke layered PBKDF2 on octets held in buffers: salt and iteration
+     * count given here are those of the inner stage, the outer stage is taken
+     * from the parameters.
+     */
+    @Override
+    public void deriveKey(ByteBuffer P, ByteBuffer S, int c, ByteBuffer out)
+    {
+        byte[] innerKey = new byte[out.remaining()];
+        super.deriveKey(P, S, c, ByteBuffer.wrap(innerKey));
+        byte[] r = wrapKey(innerKey);
+        out.put(r);
+        Arrays.fill(r, (byte) 0);
+    }
+
+    /**
+     * Apply the outer stage to an inner derived key. This is what strengthens
+     * a stored plain record without knowing the password.
+     *
+     * @param innerKey
+     *            Inner stage derived key. Wiped if an outer stage is applied.
+     * @return Outer stage derived key of the same length, or
+     *         <code>innerKey</code> if there is no outer stage.
+     */
+    public byte[] wrapKey(byte[] innerKey)
+    {
+        if (!(parameters instanceof LayeredPBKDF2Parameters)
+                || !((LayeredPBKDF2Parameters) parameters).isLayered())
+        {
+            return innerKey;
+        }
+        LayeredPBKDF2Parameters lp = (LayeredPBKDF2Parameters) parameters;
+        assertPRF(innerKey);
+        byte[] r = PBKDF2(prf, lp.getOuterSalt(), lp.getOuterIterationCount(),
+                innerKey.length);
+        Arrays.fill(innerKey, (byte) 0);
+        return r;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import de.rtner.misc.BinTools;
+
+/**
+ * Hexadecimal encoder/decoder for layered PBKDF2 records.
+ * <p>
+ * Layered records consist of five colon-separated fields:
+ * <ol>
+ * <li>hex-encoded inner salt bytes</li>
+ * <li>inner iteration count, decimal</li>
+ * <li>hex-encoded outer salt bytes</li>
+ * <li>outer iteration count, decimal</li>
+ * <li>hex-encoded derived key bytes</li>
+ * </ol>
+ * Plain three-field records as written by {@link PBKDF2HexFormatter} are
+ * accepted as well, so stores may hold a mix of both during a migration.
+ * Five-field records require {@link LayeredPBKDF2Parameters}.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class LayeredPBKDF2HexFormatter extends PBKDF2HexFormatter
+{
+    @Override
+    public boolean fromString(PBKDF2Parameters p, String s)
+    {
+        if (p == null || s == null)
+        {
+            return true;
+        }
+
+        String[] p12345 = s.split(":");
+        if (p12345.length == 3)
+        {
+            if (p instanceof LayeredPBKDF2Parameters)
+            {
+                ((LayeredPBKDF2Parameters) p).setOuterSalt(null);
+                ((LayeredPBKDF2Parameters) p).setOuterIterationCount(0);
+            }
+            return super.fromString(p, s) || p.getIterationCount() < 0;
+        }
+        if (p12345.length != 5 || !(p instanceof LayeredPBKDF2Parameters))
+        {
+            return true;
+        }
+
+        int c = Integer.parseInt(p12345[1]);
+        int outer = Integer.parseInt(p12345[3]);
+        if (c < 0 || outer < 0)
+        {
+            return true;
+        }
+        LayeredPBKDF2Parameters lp = (LayeredPBKDF2Parameters) p;
+        lp.setSalt(BinTools.hex2bin(p12345[0]));
+        lp.setIterationCount(c);
+        lp.setOuterSalt(BinTools.hex2bin(p12345[2]));
+        lp.setOuterIterationCount(outer);
+        lp.setDerivedKey(BinTools.hex2bin(p12345[4]));
+        return false;
+    }
+
+    @Override
+    public String toString(PBKDF2Parameters p)
+    {
+        if (!(p instanceof LayeredPBKDF2Parameters)
+                || !((LayeredPBKDF2Parameters) p).isLayered())
+        {
+            return super.toString(p);
+        }
+        LayeredPBKDF2Parameters lp = (LayeredPBKDF2Parameters) p;
+        return BinTools.bin2hex(lp.getSalt()) + ":"
+                + String.valueOf(lp.getIterationCount()) + ":"
+                + BinTools.bin2hex(lp.getOuterSalt()) + ":"
+                + String.valueOf(lp.getOuterIterationCount()) + ":"
+                + BinTools.bin2hex(lp.getDerivedKey());
+    }
+}
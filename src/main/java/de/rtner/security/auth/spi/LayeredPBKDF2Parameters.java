@@ -0,0 +1,115 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+/**
+ * Parameter data holder for layered PBKDF2 records.
+ * <p>
+ * A layered record is derived in two stages: the inner stage is plain PBKDF2
+ * over the password with salt and iteration count of the base class. The
+ * outer stage is PBKDF2 over the inner derived key with its own salt and
+ * iteration count. Wrapping lets existing records be strengthened offline,
+ * because only the stored derived key is needed, not the password.
+ * <p>
+ * An outer iteration count of zero means no outer stage, i.e. a plain record.
+ *
+ * @see de.rtner.security.auth.spi.LayeredPBKDF2Engine
+ * @see de.rtner.security.auth.spi.LayeredPBKDF2HexFormatter
+ * @author Matthias G&auml;rtner
+ */
+public class LayeredPBKDF2Parameters extends PBKDF2Parameters
+{
+    protected byte[] outerSalt;
+
+    protected int outerIterationCount;
+
+    /**
+     * Constructor. Defaults as in the base class, no outer stage.
+     */
+    public LayeredPBKDF2Parameters()
+    {
+        super();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param hashAlgorithm
+     *            for example HMacSHA1 or HMacMD5, used by both stages
+     * @param hashCharset
+     *            for example UTF-8
+     * @param salt
+     *            Inner stage salt
+     * @param iterationCount
+     *            Inner stage iteration count
+     * @param outerSalt
+     *            Outer stage salt
+     * @param outerIterationCount
+     *            Outer stage iteration count, zero for none
+     */
+    public LayeredPBKDF2Parameters(String hashAlgorithm, String hashCharset,
+            byte[] salt, int iterationCount, byte[] outerSalt,
+            int outerIterationCount)
+    {
+        super(hashAlgorithm, hashCharset, salt, iterationCount);
+        this.outerSalt = outerSalt;
+        this.outerIterationCount = outerIterationCount;
+    }
+
+    public byte[] getOuterSalt()
+    {
+        return outerSalt;
+    }
+
+    public void setOuterSalt(byte[] outerSalt)
+    {
+        this.outerSalt = outerSalt;
+    }
+
+    public int getOuterIterationCount()
+    {
+        return outerIterationCount;
+    }
+
+    public void setOuterIterationCount(int outerIterationCount)
+    {
+        this.outerIterationCount = outerIterationCount;
+    }
+
+    /**
+     * @return <code>true</code> if an outer stage is configured.
+     */
+    public boolean isLayered()
+    {
+        return outerIterationCount > 0;
+    }
+
+    /**
+     * @return Sum of inner and outer iteration counts, i.e. the number of PRF
+     *         rounds per derived key block. Saturates at Integer.MAX_VALUE so
+     *         that limits on the total cannot be bypassed by overflow.
+     */
+    public int getTotalIterationCount()
+    {
+        long total = (long) iterationCount + (isLayered() ? outerIterationCount : 0);
+        return (int) Math.min(Integer.MAX_VALUE, total);
+    }
+}
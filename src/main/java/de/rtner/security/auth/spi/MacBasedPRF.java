@@ -20,19 +20,24 @@
 
 package de.rtner.security.auth.spi;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Default PRF implementation based on standard javax.crypt.Mac mechanisms.
+ * The {@link ByteBufferPRF} methods map directly onto
+ * {@link Mac#update(ByteBuffer)} and {@link Mac#doFinal(byte[], int)}.
  *
  * @author Matthias G&auml;rtner
  */
-public class MacBasedPRF implements PRF
+public class MacBasedPRF implements ByteBufferPRF
 {
     protected Mac mac;
 
@@ -41,31 +46,39 @@ public class MacBasedPRF implements PRF
     protected String macAlgorithm;
 
     /**
-     * Create Mac-based Pseudo Random Function.
+     * Create Mac-based Pseudo Random Function. The provider is the one pinned
+     * or selected by {@link MacProviderSelector}, if any, else the platform
+     * default.
      *
      * @param macAlgorithm
      *            Mac algorithm to use, i.e. HMacSHA1 or HMacMD5.
      */
     public MacBasedPRF(String macAlgorithm)
     {
-        this.macAlgorithm = macAlgorithm;
-        try
-        {
-            mac = Mac.getInstance(macAlgorithm);
-            hLen = mac.getMacLength();
-        }
-        catch (NoSuchAlgorithmException e)
-        {
-            throw new RuntimeException(e);
-        }
+        this(macAlgorithm, MacProviderSelector.getProvider(macAlgorithm));
     }
 
+    /**
+     * Create Mac-based Pseudo Random Function using a specific provider.
+     *
+     * @param macAlgorithm
+     *            Mac algorithm to use, i.e. HMacSHA1 or HMacMD5.
+     * @param provider
+     *            Provider name. <code>null</code> means platform default.
+     */
     public MacBasedPRF(String macAlgorithm, String provider)
     {
         this.macAlgorithm = macAlgorithm;
         try
         {
-            mac = Mac.getInstance(macAlgorithm, provider);
+            if (provider == null)
+            {
+                mac = Mac.getInstance(macAlgorithm);
+            }
+            else
+            {
+                mac = Mac.getInstance(macAlgorithm, provider);
+            }
             hLen = mac.getMacLength();
         }
         catch (NoSuchAlgorithmException e)
@@ -100,4 +113,44 @@ public class MacBasedPRF implements PRF
             throw new RuntimeException(e);
         }
     }
+
+    public void init(ByteBuffer P)
+    {
+        // SecretKeySpec keeps its own copy of the key, so the scratch array
+        // is wiped right away.
+        byte[] key = new byte[P.remaining()];
+        P.duplicate().get(key);
+        try
+        {
+            init(key);
+        }
+        finally
+        {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    public void update(ByteBuffer M)
+    {
+        int position = M.position();
+        mac.update(M);
+        M.position(position);
+    }
+
+    public void update(byte[] M, int offset, int len)
+    {
+        mac.update(M, offset, len);
+    }
+
+    public void doFinal(byte[] dest, int offset)
+    {
+        try
+        {
+            mac.doFinal(dest, offset);
+        }
+        catch (ShortBufferException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -0,0 +1,333 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.rtner.misc.BinTools;
+
+/**
+ * Chooses the fastest JCA provider for a given Mac algorithm.
+ * <p>
+ * Operators pin a provider per algorithm with the system property
+ * <code>pbkdf2.prf.provider.&lt;algorithm&gt;</code>, for example
+ * <code>-Dpbkdf2.prf.provider.HmacSHA1=SunJCE</code>; code does the same with
+ * {@link #pin(String, String)}, the property taking precedence. Without a
+ * pin and with
+ * <code>-Dpbkdf2.prf.autoselect=true</code>, the first request for an
+ * algorithm briefly benchmarks every installed provider that offers it. Each
+ * candidate must first reproduce known PBKDF2 results: RFC 6070 vectors for
+ * HmacSHA1, the platform default provider's output for other algorithms.
+ * The fastest correct candidate is cached for the lifetime of the class
+ * loader and logged, including the property that pins it.
+ * <p>
+ * {@link MacBasedPRF#MacBasedPRF(String)} consults this class. The library
+ * itself contains no pure-Java HMAC implementation, so the candidates are the
+ * JCA providers.
+ *
+ * @see <a href="http://tools.ietf.org/html/rfc6070">RFC 6070</a>
+ * @author Matthias G&auml;rtner
+ */
+public class MacProviderSelector
+{
+    /**
+     * System property enabling the benchmark on first use.
+     */
+    public static final String AUTOSELECT_PROPERTY = "pbkdf2.prf.autoselect";
+
+    /**
+     * System property prefix for pinning a provider per algorithm.
+     */
+    public static final String PROVIDER_PROPERTY_PREFIX = "pbkdf2.prf.provider.";
+
+    /**
+     * Time spent measuring each candidate, in milliseconds.
+     */
+    public static final long BENCHMARK_MILLIS = 50;
+
+    private static final Logger LOG = Logger.getLogger(MacProviderSelector.class.getName());
+
+    /**
+     * Cached decisions, key is the upper-case algorithm name. An empty value
+     * records &quot;use the platform default&quot;.
+     */
+    private static final ConcurrentMap<String, String> selected = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Providers set by {@link #pin(String, String)}, key is the upper-case
+     * algorithm name.
+     */
+    private static final ConcurrentMap<String, String> pinned = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Salt:iteration-count:DK triples from RFC 6070 for password
+     * &quot;password&quot;.
+     */
+    private static final String[] RFC6070 = {
+        "73616C74:1:0c60c80f961f0e71f3a9b524af6012062fe037a6",
+        "73616C74:2:ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957"
+    };
+
+    private MacProviderSelector()
+    {
+    }
+
+    /**
+     * Provider to use for the given algorithm.
+     *
+     * @param macAlgorithm
+     *            Mac algorithm, i.e. HmacSHA1
+     * @return Provider pinned by system property or by
+     *         {@link #pin(String, String)}, else the benchmark winner if
+     *         auto-selection is enabled, else <code>null</code> (platform
+     *         default).
+     */
+    public static String getProvider(String macAlgorithm)
+    {
+        if (macAlgorithm == null)
+        {
+            return null;
+        }
+        String r = System.getProperty(PROVIDER_PROPERTY_PREFIX + macAlgorithm);
+        if (r != null && r.length() > 0)
+        {
+            return r;
+        }
+        r = pinned.get(key(macAlgorithm));
+        if (r != null)
+        {
+            return r;
+        }
+        if (!Boolean.getBoolean(AUTOSELECT_PROPERTY))
+        {
+            return null;
+        }
+        return select(macAlgorithm);
+    }
+
+    /**
+     * Previously selected provider, without triggering a benchmark.
+     *
+     * @param macAlgorithm
+     *            Mac algorithm, i.e. HmacSHA1
+     * @return Provider name; <code>null</code> if not yet selected or platform
+     *         default.
+     */
+    public static String getSelectedProvider(String macAlgorithm)
+    {
+        String r = selected.get(key(macAlgorithm));
+        return (r == null || r.length() == 0) ? null : r;
+    }
+
+    /**
+     * Use a provider for an algorithm, bypassing the benchmark. Takes effect
+     * whether or not auto-selection is enabled; a pin by system property
+     * still takes precedence.
+     *
+     * @param macAlgorithm
+     *            Mac algorithm, i.e. HmacSHA1
+     * @param provider
+     *            Provider name. <code>null</code> clears the pin and the
+     *            cached decision.
+     */
+    public static void pin(String macAlgorithm, String provider)
+    {
+        String k = key(macAlgorithm);
+        if (provider == null)
+        {
+            pinned.remove(k);
+            selected.remove(k);
+        }
+        else
+        {
+            pinned.put(k, provider);
+            selected.put(k, provider);
+        }
+    }
+
+    /**
+     * Select the fastest correct provider, benchmarking on first use.
+     *
+     * @param macAlgorithm
+     *            Mac algorithm, i.e. HmacSHA1
+     * @return Provider name, <code>null</code> if no candidate passed
+     *         validation.
+     */
+    public static String select(String macAlgorithm)
+    {
+        String k = key(macAlgorithm);
+        String r = selected.get(k);
+        if (r == null)
+        {
+            synchronized (MacProviderSelector.class)
+            {
+                r = selected.get(k);
+                if (r == null)
+                {
+                    r = benchmark(macAlgorithm);
+                    selected.put(k, r);
+                }
+            }
+        }
+        return r.length() == 0 ? null : r;
+    }
+
+    /**
+     * Run validation and benchmark over all candidates.
+     *
+     * @param macAlgorithm
+     *            Mac algorithm
+     * @return Provider name, empty string if none qualifies.
+     */
+    protected static String benchmark(String macAlgorithm)
+    {
+        byte[][] reference = referenceKeys(macAlgorithm);
+        String best = "";
+        long bestOps = -1;
+        StringBuilder sb = new StringBuilder();
+        for (Provider provider : Security.getProviders())
+        {
+            if (provider.getService("Mac", macAlgorithm) == null)
+            {
+                continue;
+            }
+            String name = provider.getName();
+            long ops;
+            try
+            {
+                PRF prf = new MacBasedPRF(macAlgorithm, name);
+                if (!validate(prf, macAlgorithm, reference))
+                {
+                    LOG.warning("Provider " + name + " failed " + macAlgorithm
+                            + " validation, skipped");
+                    continue;
+                }
+                ops = measure(prf);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.log(Level.WARNING, "Provider " + name + " unusable for "
+                        + macAlgorithm, e);
+                continue;
+            }
+            sb.append(' ').append(name).append('=').append(ops);
+            if (ops > bestOps)
+            {
+                bestOps = ops;
+                best = name;
+            }
+        }
+        if (best.length() == 0)
+        {
+            LOG.warning("No provider for " + macAlgorithm
+                    + " passed validation, using platform default");
+        }
+        else
+        {
+            LOG.info("Selected provider " + best + " for " + macAlgorithm
+                    + " (PRF calls per " + BENCHMARK_MILLIS + " ms:" + sb
+                    + "); pin with -D" + PROVIDER_PROPERTY_PREFIX
+                    + macAlgorithm + "=" + best);
+        }
+        return best;
+    }
+
+    /**
+     * Expected derived keys for the validation vectors.
+     *
+     * @param macAlgorithm
+     *            Mac algorithm
+     * @return One expected key per entry of {@link #RFC6070}
+     */
+    private static byte[][] referenceKeys(String macAlgorithm)
+    {
+        byte[][] r = new byte[RFC6070.length][];
+        PBKDF2Formatter f = new PBKDF2HexFormatter();
+        for (int i = 0; i < RFC6070.length; i++)
+        {
+            PBKDF2Parameters p = new PBKDF2Parameters(macAlgorithm, "ISO-8859-1", null, 0);
+            f.fromString(p, RFC6070[i]);
+            if ("HMACSHA1".equals(key(macAlgorithm)))
+            {
+                r[i] = p.getDerivedKey();
+            }
+            else
+            {
+                PRF platformDefault = new MacBasedPRF(macAlgorithm, null);
+                r[i] = new PBKDF2Engine(p, platformDefault).deriveKey("password");
+            }
+        }
+        return r;
+    }
+
+    private static boolean validate(PRF prf, String macAlgorithm, byte[][] reference)
+    {
+        PBKDF2Formatter f = new PBKDF2HexFormatter();
+        for (int i = 0; i < RFC6070.length; i++)
+        {
+            PBKDF2Parameters p = new PBKDF2Parameters(macAlgorithm, "ISO-8859-1", null, 0);
+            f.fromString(p, RFC6070[i]);
+            byte[] dk = new PBKDF2Engine(p, prf).deriveKey("password", reference[i].length);
+            if (!Arrays.equals(dk, reference[i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count chained PRF invocations within the time budget, after a short
+     * warm-up of the same length.
+     */
+    private static long measure(PRF prf)
+    {
+        prf.init(BinTools.hex2bin("70617373776F7264"));
+        byte[] U = new byte[prf.getHLen()];
+        long ops = 0;
+        for (int round = 0; round < 2; round++)
+        {
+            ops = 0;
+            long end = System.nanoTime() + BENCHMARK_MILLIS * 1000000L;
+            while (System.nanoTime() - end < 0)
+            {
+                for (int i = 0; i < 64; i++)
+                {
+                    U = prf.doFinal(U);
+                }
+                ops += 64;
+            }
+        }
+        return ops;
+    }
+
+    private static String key(String macAlgorithm)
+    {
+        return macAlgorithm.toUpperCase(Locale.ENGLISH);
+    }
+}
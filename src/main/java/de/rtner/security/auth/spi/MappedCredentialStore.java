@@ -0,0 +1,561 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Credential store in a memory-mapped file: username to salt, iteration
+ * count, algorithm and derived key.
+ * <p>
+ * Layout: a 64-byte header, an open-addressing hash index of int slots
+ * (linear probing, at least twice as many slots as records), then fixed-size
+ * records of {@value #RECORD_SIZE} bytes:
+ * <ul>
+ * <li>status byte (live or dead), algorithm id (see
+ * {@link PBKDF2Algorithms}), username, salt and key lengths</li>
+ * <li>iteration count, int</li>
+ * <li>UTF-8 username (up to {@value #MAX_USERNAME} bytes), salt (up to
+ * {@value #MAX_SALT}), derived key (up to {@value #MAX_DK})</li>
+ * </ul>
+ * Lookups compare the username in place and copy salt and key directly from
+ * the mapping into the caller's parameter object; no other objects are
+ * created. Writes append a new record and mark the old one dead;
+ * {@link #compact()} rewrites the file with live records only, and is called
+ * automatically when the record area is full.
+ * <p>
+ * Many readers or one writer at a time; this class is thread-safe within a
+ * process. A store opened read-only sees in-place updates by a writer in
+ * another process. A compaction replaces the file; the writer then bumps a
+ * generation counter in the header of the old file, and read-only stores
+ * that find it changed on the next lookup map the new file.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class MappedCredentialStore extends CredentialIndex
+{
+    public static final int MAX_USERNAME = 64;
+
+    public static final int MAX_SALT = 32;
+
+    public static final int MAX_DK = 64;
+
+    public static final int RECORD_SIZE = 176;
+
+    private static final int MAGIC = 0x50424B53; // "PBKS"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int H_CAPACITY = 8;
+
+    private static final int H_SLOTS = 12;
+
+    private static final int H_RECORDS = 16;
+
+    private static final int H_LIVE = 20;
+
+    private static final int H_GENERATION = 24;
+
+    private static final int R_STATUS = 0;
+
+    private static final int R_ALGORITHM = 1;
+
+    private static final int R_USERNAME_LENGTH = 2;
+
+    private static final int R_SALT_LENGTH = 3;
+
+    private static final int R_DK_LENGTH = 4;
+
+    private static final int R_ITERATIONS = 8;
+
+    private static final int R_USERNAME = 12;
+
+    private static final int R_SALT = R_USERNAME + MAX_USERNAME;
+
+    private static final int R_DK = R_SALT + MAX_SALT;
+
+    private static final byte LIVE = 1;
+
+    private static final byte DEAD = 2;
+
+    private final File file;
+
+    private final boolean readOnly;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private MappedByteBuffer buf;
+
+    private int capacity;
+
+    private int slots;
+
+    private int recordBase;
+
+    /**
+     * Generation of the mapped file when it was mapped.
+     */
+    private int generation;
+
+    private MappedCredentialStore(File file, boolean readOnly) throws IOException
+    {
+        this.file = file;
+        this.readOnly = readOnly;
+        map();
+    }
+
+    /**
+     * Create an empty store, replacing an existing file.
+     *
+     * @param file
+     *            Store file
+     * @param capacity
+     *            Initial number of records. The file grows on demand.
+     * @return Store, writable
+     * @throws IOException
+     *             File access failed
+     */
+    public static MappedCredentialStore create(File file, int capacity) throws IOException
+    {
+        format(file, capacity);
+        return new MappedCredentialStore(file, false);
+    }
+
+    /**
+     * Open an existing store.
+     *
+     * @param file
+     *            Store file
+     * @param readOnly
+     *            <code>true</code> to map read-only
+     * @return Store
+     * @throws IOException
+     *             File access failed or not a store file
+     */
+    public static MappedCredentialStore open(File file, boolean readOnly) throws IOException
+    {
+        return new MappedCredentialStore(file, readOnly);
+    }
+
+    private static void format(File file, int capacity) throws IOException
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        int slots = slotsFor(capacity);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            // New length zero-fills index and records
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + 4L * slots + (long) RECORD_SIZE * capacity);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(capacity);
+            raf.writeInt(slots);
+            raf.writeInt(0);
+            raf.writeInt(0);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Map the file. The current mapping is kept if this fails.
+     */
+    private void map() throws IOException
+    {
+        MappedByteBuffer b;
+        RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        try
+        {
+            FileChannel ch = raf.getChannel();
+            b = ch.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, ch.size());
+        }
+        finally
+        {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+        if (b.capacity() < HEADER_SIZE || b.getInt(0) != MAGIC || b.getInt(4) != VERSION)
+        {
+            throw new IOException("Not a credential store: " + file);
+        }
+        int n = b.getInt(H_SLOTS);
+        if (b.capacity() < HEADER_SIZE + 4L * n + (long) RECORD_SIZE * b.getInt(H_CAPACITY))
+        {
+            throw new IOException("Truncated credential store: " + file);
+        }
+        adopt(b);
+    }
+
+    private void adopt(MappedByteBuffer b)
+    {
+        buf = b;
+        capacity = b.getInt(H_CAPACITY);
+        slots = b.getInt(H_SLOTS);
+        recordBase = HEADER_SIZE + 4 * slots;
+        generation = b.getInt(H_GENERATION);
+    }
+
+    /**
+     * Read-only stores: map the file again if a writer has replaced it since
+     * it was mapped. On failure the old mapping stays in use and the next
+     * lookup tries again.
+     */
+    private void remapIfReplaced()
+    {
+        if (!readOnly)
+        {
+            return;
+        }
+        lock.readLock().lock();
+        try
+        {
+            if (buf.getInt(H_GENERATION) == generation)
+            {
+                return;
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try
+        {
+            if (buf.getInt(H_GENERATION) != generation)
+            {
+                map();
+            }
+        }
+        catch (IOException e)
+        {
+            // Keep serving the old mapping
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up a user.
+     *
+     * @param username
+     *            User name
+     * @param p
+     *            On hit, receives algorithm, iteration count, salt and derived
+     *            key. Existing salt and key arrays of matching length are
+     *            reused.
+     * @return <code>true</code> on hit.
+     */
+    public boolean get(String username, PBKDF2Parameters p)
+    {
+        byte[] u = encode(username);
+        remapIfReplaced();
+        lock.readLock().lock();
+        try
+        {
+            int slot = find(u);
+            if (slot < 0)
+            {
+                return false;
+            }
+            int r = recordOffset(buf.getInt(HEADER_SIZE + 4 * slot) - 1);
+            p.setHashAlgorithm(PBKDF2Algorithms.getName(buf.get(r + R_ALGORITHM)));
+            p.setIterationCount(buf.getInt(r + R_ITERATIONS));
+            p.setSalt(read(r + R_SALT, buf.get(r + R_SALT_LENGTH), p.getSalt()));
+            p.setDerivedKey(read(r + R_DK, buf.get(r + R_DK_LENGTH), p.getDerivedKey()));
+            return true;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace a user's record.
+     *
+     * @param username
+     *            User name, at most {@value #MAX_USERNAME} UTF-8 bytes
+     * @param p
+     *            Record: algorithm, iteration count, salt (at most
+     *            {@value #MAX_SALT} bytes) and derived key (at most
+     *            {@value #MAX_DK} bytes)
+     * @throws IOException
+     *             Growing the file failed
+     */
+    public void put(String username, PBKDF2Parameters p) throws IOException
+    {
+        byte[] u = encode(username);
+        byte[] salt = (p.getSalt() != null) ? p.getSalt() : new byte[0];
+        byte[] dk = p.getDerivedKey();
+        int alg = PBKDF2Algorithms.getId(p.getHashAlgorithm());
+        if (u.length == 0 || u.length > MAX_USERNAME || salt.length > MAX_SALT || dk == null
+                || dk.length == 0 || dk.length > MAX_DK)
+        {
+            throw new IllegalArgumentException("Username, salt or key size out of range.");
+        }
+        lock.writeLock().lock();
+        try
+        {
+            assertWritable();
+            if (buf.getInt(H_RECORDS) >= capacity)
+            {
+                compact(Math.max(capacity, 2 * (buf.getInt(H_LIVE) + 1)));
+            }
+            int n = buf.getInt(H_RECORDS);
+            int r = recordOffset(n);
+            buf.put(r + R_ALGORITHM, (byte) alg);
+            buf.put(r + R_USERNAME_LENGTH, (byte) u.length);
+            buf.put(r + R_SALT_LENGTH, (byte) salt.length);
+            buf.put(r + R_DK_LENGTH, (byte) dk.length);
+            buf.putInt(r + R_ITERATIONS, p.getIterationCount());
+            write(r + R_USERNAME, u, MAX_USERNAME);
+            write(r + R_SALT, salt, MAX_SALT);
+            write(r + R_DK, dk, MAX_DK);
+            buf.put(r + R_STATUS, LIVE);
+            buf.putInt(H_RECORDS, n + 1);
+
+            int slot = find(u);
+            if (slot >= 0)
+            {
+                int old = buf.getInt(HEADER_SIZE + 4 * slot) - 1;
+                buf.put(recordOffset(old) + R_STATUS, DEAD);
+            }
+            else
+            {
+                slot = freeSlot(u);
+                buf.putInt(H_LIVE, buf.getInt(H_LIVE) + 1);
+            }
+            buf.putInt(HEADER_SIZE + 4 * slot, n + 1);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a user.
+     *
+     * @param username
+     *            User name
+     * @return <code>true</code> if the user existed.
+     */
+    public boolean remove(String username)
+    {
+        byte[] u = encode(username);
+        lock.writeLock().lock();
+        try
+        {
+            assertWritable();
+            int slot = find(u);
+            if (slot < 0)
+            {
+                return false;
+            }
+            int n = buf.getInt(HEADER_SIZE + 4 * slot) - 1;
+            buf.put(recordOffset(n) + R_STATUS, DEAD);
+            buf.putInt(HEADER_SIZE + 4 * slot, TOMBSTONE);
+            buf.putInt(H_LIVE, buf.getInt(H_LIVE) - 1);
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the file with live records only and a clean index.
+     *
+     * @throws IOException
+     *             File access failed
+     */
+    public void compact() throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            assertWritable();
+            compact(capacity);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy live records into a temporary file, rename it over the store and
+     * adopt its mapping. The current mapping stays in use until the rename
+     * succeeded; on any failure the temporary file is deleted and the store
+     * is unchanged. The new file gets the next generation, which is written
+     * to the old file right after the rename, so that read-only stores
+     * remapping on the change already find the new file.
+     */
+    private void compact(int newCapacity) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean replaced = false;
+        try
+        {
+            MappedCredentialStore target = create(tmp, newCapacity);
+            PBKDF2Parameters p = new PBKDF2Parameters();
+            int n = buf.getInt(H_RECORDS);
+            for (int i = 0; i < n; i++)
+            {
+                int r = recordOffset(i);
+                if (buf.get(r + R_STATUS) != LIVE)
+                {
+                    continue;
+                }
+                byte[] u = new byte[buf.get(r + R_USERNAME_LENGTH)];
+                for (int j = 0; j < u.length; j++)
+                {
+                    u[j] = buf.get(r + R_USERNAME + j);
+                }
+                p.setHashAlgorithm(PBKDF2Algorithms.getName(buf.get(r + R_ALGORITHM)));
+                p.setIterationCount(buf.getInt(r + R_ITERATIONS));
+                p.setSalt(read(r + R_SALT, buf.get(r + R_SALT_LENGTH), null));
+                p.setDerivedKey(read(r + R_DK, buf.get(r + R_DK_LENGTH), null));
+                target.put(new String(u, "UTF-8"), p);
+            }
+            int next = buf.getInt(H_GENERATION) + 1;
+            target.buf.putInt(H_GENERATION, next);
+            target.force();
+            if (!tmp.renameTo(file))
+            {
+                // i.e. Windows, where the old mapping locks the file until GC
+                throw new IOException("Cannot replace " + file + " by " + tmp);
+            }
+            replaced = true;
+            buf.putInt(H_GENERATION, next);
+            buf.force();
+            // The target's mapping now refers to the renamed file
+            adopt(target.buf);
+        }
+        finally
+        {
+            if (!replaced && tmp.isFile())
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Number of users.
+     */
+    public int size()
+    {
+        remapIfReplaced();
+        lock.readLock().lock();
+        try
+        {
+            return buf.getInt(H_LIVE);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write changes to disk.
+     */
+    public void force()
+    {
+        if (!readOnly)
+        {
+            buf.force();
+        }
+    }
+
+    private void assertWritable()
+    {
+        if (readOnly)
+        {
+            throw new IllegalStateException("Store is read-only.");
+        }
+    }
+
+    private int recordOffset(int n)
+    {
+        return recordBase + RECORD_SIZE * n;
+    }
+
+    @Override
+    int getSlotCount()
+    {
+        return slots;
+    }
+
+    @Override
+    int getSlot(int i)
+    {
+        return buf.getInt(HEADER_SIZE + 4 * i);
+    }
+
+    @Override
+    int getUsernameLength(int n)
+    {
+        return buf.get(recordOffset(n) + R_USERNAME_LENGTH) & 0xFF;
+    }
+
+    @Override
+    byte getUsernameByte(int n, int j)
+    {
+        return buf.get(recordOffset(n) + R_USERNAME + j);
+    }
+
+    private byte[] read(int offset, int length, byte[] reuse)
+    {
+        byte[] b = (reuse != null && reuse.length == length) ? reuse : new byte[length];
+        for (int j = 0; j < length; j++)
+        {
+            b[j] = buf.get(offset + j);
+        }
+        return b;
+    }
+
+    private void write(int offset, byte[] b, int max)
+    {
+        for (int j = 0; j < max; j++)
+        {
+            buf.put(offset + j, (j < b.length) ? b[j] : 0);
+        }
+    }
+}
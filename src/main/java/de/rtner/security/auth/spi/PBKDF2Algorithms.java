@@ -0,0 +1,81 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+/**
+ * Registry of one-byte ids for PRF algorithms, used by binary record
+ * layouts. Ids are part of stored data and must never be reassigned.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public final class PBKDF2Algorithms
+{
+    private static final String[] NAMES = { null, "HmacSHA1", "HmacSHA224",
+            "HmacSHA256", "HmacSHA384", "HmacSHA512", "HmacMD5" };
+
+    private PBKDF2Algorithms()
+    {
+    }
+
+    /**
+     * Look up the id of an algorithm.
+     *
+     * @param name
+     *            Algorithm name, case-insensitive (i.e. HMacSHA1).
+     *            <code>null</code> means HmacSHA1, the engine's default.
+     * @return Id between 1 and 127
+     * @throws IllegalArgumentException
+     *             Algorithm has no id
+     */
+    public static int getId(String name)
+    {
+        if (name == null)
+        {
+            return 1;
+        }
+        for (int i = 1; i < NAMES.length; i++)
+        {
+            if (NAMES[i].equalsIgnoreCase(name))
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No id for algorithm " + name);
+    }
+
+    /**
+     * Look up an algorithm by id.
+     *
+     * @param id
+     *            Id as returned by {@link #getId(String)}
+     * @return Algorithm name as understood by javax.crypto.Mac
+     * @throws IllegalArgumentException
+     *             Unknown id
+     */
+    public static String getName(int id)
+    {
+        if (id <= 0 || id >= NAMES.length)
+        {
+            throw new IllegalArgumentException("Unknown algorithm id " + id);
+        }
+        return NAMES[id];
+    }
+}
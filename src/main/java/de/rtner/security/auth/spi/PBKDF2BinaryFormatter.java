@@ -0,0 +1,300 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import de.rtner.misc.BinTools;
+
+/**
+ * Binary PBKDF2 parameter encoder/decoder.
+ * <p>
+ * Layout, all lengths and counts as unsigned LEB128 varints:
+ * <ol>
+ * <li>version byte: 1 plain, 2 layered</li>
+ * <li>algorithm id byte, see {@link PBKDF2Algorithms}</li>
+ * <li>iteration count</li>
+ * <li>salt length, salt bytes</li>
+ * <li>version 2 only: outer iteration count, outer salt length, outer salt
+ * bytes (see {@link LayeredPBKDF2Parameters})</li>
+ * <li>derived key length, derived key bytes</li>
+ * </ol>
+ * A typical HmacSHA1 record takes 33 bytes. The byte[] and ByteBuffer methods
+ * work at the given offset or position without intermediate copies. The
+ * PBKDF2Formatter methods use the hex form of this layout, so the formatter
+ * can also be plugged into the login module.
+ * <p>
+ * The charset is not encoded; set it on the parameters object as with
+ * {@link PBKDF2HexFormatter}. This class is stateless and thread-safe.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class PBKDF2BinaryFormatter implements PBKDF2Formatter
+{
+    public static final int VERSION_PLAIN = 1;
+
+    public static final int VERSION_LAYERED = 2;
+
+    /**
+     * @param p
+     *            Parameters to encode
+     * @return Encoded size in bytes
+     */
+    public int getEncodedLength(PBKDF2Parameters p)
+    {
+        byte[] salt = bytes(p.getSalt());
+        byte[] dk = bytes(p.getDerivedKey());
+        int n = 2 + varintLength(p.getIterationCount())
+                + varintLength(salt.length) + salt.length
+                + varintLength(dk.length) + dk.length;
+        if (isLayered(p))
+        {
+            LayeredPBKDF2Parameters lp = (LayeredPBKDF2Parameters) p;
+            byte[] outerSalt = bytes(lp.getOuterSalt());
+            n += varintLength(lp.getOuterIterationCount())
+                    + varintLength(outerSalt.length) + outerSalt.length;
+        }
+        return n;
+    }
+
+    /**
+     * Encode into a new array.
+     *
+     * @param p
+     *            Parameters to encode
+     * @return Encoded bytes
+     */
+    public byte[] encode(PBKDF2Parameters p)
+    {
+        byte[] b = new byte[getEncodedLength(p)];
+        encode(p, ByteBuffer.wrap(b));
+        return b;
+    }
+
+    /**
+     * Encode into an array.
+     *
+     * @param p
+     *            Parameters to encode
+     * @param dst
+     *            Target, needs {@link #getEncodedLength(PBKDF2Parameters)}
+     *            bytes from <code>offset</code>
+     * @param offset
+     *            Start position
+     * @return Number of bytes written
+     */
+    public int encode(PBKDF2Parameters p, byte[] dst, int offset)
+    {
+        ByteBuffer bb = ByteBuffer.wrap(dst, offset, dst.length - offset);
+        encode(p, bb);
+        return bb.position() - offset;
+    }
+
+    /**
+     * Encode at the buffer's position, which is advanced.
+     *
+     * @param p
+     *            Parameters to encode
+     * @param dst
+     *            Target, heap or direct
+     * @throws java.nio.BufferOverflowException
+     *             Not enough room
+     */
+    public void encode(PBKDF2Parameters p, ByteBuffer dst)
+    {
+        boolean layered = isLayered(p);
+        dst.put((byte) (layered ? VERSION_LAYERED : VERSION_PLAIN));
+        dst.put((byte) PBKDF2Algorithms.getId(p.getHashAlgorithm()));
+        putVarint(dst, p.getIterationCount());
+        putBytes(dst, bytes(p.getSalt()));
+        if (layered)
+        {
+            LayeredPBKDF2Parameters lp = (LayeredPBKDF2Parameters) p;
+            putVarint(dst, lp.getOuterIterationCount());
+            putBytes(dst, bytes(lp.getOuterSalt()));
+        }
+        putBytes(dst, bytes(p.getDerivedKey()));
+    }
+
+    /**
+     * Decode from an array.
+     *
+     * @param p
+     *            Receives algorithm, iteration count, salt and derived key.
+     *            Layered records need a {@link LayeredPBKDF2Parameters}.
+     * @param src
+     *            Source
+     * @param offset
+     *            Start position
+     * @param length
+     *            Bytes available
+     * @return Number of bytes consumed
+     * @throws IllegalArgumentException
+     *             Malformed or truncated input
+     */
+    public int decode(PBKDF2Parameters p, byte[] src, int offset, int length)
+    {
+        ByteBuffer bb = ByteBuffer.wrap(src, offset, length);
+        decode(p, bb);
+        return bb.position() - offset;
+    }
+
+    /**
+     * Decode at the buffer's position, which is advanced past the record.
+     *
+     * @param p
+     *            Receives algorithm, iteration count, salt and derived key.
+     *            Layered records need a {@link LayeredPBKDF2Parameters}.
+     * @param src
+     *            Source, heap or direct
+     * @throws IllegalArgumentException
+     *             Malformed or truncated input
+     */
+    public void decode(PBKDF2Parameters p, ByteBuffer src)
+    {
+        try
+        {
+            int version = src.get();
+            if (version != VERSION_PLAIN && version != VERSION_LAYERED)
+            {
+                throw new IllegalArgumentException("Unsupported version " + version);
+            }
+            if (version == VERSION_LAYERED && !(p instanceof LayeredPBKDF2Parameters))
+            {
+                throw new IllegalArgumentException("Layered record needs LayeredPBKDF2Parameters");
+            }
+            String algorithm = PBKDF2Algorithms.getName(src.get());
+            int iterationCount = getCount(src);
+            byte[] salt = getBytes(src);
+            if (p instanceof LayeredPBKDF2Parameters)
+            {
+                LayeredPBKDF2Parameters lp = (LayeredPBKDF2Parameters) p;
+                lp.setOuterIterationCount(version == VERSION_LAYERED ? getCount(src) : 0);
+                lp.setOuterSalt(version == VERSION_LAYERED ? getBytes(src) : null);
+            }
+            p.setDerivedKey(getBytes(src));
+            p.setHashAlgorithm(algorithm);
+            p.setIterationCount(iterationCount);
+            p.setSalt(salt);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IllegalArgumentException("Truncated record", e);
+        }
+    }
+
+    public String toString(PBKDF2Parameters p)
+    {
+        return BinTools.bin2hex(encode(p));
+    }
+
+    public boolean fromString(PBKDF2Parameters p, String s)
+    {
+        if (p == null || s == null)
+        {
+            return true;
+        }
+        try
+        {
+            byte[] b = BinTools.hex2bin(s);
+            return decode(p, b, 0, b.length) != b.length;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return true;
+        }
+    }
+
+    private static boolean isLayered(PBKDF2Parameters p)
+    {
+        return (p instanceof LayeredPBKDF2Parameters)
+                && ((LayeredPBKDF2Parameters) p).isLayered();
+    }
+
+    private static byte[] bytes(byte[] b)
+    {
+        return (b != null) ? b : new byte[0];
+    }
+
+    private static int varintLength(int v)
+    {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+        {
+            n++;
+        }
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer dst, int v)
+    {
+        while ((v & ~0x7F) != 0)
+        {
+            dst.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        dst.put((byte) v);
+    }
+
+    private static int getVarint(ByteBuffer src)
+    {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            int b = src.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int getCount(ByteBuffer src)
+    {
+        int c = getVarint(src);
+        if (c < 0)
+        {
+            throw new IllegalArgumentException("Negative iteration count");
+        }
+        return c;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] b)
+    {
+        putVarint(dst, b.length);
+        dst.put(b);
+    }
+
+    private static byte[] getBytes(ByteBuffer src)
+    {
+        int n = getVarint(src);
+        if (n < 0 || n > src.remaining())
+        {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        byte[] b = new byte[n];
+        src.get(b);
+        return b;
+    }
+}
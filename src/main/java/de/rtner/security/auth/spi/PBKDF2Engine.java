@@ -20,11 +20,23 @@
 
 package de.rtner.security.auth.spi;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Iterator;
+
+import de.rtner.misc.LineIterator;
+import de.rtner.misc.ParallelMapper;
 
 /**
  * This <b>Password Based Key Derivation Function 2</b> implementation.
@@ -114,9 +126,121 @@ public class PBKDF2Engine implements PBKDF2
     }
 
     public byte[] deriveKey(String inputPassword, int dkLen)
+    {
+        return deriveKey(encodePassword(inputPassword), dkLen);
+    }
+
+    /**
+     * Invoke PBKDF2 on a password that is already available as octets. Useful
+     * for callers that hold passwords in <code>char[]</code> and encode them
+     * themselves, so that no String copy is created.
+     *
+     * @param P
+     *            Password octets. Not modified; the caller may wipe the array
+     *            after this call returns.
+     * @param dkLen
+     *            Specify desired key length, 0 means PRF block size.
+     * @return internal byte array
+     */
+    public byte[] deriveKey(byte[] P, int dkLen)
     {
         byte[] r = null;
-        byte P[] = null;
+        assertPRF(P);
+        if (dkLen == 0)
+        {
+            dkLen = prf.getHLen();
+        }
+        r = PBKDF2(prf, parameters.getSalt(), parameters.getIterationCount(),
+                dkLen);
+        return r;
+    }
+
+    /**
+     * Invoke PBKDF2 on a password held in a heap or direct buffer, using the
+     * configured salt and iteration count. See
+     * {@link #deriveKey(ByteBuffer, ByteBuffer, int, ByteBuffer)}.
+     *
+     * @param P
+     *            Password octets between position and limit, not consumed.
+     * @param out
+     *            Receives the derived key; its remaining space determines
+     *            dkLen.
+     */
+    public void deriveKey(ByteBuffer P, ByteBuffer out)
+    {
+        byte[] S = parameters.getSalt();
+        deriveKey(P, S == null ? null : ByteBuffer.wrap(S),
+                parameters.getIterationCount(), out);
+    }
+
+    /**
+     * Invoke PBKDF2 on octets held in heap or direct buffers and write the
+     * derived key into the caller's buffer. With a {@link ByteBufferPRF} (the
+     * default {@link MacBasedPRF} is one) password and salt are read in place
+     * and the iterations allocate nothing; other PRFs are served by copying
+     * the input to arrays first. Only the hash algorithm is taken from the
+     * parameters.
+     *
+     * @param P
+     *            Password octets between position and limit, not consumed.
+     * @param S
+     *            Salt octets between position and limit, not consumed.
+     *            <code>null</code> means no salt.
+     * @param c
+     *            Iteration count
+     * @param out
+     *            Receives the derived key; its remaining space determines
+     *            dkLen. Its position is advanced past the key.
+     */
+    public void deriveKey(ByteBuffer P, ByteBuffer S, int c, ByteBuffer out)
+    {
+        int dkLen = out.remaining();
+        if (S == null)
+        {
+            S = ByteBuffer.allocate(0);
+        }
+        if (prf == null)
+        {
+            prf = new MacBasedPRF(parameters.getHashAlgorithm());
+        }
+        if (!(prf instanceof ByteBufferPRF))
+        {
+            byte[] p = new byte[P.remaining()];
+            P.duplicate().get(p);
+            byte[] s = new byte[S.remaining()];
+            S.duplicate().get(s);
+            prf.init(p);
+            Arrays.fill(p, (byte) 0);
+            byte[] dk = PBKDF2(prf, s, c, dkLen);
+            out.put(dk);
+            Arrays.fill(dk, (byte) 0);
+            return;
+        }
+        ByteBufferPRF bprf = (ByteBufferPRF) prf;
+        bprf.init(P);
+        int hLen = bprf.getHLen();
+        int l = ceil(dkLen, hLen);
+        byte[] U_r = new byte[hLen];
+        byte[] U_i = new byte[hLen];
+        for (int i = 1; i <= l; i++)
+        {
+            _F(U_r, U_i, bprf, S, c, i);
+            out.put(U_r, 0, Math.min(hLen, out.remaining()));
+        }
+        Arrays.fill(U_r, (byte) 0);
+        Arrays.fill(U_i, (byte) 0);
+    }
+
+    /**
+     * Convert the String password to bytes using the configured character
+     * set, or the platform default if none is configured.
+     *
+     * @param inputPassword
+     *            Candidate password, <code>null</code> is treated as empty.
+     * @return Password octets
+     */
+    protected byte[] encodePassword(String inputPassword)
+    {
         String charset = parameters.getHashCharset();
         if (inputPassword == null)
         {
@@ -126,25 +250,14 @@ public class PBKDF2Engine implements PBKDF2
         {
             if (charset == null)
             {
-                P = inputPassword.getBytes();
-            }
-            else
-            {
-                P = inputPassword.getBytes(charset);
+                return inputPassword.getBytes();
             }
+            return inputPassword.getBytes(charset);
         }
         catch (UnsupportedEncodingException e)
         {
             throw new RuntimeException(e);
         }
-        assertPRF(P);
-        if (dkLen == 0)
-        {
-            dkLen = prf.getHLen();
-        }
-        r = PBKDF2(prf, parameters.getSalt(), parameters.getIterationCount(),
-                dkLen);
-        return r;
     }
 
     public boolean verifyKey(String inputPassword)
@@ -155,7 +268,20 @@ public class PBKDF2Engine implements PBKDF2
             return false;
         }
         byte[] inputKey = deriveKey(inputPassword, referenceKey.length);
+        return isEqual(inputKey, referenceKey);
+    }
 
+    /**
+     * Constant-time comparison of a candidate and a reference key.
+     *
+     * @param inputKey
+     *            Candidate derived key, may be <code>null</code>.
+     * @param referenceKey
+     *            Reference derived key, non-<code>null</code>.
+     * @return <code>true</code> if both have same length and content.
+     */
+    protected static boolean isEqual(byte[] inputKey, byte[] referenceKey)
+    {
         if (inputKey == null || inputKey.length != referenceKey.length)
         {
             return false;
@@ -275,14 +401,189 @@ public class PBKDF2Engine implements PBKDF2
         System.arraycopy(S, 0, U_i, 0, S.length);
         INT(U_i, S.length, blockIndex);
 
-        for (int i = 0; i < c; i++)
+        for (int i = 0; i < c;)
         {
-            U_i = prf.doFinal(U_i);
-            xor(U_r, U_i);
+            int n = beginSlice(c - i);
+            for (int j = 0; j < n; j++)
+            {
+                U_i = prf.doFinal(U_i);
+                xor(U_r, U_i);
+            }
+            i += n;
         }
         System.arraycopy(U_r, 0, dest, offset, hLen);
     }
 
+    /**
+     * Function F on buffer input. Same as
+     * {@link #_F(byte[], int, PRF, byte[], int, int)}, but U_i is kept in a
+     * reused hLen-sized array, so no allocation happens per iteration.
+     *
+     * @param U_r
+     *            Receives the block result, hLen bytes.
+     * @param U_i
+     *            Scratch array, hLen bytes.
+     * @param prf
+     *            Pseudo Random Function, initialized with the password.
+     * @param S
+     *            Salt between position and limit, not consumed.
+     * @param c
+     *            Iteration count
+     * @param blockIndex
+     *            The block index (&gt;= 1).
+     */
+    protected void _F(byte[] U_r, byte[] U_i, ByteBufferPRF prf, ByteBuffer S,
+            int c, int blockIndex)
+    {
+        int hLen = U_r.length;
+        Arrays.fill(U_r, (byte) 0);
+        boolean first = true;
+        for (int i = 0; i < c;)
+        {
+            int n = beginSlice(c - i);
+            for (int j = 0; j < n; j++)
+            {
+                if (first)
+                {
+                    // U0 = S || INT (i);
+                    prf.update(S);
+                    INT(U_i, 0, blockIndex);
+                    prf.update(U_i, 0, 4);
+                    first = false;
+                }
+                else
+                {
+                    prf.update(U_i, 0, hLen);
+                }
+                prf.doFinal(U_i, 0);
+                xor(U_r, U_i);
+            }
+            i += n;
+        }
+    }
+
+    /**
+     * Hook called by {@link #_F} before each run of iterations. The default
+     * runs all remaining iterations in one go. Derived classes return smaller
+     * slices to check conditions, or acquire resources, in between, and abort
+     * the derivation by throwing a RuntimeException.
+     *
+     * @param remaining
+     *            Iterations left for the current block, positive.
+     * @return Number of iterations to run before the next call, between 1 and
+     *         remaining.
+     */
+    protected int beginSlice(int remaining)
+    {
+        return remaining;
+    }
+
+    /**
+     * Begin a derivation that is run in slices by
+     * {@link #advance(PBKDF2State, int)}. The returned state holds this
+     * engine's PRF, so use one engine per concurrently open derivation.
+     *
+     * @param inputPassword
+     *            Candidate password
+     * @param dkLen
+     *            Desired key length, 0 means PRF block size.
+     * @return New state at iteration zero of block one.
+     */
+    public PBKDF2State startDerivation(String inputPassword, int dkLen)
+    {
+        byte[] P = encodePassword(inputPassword);
+        assertPRF(P);
+        if (dkLen == 0)
+        {
+            dkLen = prf.getHLen();
+        }
+        return new PBKDF2State(prf, parameters.getSalt(),
+                parameters.getIterationCount(), dkLen);
+    }
+
+    /**
+     * Continue a derivation from a checkpoint.
+     *
+     * @param inputPassword
+     *            Candidate password, the same that was used to start the
+     *            derivation.
+     * @param dkLen
+     *            Desired key length, 0 means PRF block size.
+     * @param checkpoint
+     *            Data as returned by {@link PBKDF2State#toCheckpoint()}.
+     * @return State as it was when the checkpoint was taken.
+     * @throws IllegalArgumentException
+     *             Checkpoint malformed, or taken for a different salt,
+     *             iteration count, key length or PRF block size.
+     */
+    public PBKDF2State resumeDerivation(String inputPassword, int dkLen,
+            byte[] checkpoint)
+    {
+        byte[] P = encodePassword(inputPassword);
+        assertPRF(P);
+        if (dkLen == 0)
+        {
+            dkLen = prf.getHLen();
+        }
+        PBKDF2State state = new PBKDF2State(prf, checkpoint);
+        if (!state.matches(parameters.getSalt(),
+                parameters.getIterationCount(), dkLen))
+        {
+            state.destroy();
+            throw new IllegalArgumentException("Checkpoint does not match parameters");
+        }
+        return state;
+    }
+
+    /**
+     * Run up to maxIterations further iterations of a derivation, crossing
+     * block boundaries as needed. Calling this repeatedly until it returns
+     * <code>true</code> yields the same derived key as
+     * {@link #deriveKey(String, int)}.
+     *
+     * @param state
+     *            Derivation state, see {@link #startDerivation(String, int)}.
+     * @param maxIterations
+     *            Upper bound of PRF iterations to run in this call.
+     * @return <code>true</code> if the derivation is complete.
+     */
+    public boolean advance(PBKDF2State state, int maxIterations)
+    {
+        int budget = maxIterations;
+        while (!state.isComplete())
+        {
+            if (state.U_i == null)
+            {
+                // U0 = S || INT (i);
+                byte[] U0 = new byte[state.S.length + 4];
+                System.arraycopy(state.S, 0, U0, 0, state.S.length);
+                INT(U0, state.S.length, state.blockIndex);
+                state.U_i = U0;
+            }
+            int n = Math.min(budget, state.c - state.iteration);
+            byte[] U_i = state.U_i;
+            for (int j = 0; j < n; j++)
+            {
+                U_i = state.prf.doFinal(U_i);
+                xor(state.U_r, U_i);
+            }
+            state.U_i = U_i;
+            state.iteration += n;
+            budget -= n;
+            if (state.iteration < state.c)
+            {
+                break;
+            }
+            System.arraycopy(state.U_r, 0, state.T, (state.blockIndex - 1)
+                    * state.hLen, state.hLen);
+            Arrays.fill(state.U_r, (byte) 0);
+            state.U_i = null;
+            state.iteration = 0;
+            state.blockIndex++;
+        }
+        return state.isComplete();
+    }
+
     /**
      * Block-Xor. Xor source bytes into destination byte buffer. Destination
      * buffer must be same length or less than source buffer.
@@ -341,6 +642,19 @@ public class PBKDF2Engine implements PBKDF2
      * <p>
      * The iteration count is configurable. In verification mode, the iteration
      * count supplied in the candidate string must be no less than the
+     * configured one.
+     * <p>
+     * Batch mode (<code>-b [file]</code>) processes one request per line from
+     * the file, or stdin if none is given: a password alone creates a record,
+     * a password followed by a tab and a candidate record verifies it and
+     * yields &quot;OK&quot; or &quot;FAIL&quot;. A record that cannot be
+     * created, i.e. for an empty password, yields &quot;FAIL&quot; as well.
+     * Lines are processed on a worker pool (<code>-t threads</code>, default
+     * one per processor) and results are written to stdout in input order.
+     * The exit code is 1 if any line failed.
+     * <p>
+     * Usage: [-i iterations] password [candidate] | [-i iterations] [-t
+     * threads] -b [file]
      *
      * @param args
      *            Supply the password as argument.
@@ -357,11 +671,47 @@ public class PBKDF2Engine implements PBKDF2
         String candidate = null;
         PBKDF2Formatter formatter = new PBKDF2HexFormatter();
         int iterations = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean batch = false;
 
-        if (args.length >= 2 && args[0].equals("-i"))
+        for (;;)
+        {
+            if (args.length >= 2 && args[0].equals("-i"))
+            {
+                iterations = Integer.parseInt(args[1]);
+                args = Arrays.copyOfRange(args, 2, args.length);
+            }
+            else if (args.length >= 2 && args[0].equals("-t"))
+            {
+                threads = Integer.parseInt(args[1]);
+                args = Arrays.copyOfRange(args, 2, args.length);
+            }
+            else if (args.length >= 1 && args[0].equals("-b"))
+            {
+                batch = true;
+                args = Arrays.copyOfRange(args, 1, args.length);
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (batch)
         {
-            iterations = Integer.parseInt(args[1]);
-            args = Arrays.copyOfRange(args, 2, args.length);
+            InputStream is = (args.length >= 1) ? new FileInputStream(args[0]) : System.in;
+            BufferedReader in = new BufferedReader(new InputStreamReader(is, "ISO-8859-1"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "ISO-8859-1"), 65536);
+            long failed;
+            try
+            {
+                failed = batch(LineIterator.of(in), out, iterations, threads);
+            }
+            finally
+            {
+                out.flush();
+                in.close();
+            }
+            System.exit(failed > 0 ? 1 : 0);
         }
         if (args.length >= 1)
         {
@@ -402,4 +752,110 @@ public class PBKDF2Engine implements PBKDF2
             System.exit(verifyOK ? 0 : 1);
         }
     }
+
+    /**
+     * Batch mode of {@link #main(String[])}: create or verify records for a
+     * stream of lines on a worker pool. Settings as in single mode: HMacSHA1,
+     * ISO-8859-1, 8-byte salt.
+     *
+     * @param lines
+     *            &quot;password&quot; or &quot;password	candidate&quot;
+     * @param out
+     *            One result line per input line, in input order
+     * @param iterations
+     *            Iteration count for new records, minimum for candidates
+     * @param threads
+     *            Number of worker threads
+     * @return Number of failed lines, verifications or creations
+     * @throws IOException
+     *             Writing failed
+     */
+    public static long batch(Iterator<String> lines, Writer out, final int iterations, int threads)
+            throws IOException
+    {
+        final PBKDF2Formatter formatter = new PBKDF2HexFormatter();
+        final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>()
+        {
+            @Override
+            protected SecureRandom initialValue()
+            {
+                try
+                {
+                    return SecureRandom.getInstance("SHA1PRNG");
+                }
+                catch (NoSuchAlgorithmException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        final ThreadLocal<PBKDF2Engine> engines = new ThreadLocal<PBKDF2Engine>()
+        {
+            @Override
+            protected PBKDF2Engine initialValue()
+            {
+                return new PBKDF2Engine();
+            }
+        };
+        ParallelMapper<String, String> mapper = new ParallelMapper<String, String>(threads)
+        {
+            @Override
+            protected String apply(String line)
+            {
+                int tab = line.indexOf('\t');
+                PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", null, iterations);
+                PBKDF2Engine e = engines.get();
+                e.setParameters(p);
+                if (tab < 0)
+                {
+                    byte[] salt = new byte[8];
+                    random.get().nextBytes(salt);
+                    p.setSalt(salt);
+                    try
+                    {
+                        p.setDerivedKey(e.deriveKey(line));
+                    }
+                    catch (IllegalArgumentException ex)
+                    {
+                        // i.e. empty password; keep output aligned with input
+                        return "FAIL";
+                    }
+                    return formatter.toString(p);
+                }
+                boolean verifyOK;
+                try
+                {
+                    verifyOK = !formatter.fromString(p, line.substring(tab + 1))
+                            && p.getIterationCount() >= iterations
+                            && e.verifyKey(line.substring(0, tab));
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    verifyOK = false;
+                }
+                return verifyOK ? "OK" : "FAIL";
+            }
+        };
+        long failed = 0;
+        try
+        {
+            Iterator<String> results = mapper.map(lines);
+            while (results.hasNext())
+            {
+                String r = results.next();
+                if (r.equals("FAIL"))
+                {
+                    failed++;
+                }
+                out.write(r);
+                out.write('\n');
+            }
+            out.flush();
+        }
+        finally
+        {
+            mapper.shutdown();
+        }
+        return failed;
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, expiring cache of decoded stored records: key (i.e. username) to
+ * salt, iteration count and derived key.
+ * <p>
+ * Holding the decoded byte arrays lets a login skip both the database lookup
+ * and the formatter's parse. Least recently used entries are evicted once
+ * {@link #getMaxEntries()} is reached; entries older than
+ * {@link #getTtlMillis()} are ignored and dropped. Tools that change stored
+ * records should call {@link #invalidate(String)}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class PBKDF2ParametersCache
+{
+    protected final int maxEntries;
+
+    protected final long ttlMillis;
+
+    private final LinkedHashMap<String, Record> map;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries
+     *            Maximum number of cached records, positive.
+     * @param ttlMillis
+     *            Time to live of an entry in milliseconds, positive.
+     */
+    public PBKDF2ParametersCache(final int maxEntries, long ttlMillis)
+    {
+        if (maxEntries <= 0 || ttlMillis <= 0)
+        {
+            throw new IllegalArgumentException("Size and TTL must be positive.");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.map = new LinkedHashMap<String, Record>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Record> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Look up a record.
+     *
+     * @param key
+     *            I.e. the username
+     * @param p
+     *            On hit, salt, iteration count and derived key are set here.
+     *            The arrays are shared with the cache and must not be
+     *            modified.
+     * @return <code>true</code> on hit.
+     */
+    public synchronized boolean get(String key, PBKDF2Parameters p)
+    {
+        Record e = lookup(key);
+        if (e == null)
+        {
+            return false;
+        }
+        apply(e, p);
+        return true;
+    }
+
+    /**
+     * Look up a record together with its encoded form.
+     *
+     * @param key
+     *            I.e. the username
+     * @param p
+     *            On hit, set as by {@link #get(String, PBKDF2Parameters)}.
+     * @return Encoded record as passed to
+     *         {@link #put(String, PBKDF2Parameters, String)}, or
+     *         <code>null</code> on miss or if the record was stored without
+     *         its encoded form.
+     */
+    public synchronized String getEncoded(String key, PBKDF2Parameters p)
+    {
+        Record e = lookup(key);
+        if (e == null || e.encoded == null)
+        {
+            return null;
+        }
+        apply(e, p);
+        return e.encoded;
+    }
+
+    private Record lookup(String key)
+    {
+        Record e = map.get(key);
+        if (e != null && System.currentTimeMillis() - e.created >= ttlMillis)
+        {
+            map.remove(key);
+            e = null;
+        }
+        if (e == null)
+        {
+            misses++;
+        }
+        else
+        {
+            hits++;
+        }
+        return e;
+    }
+
+    private static void apply(Record e, PBKDF2Parameters p)
+    {
+        p.setSalt(e.salt);
+        p.setIterationCount(e.iterationCount);
+        p.setDerivedKey(e.derivedKey);
+        if (p instanceof LayeredPBKDF2Parameters)
+        {
+            ((LayeredPBKDF2Parameters) p).setOuterSalt(e.outerSalt);
+            ((LayeredPBKDF2Parameters) p).setOuterIterationCount(e.outerIterationCount);
+        }
+    }
+
+    /**
+     * Store a decoded record.
+     *
+     * @param key
+     *            I.e. the username
+     * @param p
+     *            Decoded record. Salt and derived key are copied, as are the
+     *            outer stage fields of layered records.
+     */
+    public synchronized void put(String key, PBKDF2Parameters p)
+    {
+        put(key, p, null);
+    }
+
+    /**
+     * Store a decoded record and the encoded form it was parsed from.
+     *
+     * @param key
+     *            I.e. the username
+     * @param p
+     *            Decoded record, copied as by
+     *            {@link #put(String, PBKDF2Parameters)}.
+     * @param encoded
+     *            Record exactly as stored, i.e. for compare-and-set updates.
+     */
+    public synchronized void put(String key, PBKDF2Parameters p, String encoded)
+    {
+        map.put(key, new Record(p, encoded));
+    }
+
+    /**
+     * Drop a record, i.e. after the stored password was changed.
+     *
+     * @param key
+     *            I.e. the username
+     */
+    public synchronized void invalidate(String key)
+    {
+        map.remove(key);
+    }
+
+    /**
+     * Drop all records.
+     */
+    public synchronized void invalidateAll()
+    {
+        map.clear();
+    }
+
+    public synchronized int size()
+    {
+        return map.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    public long getTtlMillis()
+    {
+        return ttlMillis;
+    }
+
+    private static final class Record
+    {
+        final byte[] salt;
+
+        final int iterationCount;
+
+        final byte[] derivedKey;
+
+        final byte[] outerSalt;
+
+        final int outerIterationCount;
+
+        final String encoded;
+
+        final long created = System.currentTimeMillis();
+
+        Record(PBKDF2Parameters p, String encoded)
+        {
+            this.encoded = encoded;
+            this.salt = copy(p.getSalt());
+            this.iterationCount = p.getIterationCount();
+            this.derivedKey = copy(p.getDerivedKey());
+            if (p instanceof LayeredPBKDF2Parameters)
+            {
+                this.outerSalt = copy(((LayeredPBKDF2Parameters) p).getOuterSalt());
+                this.outerIterationCount = ((LayeredPBKDF2Parameters) p).getOuterIterationCount();
+            }
+            else
+            {
+                this.outerSalt = null;
+                this.outerIterationCount = 0;
+            }
+        }
+
+        private static byte[] copy(byte[] b)
+        {
+            return (b == null) ? null : b.clone();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.security.Provider;
+
+/**
+ * JCA provider that makes this library's PBKDF2 engine available to code that
+ * only speaks JCA.
+ * <p>
+ * Registered services:
+ * <ul>
+ * <li>SecretKeyFactory PBKDF2WithHmacSHA1, PBKDF2WithHmacSHA224,
+ * PBKDF2WithHmacSHA256, PBKDF2WithHmacSHA384, PBKDF2WithHmacSHA512</li>
+ * </ul>
+ * Install either programmatically
+ * (<code>Security.insertProviderAt(new PBKDF2Provider(), 1)</code>) or via
+ * <code>java.security</code>. Note that Oracle JDKs only accept signed JARs as
+ * providers of <code>javax.crypto</code> services; OpenJDK has no such
+ * restriction.
+ *
+ * @see PBKDF2SecretKeyFactory
+ * @author Matthias G&auml;rtner
+ */
+public class PBKDF2Provider extends Provider
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Provider name.
+     */
+    public static final String NAME = "PBKDF2";
+
+    /**
+     * Mac algorithms for which PBKDF2With&lt;Mac&gt; is registered.
+     */
+    static final String[] MAC_ALGORITHMS = { "HmacSHA1", "HmacSHA224",
+            "HmacSHA256", "HmacSHA384", "HmacSHA512" };
+
+    public PBKDF2Provider()
+    {
+        super(NAME, 1.1, "de.rtner PBKDF2 (RFC 2898) SecretKeyFactory");
+        for (String mac : MAC_ALGORITHMS)
+        {
+            put("SecretKeyFactory.PBKDF2With" + mac,
+                    PBKDF2SecretKeyFactory.class.getName() + "$" + mac);
+        }
+    }
+}
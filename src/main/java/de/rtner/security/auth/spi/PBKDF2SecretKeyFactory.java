@@ -0,0 +1,293 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactorySpi;
+import javax.crypto.interfaces.PBEKey;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * SecretKeyFactory service implementation backed by {@link PBKDF2Engine} and
+ * {@link MacBasedPRF}. Accepts {@link PBEKeySpec}. The <code>char[]</code>
+ * password is encoded as UTF-8, like the platform's PBKDF2 implementation,
+ * straight into a byte array that is wiped after use; no String is created.
+ *
+ * @see PBKDF2Provider
+ * @author Matthias G&auml;rtner
+ */
+public abstract class PBKDF2SecretKeyFactory extends SecretKeyFactorySpi
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected final String macAlgorithm;
+
+    protected PBKDF2SecretKeyFactory(String macAlgorithm)
+    {
+        this.macAlgorithm = macAlgorithm;
+    }
+
+    @Override
+    protected SecretKey engineGenerateSecret(KeySpec keySpec)
+            throws InvalidKeySpecException
+    {
+        if (!(keySpec instanceof PBEKeySpec))
+        {
+            throw new InvalidKeySpecException("PBEKeySpec required");
+        }
+        PBEKeySpec spec = (PBEKeySpec) keySpec;
+        byte[] salt = spec.getSalt();
+        int c = spec.getIterationCount();
+        int keyLength = spec.getKeyLength();
+        if (salt == null || salt.length == 0)
+        {
+            throw new InvalidKeySpecException("Salt must be non-empty");
+        }
+        if (c <= 0)
+        {
+            throw new InvalidKeySpecException("Iteration count must be positive");
+        }
+        if (keyLength <= 0 || keyLength % 8 != 0)
+        {
+            throw new InvalidKeySpecException("Key length must be a positive multiple of 8");
+        }
+        char[] password = spec.getPassword();
+        byte[] P = null;
+        try
+        {
+            P = encode(password);
+            PBKDF2Parameters p = new PBKDF2Parameters(macAlgorithm, "UTF-8", salt, c);
+            PBKDF2Engine engine = new PBKDF2Engine(p, new MacBasedPRF(macAlgorithm));
+            byte[] dk = engine.deriveKey(P, keyLength / 8);
+            return new PBKDF2Key("PBKDF2With" + macAlgorithm, password, salt, c, dk);
+        }
+        finally
+        {
+            Arrays.fill(password, '\0');
+            if (P != null)
+            {
+                Arrays.fill(P, (byte) 0);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected KeySpec engineGetKeySpec(SecretKey key, Class keySpec)
+            throws InvalidKeySpecException
+    {
+        Class<?> spec = keySpec;
+        if (!(key instanceof PBEKey))
+        {
+            throw new InvalidKeySpecException("PBEKey required");
+        }
+        if (spec == null || !spec.isAssignableFrom(PBEKeySpec.class))
+        {
+            throw new InvalidKeySpecException("Only PBEKeySpec supported");
+        }
+        PBEKey k = (PBEKey) key;
+        char[] password = k.getPassword();
+        byte[] encoded = k.getEncoded();
+        try
+        {
+            return new PBEKeySpec(password, k.getSalt(), k.getIterationCount(),
+                    encoded.length * 8);
+        }
+        finally
+        {
+            Arrays.fill(password, '\0');
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    @Override
+    protected SecretKey engineTranslateKey(SecretKey key)
+            throws InvalidKeyException
+    {
+        if (key instanceof PBKDF2Key
+                && key.getAlgorithm().equalsIgnoreCase("PBKDF2With" + macAlgorithm))
+        {
+            return key;
+        }
+        if (!(key instanceof PBEKey)
+                || !key.getAlgorithm().equalsIgnoreCase("PBKDF2With" + macAlgorithm))
+        {
+            throw new InvalidKeyException("Unsupported key");
+        }
+        try
+        {
+            PBEKeySpec spec = (PBEKeySpec) engineGetKeySpec(key, PBEKeySpec.class);
+            try
+            {
+                return engineGenerateSecret(spec);
+            }
+            finally
+            {
+                spec.clearPassword();
+            }
+        }
+        catch (InvalidKeySpecException e)
+        {
+            InvalidKeyException ike = new InvalidKeyException("Unable to translate key");
+            ike.initCause(e);
+            throw ike;
+        }
+    }
+
+    /**
+     * Encode password characters as UTF-8 into a right-sized array, wiping
+     * the intermediate buffer.
+     */
+    private static byte[] encode(char[] password) throws InvalidKeySpecException
+    {
+        CharsetEncoder enc = UTF8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bb = null;
+        try
+        {
+            bb = enc.encode(CharBuffer.wrap(password));
+            byte[] P = new byte[bb.remaining()];
+            bb.get(P);
+            return P;
+        }
+        catch (CharacterCodingException e)
+        {
+            throw new InvalidKeySpecException(e.getMessage());
+        }
+        finally
+        {
+            if (bb != null && bb.hasArray())
+            {
+                Arrays.fill(bb.array(), (byte) 0);
+            }
+        }
+    }
+
+    public static final class HmacSHA1 extends PBKDF2SecretKeyFactory
+    {
+        public HmacSHA1()
+        {
+            super("HmacSHA1");
+        }
+    }
+
+    public static final class HmacSHA224 extends PBKDF2SecretKeyFactory
+    {
+        public HmacSHA224()
+        {
+            super("HmacSHA224");
+        }
+    }
+
+    public static final class HmacSHA256 extends PBKDF2SecretKeyFactory
+    {
+        public HmacSHA256()
+        {
+            super("HmacSHA256");
+        }
+    }
+
+    public static final class HmacSHA384 extends PBKDF2SecretKeyFactory
+    {
+        public HmacSHA384()
+        {
+            super("HmacSHA384");
+        }
+    }
+
+    public static final class HmacSHA512 extends PBKDF2SecretKeyFactory
+    {
+        public HmacSHA512()
+        {
+            super("HmacSHA512");
+        }
+    }
+
+    /**
+     * Derived key as returned by this factory.
+     */
+    static final class PBKDF2Key implements PBEKey
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String algorithm;
+
+        private final char[] password;
+
+        private final byte[] salt;
+
+        private final int iterationCount;
+
+        private final byte[] key;
+
+        PBKDF2Key(String algorithm, char[] password, byte[] salt,
+                int iterationCount, byte[] key)
+        {
+            this.algorithm = algorithm;
+            this.password = password.clone();
+            this.salt = salt.clone();
+            this.iterationCount = iterationCount;
+            this.key = key;
+        }
+
+        public String getAlgorithm()
+        {
+            return algorithm;
+        }
+
+        public String getFormat()
+        {
+            return "RAW";
+        }
+
+        public byte[] getEncoded()
+        {
+            return key.clone();
+        }
+
+        public char[] getPassword()
+        {
+            return password.clone();
+        }
+
+        public byte[] getSalt()
+        {
+            return salt.clone();
+        }
+
+        public int getIterationCount()
+        {
+            return iterationCount;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Intermediate state of one PBKDF2 derivation: the PRF keyed with the
+ * password, the output buffer T, the running U<sub>i</sub> and accumulated
+ * U<sub>r</sub> (&quot;U_1 xor U_2 xor ...&quot;) of the current block, the
+ * block index and the iteration position within that block.
+ * <p>
+ * Created by {@link PBKDF2Engine#startDerivation(String, int)} and advanced
+ * in slices by {@link PBKDF2Engine#advance(PBKDF2State, int)}, so that a
+ * derivation can be suspended and resumed at any iteration.
+ * <p>
+ * A checkpoint holds U<sub>i</sub> and U<sub>r</sub> in clear; whoever holds
+ * it can finish the derivation without knowing the password. Checkpoints must
+ * therefore only be stored encrypted, see {@link CheckpointSink}.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class PBKDF2State
+{
+    private static final int MAGIC = 0x50424B32; // "PBK2"
+
+    private static final byte VERSION = 3;
+
+    /**
+     * Upper bound for dkLen accepted from a checkpoint, so that a corrupt
+     * length cannot trigger a huge allocation.
+     */
+    private static final int MAX_DK_LEN = 1 << 20;
+
+    private static final int CRC_LEN = 4;
+
+    protected final PRF prf;
+
+    protected final byte[] S;
+
+    protected final int c;
+
+    protected final int dkLen;
+
+    protected final int hLen;
+
+    /**
+     * Number of blocks, l in RFC 2898 5.2.
+     */
+    protected final int l;
+
+    /**
+     * Concatenated T_1 .. T_l, complete blocks only.
+     */
+    protected final byte[] T;
+
+    /**
+     * U of the last iteration, or <code>null</code> if the current block has
+     * not started yet.
+     */
+    protected byte[] U_i;
+
+    protected final byte[] U_r;
+
+    /**
+     * Current block, 1-based. Greater than l when complete.
+     */
+    protected int blockIndex;
+
+    /**
+     * Iterations completed in the current block.
+     */
+    protected int iteration;
+
+    /**
+     * Constructor.
+     *
+     * @param prf
+     *            Pseudo Random Function, already initialized with the
+     *            password. Must not be shared with other derivations.
+     * @param S
+     *            Salt, <code>null</code> means no salt.
+     * @param c
+     *            Iteration count
+     * @param dkLen
+     *            Desired key length, positive
+     */
+    public PBKDF2State(PRF prf, byte[] S, int c, int dkLen)
+    {
+        this.prf = prf;
+        this.S = (S == null) ? new byte[0] : S;
+        this.c = c;
+        this.dkLen = dkLen;
+        this.hLen = prf.getHLen();
+        this.l = (dkLen + hLen - 1) / hLen;
+        this.T = new byte[l * hLen];
+        this.U_i = null;
+        this.U_r = new byte[hLen];
+        this.blockIndex = 1;
+        this.iteration = 0;
+    }
+
+    /**
+     * Constructor: resume from a checkpoint.
+     * <p>
+     * The checkpoint ends with a CRC-32 that detects torn or corrupt data. It
+     * is deliberately not keyed by the password, as such a tag would let the
+     * holder of a checkpoint test password guesses at the cost of one PRF
+     * call each. Consequently a checkpoint resumed with a different password
+     * is not detected and yields a wrong key.
+     *
+     * @param prf
+     *            Pseudo Random Function, initialized with the same password
+     *            as the one that produced the checkpoint.
+     * @param checkpoint
+     *            Data as returned by {@link #toCheckpoint()}. Not modified.
+     * @throws IllegalArgumentException
+     *             Checkpoint malformed or produced with a different block
+     *             size.
+     */
+    public PBKDF2State(PRF prf, byte[] checkpoint)
+    {
+        this.prf = prf;
+        this.hLen = prf.getHLen();
+        try
+        {
+            ByteBuffer b = ByteBuffer.wrap(checkpoint);
+            if (b.getInt() != MAGIC || b.get() != VERSION)
+            {
+                throw new IllegalArgumentException("Not a PBKDF2 checkpoint");
+            }
+            this.c = b.getInt();
+            this.dkLen = b.getInt();
+            if (b.getInt() != hLen || c < 0 || dkLen <= 0 || dkLen > MAX_DK_LEN)
+            {
+                throw new IllegalArgumentException("Checkpoint does not match PRF");
+            }
+            if (checkpoint.length < b.position() + CRC_LEN)
+            {
+                throw new IllegalArgumentException("Checkpoint truncated");
+            }
+            int crcAt = checkpoint.length - CRC_LEN;
+            if (b.getInt(crcAt) != crc(checkpoint, crcAt))
+            {
+                throw new IllegalArgumentException("Checkpoint corrupt");
+            }
+            b.limit(crcAt);
+            this.l = (dkLen + hLen - 1) / hLen;
+            int sLen = b.getInt();
+            if (sLen < 0 || sLen > b.remaining())
+            {
+                throw new IllegalArgumentException("Checkpoint inconsistent");
+            }
+            this.S = new byte[sLen];
+            b.get(S);
+            this.blockIndex = b.getInt();
+            this.iteration = b.getInt();
+            int uLen = b.getInt();
+            if (blockIndex < 1 || blockIndex > l + 1 || iteration < 0
+                    || iteration > c
+                    || (uLen != -1 && uLen != sLen + 4 && uLen != hLen)
+                    || Math.max(uLen, 0) + hLen + (long) (blockIndex - 1) * hLen
+                        != b.remaining())
+            {
+                throw new IllegalArgumentException("Checkpoint inconsistent");
+            }
+            this.U_i = (uLen < 0) ? null : new byte[uLen];
+            if (U_i != null)
+            {
+                b.get(U_i);
+            }
+            this.U_r = new byte[hLen];
+            b.get(U_r);
+            this.T = new byte[l * hLen];
+            b.get(T, 0, (blockIndex - 1) * hLen);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IllegalArgumentException("Checkpoint truncated");
+        }
+    }
+
+    /**
+     * Serialize this state.
+     *
+     * @return Checkpoint data; the caller should wipe it after use.
+     */
+    public byte[] toCheckpoint()
+    {
+        int uLen = (U_i == null) ? -1 : U_i.length;
+        int done = (Math.min(blockIndex, l + 1) - 1) * hLen;
+        byte[] r = new byte[4 + 1 + 4 * 4 + S.length + 3 * 4
+                + Math.max(uLen, 0) + hLen + done + CRC_LEN];
+        ByteBuffer b = ByteBuffer.wrap(r);
+        b.putInt(MAGIC).put(VERSION);
+        b.putInt(c).putInt(dkLen).putInt(hLen);
+        b.putInt(S.length).put(S);
+        b.putInt(blockIndex).putInt(iteration);
+        b.putInt(uLen);
+        if (U_i != null)
+        {
+            b.put(U_i);
+        }
+        b.put(U_r);
+        b.put(T, 0, done);
+        b.putInt(crc(r, b.position()));
+        return r;
+    }
+
+    private static int crc(byte[] checkpoint, int len)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint, 0, len);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Check whether this state belongs to a derivation with the given inputs.
+     *
+     * @param salt
+     *            Salt, <code>null</code> means no salt.
+     * @param iterationCount
+     *            Iteration count
+     * @param keyLength
+     *            Desired key length
+     * @return <code>true</code> if salt, iteration count and key length match.
+     */
+    public boolean matches(byte[] salt, int iterationCount, int keyLength)
+    {
+        return Arrays.equals(S, (salt == null) ? new byte[0] : salt)
+                && c == iterationCount && dkLen == keyLength;
+    }
+
+    public boolean isComplete()
+    {
+        return blockIndex > l;
+    }
+
+    /**
+     * @return Iterations still to run over all blocks.
+     */
+    public long getRemainingIterations()
+    {
+        if (isComplete())
+        {
+            return 0;
+        }
+        return (long) (l - blockIndex + 1) * c - iteration;
+    }
+
+    public int getBlockIndex()
+    {
+        return blockIndex;
+    }
+
+    public int getIteration()
+    {
+        return iteration;
+    }
+
+    public int getIterationCount()
+    {
+        return c;
+    }
+
+    public int getDkLen()
+    {
+        return dkLen;
+    }
+
+    /**
+     * Result of a complete derivation.
+     *
+     * @return Derived key of dkLen octets.
+     * @throws IllegalStateException
+     *             if the derivation is not yet complete.
+     */
+    public byte[] getDerivedKey()
+    {
+        if (!isComplete())
+        {
+            throw new IllegalStateException("Derivation not complete");
+        }
+        if (T.length == dkLen)
+        {
+            return T.clone();
+        }
+        byte DK[] = new byte[dkLen];
+        System.arraycopy(T, 0, DK, 0, dkLen);
+        return DK;
+    }
+
+    /**
+     * Wipe all intermediate buffers. The state is unusable afterwards.
+     */
+    public void destroy()
+    {
+        Arrays.fill(T, (byte) 0);
+        Arrays.fill(U_r, (byte) 0);
+        if (U_i != null)
+        {
+            Arrays.fill(U_i, (byte) 0);
+            U_i = null;
+        }
+        blockIndex = l + 1;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * JIT warm-up: runs synthetic format/parse/verify rounds until the hot methods
+ * ({@link PBKDF2Engine#_F}, the PRF, the formatter) are compiled or a time
+ * budget runs out, so that the first real logins after a cold start do not
+ * run in the interpreter.
+ * <p>
+ * Compilation cannot be observed portably, so the warm-up watches the
+ * duration of its own rounds instead: it stops once
+ * {@link #STABLE_ROUNDS} consecutive rounds are each within 10% of the best
+ * round seen, after at least {@link #MIN_ROUNDS} rounds. Completion is logged
+ * and can be awaited.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class PBKDF2Warmup implements Runnable
+{
+    public static final int MIN_ROUNDS = 20;
+
+    public static final int STABLE_ROUNDS = 5;
+
+    /**
+     * Iterations per synthetic derivation.
+     */
+    public static final int ITERATIONS = 1000;
+
+    private static final Logger LOG = Logger.getLogger(PBKDF2Warmup.class.getName());
+
+    protected final String hashAlgorithm;
+
+    protected final String hashCharset;
+
+    protected final PBKDF2Formatter formatter;
+
+    protected final long budgetMillis;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile int rounds = 0;
+
+    private volatile long roundNanos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param hashAlgorithm
+     *            Mac algorithm, i.e. HmacSHA1.
+     * @param hashCharset
+     *            Password charset, may be <code>null</code>.
+     * @param formatter
+     *            Formatter used in production.
+     * @param budgetMillis
+     *            Upper bound for the warm-up duration.
+     */
+    public PBKDF2Warmup(String hashAlgorithm, String hashCharset,
+            PBKDF2Formatter formatter, long budgetMillis)
+    {
+        this.hashAlgorithm = hashAlgorithm;
+        this.hashCharset = hashCharset;
+        this.formatter = formatter;
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Factory method for the engine under warm-up. Override to warm up the
+     * engine class used in production.
+     *
+     * @param p
+     *            Parameters
+     * @return Engine
+     */
+    protected PBKDF2 newEngine(PBKDF2Parameters p)
+    {
+        return new PBKDF2Engine(p);
+    }
+
+    /**
+     * Factory method for parameter objects. Override to match production.
+     *
+     * @return Parameters with algorithm and charset set.
+     */
+    protected PBKDF2Parameters newParameters()
+    {
+        return new PBKDF2Parameters(hashAlgorithm, hashCharset, null, ITERATIONS);
+    }
+
+    public void run()
+    {
+        long start = System.nanoTime();
+        long end = start + budgetMillis * 1000000L;
+        long best = Long.MAX_VALUE;
+        int stable = 0;
+        byte[] salt = new byte[8];
+        try
+        {
+            while (System.nanoTime() - end < 0 && stable < STABLE_ROUNDS)
+            {
+                long t0 = System.nanoTime();
+                round(salt);
+                long t = System.nanoTime() - t0;
+                rounds++;
+                roundNanos = t;
+                best = Math.min(best, t);
+                stable = (rounds >= MIN_ROUNDS && t <= best + best / 10) ? stable + 1 : 0;
+            }
+            LOG.info("PBKDF2 warm-up for " + hashAlgorithm + " finished after "
+                    + rounds + " rounds in "
+                    + (System.nanoTime() - start) / 1000000L + " ms, "
+                    + (stable >= STABLE_ROUNDS ? "stable" : "budget exhausted")
+                    + ", last round " + roundNanos / 1000 + " us");
+        }
+        catch (RuntimeException e)
+        {
+            LOG.warning("PBKDF2 warm-up for " + hashAlgorithm + " failed: " + e);
+        }
+        finally
+        {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * One synthetic derive/format/parse/verify round.
+     */
+    private void round(byte[] salt)
+    {
+        salt[rounds % salt.length]++;
+        PBKDF2Parameters p = newParameters();
+        p.setSalt(salt);
+        String password = "warmup" + rounds;
+        p.setDerivedKey(newEngine(p).deriveKey(password));
+        String record = formatter.toString(p);
+        PBKDF2Parameters q = newParameters();
+        if (formatter.fromString(q, record) || !newEngine(q).verifyKey(password))
+        {
+            throw new IllegalStateException("Round trip failed: " + record);
+        }
+    }
+
+    /**
+     * Run in a daemon thread.
+     *
+     * @return The thread, already started.
+     */
+    public Thread startInBackground()
+    {
+        Thread t = new Thread(this, "PBKDF2-warmup");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+        return t;
+    }
+
+    public boolean isFinished()
+    {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Wait for the warm-up to finish.
+     *
+     * @param timeout
+     *            Maximum time to wait
+     * @param unit
+     *            Unit of timeout
+     * @return <code>true</code> if finished.
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * @return Number of rounds completed so far.
+     */
+    public int getRounds()
+    {
+        return rounds;
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Compact in-memory credential table.
+ * <p>
+ * A heap cache of {@link PBKDF2Parameters} costs several objects per user.
+ * This table packs username (UTF-8), algorithm id, iteration count, salt and
+ * derived key into fixed-size slots of large <code>byte[]</code> slabs, with
+ * an open-addressing <code>int[]</code> index (FNV-1a, linear probing). The
+ * heap holds a handful of large arrays regardless of the number of users.
+ * <p>
+ * Lookups bind a {@link View}, a parameter object that reads iteration count
+ * and algorithm from the slab and copies salt and derived key only when asked
+ * for. Slab contents are never modified after a record is written: updates
+ * append a new record, and {@link #compact()} builds new slabs. A view
+ * therefore stays valid after the table changes. Compaction runs
+ * automatically once replaced and removed records outnumber live ones.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class PackedCredentialTable extends CredentialIndex
+{
+    private static final int SLAB_RECORDS = 4096;
+
+    /**
+     * Automatic compaction starts once dead records outnumber live ones and
+     * fill at least one slab.
+     */
+    private static final int MIN_DEAD_TO_COMPACT = SLAB_RECORDS;
+
+    private static final int R_ALGORITHM = 0;
+
+    private static final int R_USERNAME_LENGTH = 1;
+
+    private static final int R_SALT_LENGTH = 2;
+
+    private static final int R_DK_LENGTH = 3;
+
+    private static final int R_ITERATIONS = 4;
+
+    private static final int R_USERNAME = 8;
+
+    protected final int maxUsername;
+
+    protected final int maxSalt;
+
+    protected final int maxDk;
+
+    private final int stride;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private byte[][] slabs = new byte[0][];
+
+    /** Records written, live or dead. */
+    private int records = 0;
+
+    private int live = 0;
+
+    /** Index slots in use, including tombstones. */
+    private int used = 0;
+
+    private int[] index = new int[16];
+
+    /**
+     * Constructor for usernames up to 32 UTF-8 bytes, salts up to 16 bytes
+     * and derived keys up to 32 bytes: 88 bytes per record.
+     */
+    public PackedCredentialTable()
+    {
+        this(32, 16, 32);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxUsername
+     *            Maximum username length in UTF-8 bytes, at most 255
+     * @param maxSalt
+     *            Maximum salt length, at most 255
+     * @param maxDk
+     *            Maximum derived key length, at most 255
+     */
+    public PackedCredentialTable(int maxUsername, int maxSalt, int maxDk)
+    {
+        if (maxUsername <= 0 || maxUsername > 255 || maxSalt < 0 || maxSalt > 255
+                || maxDk <= 0 || maxDk > 255)
+        {
+            throw new IllegalArgumentException("Sizes must be between 1 and 255.");
+        }
+        this.maxUsername = maxUsername;
+        this.maxSalt = maxSalt;
+        this.maxDk = maxDk;
+        this.stride = R_USERNAME + maxUsername + maxSalt + maxDk;
+    }
+
+    /**
+     * Add or replace a user's record.
+     *
+     * @param username
+     *            User name
+     * @param p
+     *            Record: algorithm, iteration count, salt and derived key
+     */
+    public void put(String username, PBKDF2Parameters p)
+    {
+        byte[] u = encode(username);
+        byte[] salt = (p.getSalt() != null) ? p.getSalt() : new byte[0];
+        byte[] dk = p.getDerivedKey();
+        int alg = PBKDF2Algorithms.getId(p.getHashAlgorithm());
+        if (u.length == 0 || u.length > maxUsername || salt.length > maxSalt || dk == null
+                || dk.length == 0 || dk.length > maxDk)
+        {
+            throw new IllegalArgumentException("Username, salt or key size out of range.");
+        }
+        lock.writeLock().lock();
+        try
+        {
+            int n = append(u, alg, p.getIterationCount(), salt, dk);
+            int slot = find(u);
+            if (slot < 0)
+            {
+                if (2 * (used + 1) > index.length)
+                {
+                    rehash(2 * index.length);
+                }
+                slot = freeSlot(u);
+                if (index[slot] == EMPTY)
+                {
+                    used++;
+                }
+                live++;
+            }
+            index[slot] = n + 1;
+            compactIfSparse();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up a user.
+     *
+     * @param username
+     *            User name
+     * @param view
+     *            Bound to the user's record on hit. Reusable.
+     * @return <code>true</code> on hit.
+     */
+    public boolean get(String username, View view)
+    {
+        byte[] u = encode(username);
+        lock.readLock().lock();
+        try
+        {
+            int slot = find(u);
+            if (slot < 0)
+            {
+                return false;
+            }
+            int n = index[slot] - 1;
+            view.bind(slabs[n / SLAB_RECORDS], (n % SLAB_RECORDS) * stride,
+                    R_USERNAME + maxUsername, R_USERNAME + maxUsername + maxSalt);
+            return true;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Look up a user.
+     *
+     * @param username
+     *            User name
+     * @return New view on the user's record, or <code>null</code>.
+     */
+    public View get(String username)
+    {
+        View v = new View();
+        return get(username, v) ? v : null;
+    }
+
+    /**
+     * Remove a user.
+     *
+     * @param username
+     *            User name
+     * @return <code>true</code> if the user existed.
+     */
+    public boolean remove(String username)
+    {
+        byte[] u = encode(username);
+        lock.writeLock().lock();
+        try
+        {
+            int slot = find(u);
+            if (slot < 0)
+            {
+                return false;
+            }
+            index[slot] = TOMBSTONE;
+            live--;
+            compactIfSparse();
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop replaced and removed records and rebuild the index.
+     */
+    public void compact()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            compactNow();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compact if dead records outnumber live ones. Caller holds the write
+     * lock.
+     */
+    private void compactIfSparse()
+    {
+        int dead = records - live;
+        if (dead >= MIN_DEAD_TO_COMPACT && dead > live)
+        {
+            compactNow();
+        }
+    }
+
+    private void compactNow()
+    {
+        byte[][] oldSlabs = slabs;
+        int[] oldIndex = index;
+        slabs = new byte[0][];
+        records = 0;
+        rebuild(oldIndex, oldSlabs, slotsFor(live));
+    }
+
+    /**
+     * @return Number of users.
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return live;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Approximate heap bytes held by slabs and index.
+     */
+    public long getMemoryUsage()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return (long) slabs.length * SLAB_RECORDS * stride + 4L * index.length;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void rehash(int slots)
+    {
+        rebuild(index, null, slots);
+    }
+
+    /**
+     * Rebuild the index. With <code>oldSlabs</code> set, live records are
+     * copied into the (empty) current slabs as well.
+     */
+    private void rebuild(int[] oldIndex, byte[][] oldSlabs, int slots)
+    {
+        index = new int[slots];
+        used = 0;
+        int mask = slots - 1;
+        for (int i = 0; i < oldIndex.length; i++)
+        {
+            int v = oldIndex[i];
+            if (v == EMPTY || v == TOMBSTONE)
+            {
+                continue;
+            }
+            int n = v - 1;
+            if (oldSlabs != null)
+            {
+                byte[] slab = oldSlabs[n / SLAB_RECORDS];
+                int r = (n % SLAB_RECORDS) * stride;
+                n = allocate();
+                System.arraycopy(slab, r, slabs[n / SLAB_RECORDS], (n % SLAB_RECORDS) * stride, stride);
+            }
+            int r = (n % SLAB_RECORDS) * stride;
+            byte[] slab = slabs[n / SLAB_RECORDS];
+            int h = hash(slab, r + R_USERNAME, slab[r + R_USERNAME_LENGTH] & 0xFF) & mask;
+            while (index[h] != EMPTY)
+            {
+                h = (h + 1) & mask;
+            }
+            index[h] = n + 1;
+            used++;
+        }
+    }
+
+    private int allocate()
+    {
+        if (records == slabs.length * SLAB_RECORDS)
+        {
+            byte[][] s = new byte[slabs.length + 1][];
+            System.arraycopy(slabs, 0, s, 0, slabs.length);
+            s[slabs.length] = new byte[SLAB_RECORDS * stride];
+            slabs = s;
+        }
+        return records++;
+    }
+
+    private int append(byte[] u, int alg, int iterations, byte[] salt, byte[] dk)
+    {
+        int n = allocate();
+        byte[] slab = slabs[n / SLAB_RECORDS];
+        int r = (n % SLAB_RECORDS) * stride;
+        slab[r + R_ALGORITHM] = (byte) alg;
+        slab[r + R_USERNAME_LENGTH] = (byte) u.length;
+        slab[r + R_SALT_LENGTH] = (byte) salt.length;
+        slab[r + R_DK_LENGTH] = (byte) dk.length;
+        slab[r + R_ITERATIONS] = (byte) (iterations >>> 24);
+        slab[r + R_ITERATIONS + 1] = (byte) (iterations >>> 16);
+        slab[r + R_ITERATIONS + 2] = (byte) (iterations >>> 8);
+        slab[r + R_ITERATIONS + 3] = (byte) iterations;
+        System.arraycopy(u, 0, slab, r + R_USERNAME, u.length);
+        System.arraycopy(salt, 0, slab, r + R_USERNAME + maxUsername, salt.length);
+        System.arraycopy(dk, 0, slab, r + R_USERNAME + maxUsername + maxSalt, dk.length);
+        return n;
+    }
+
+    @Override
+    int getSlotCount()
+    {
+        return index.length;
+    }
+
+    @Override
+    int getSlot(int i)
+    {
+        return index[i];
+    }
+
+    @Override
+    int getUsernameLength(int n)
+    {
+        return slabs[n / SLAB_RECORDS][(n % SLAB_RECORDS) * stride + R_USERNAME_LENGTH] & 0xFF;
+    }
+
+    @Override
+    byte getUsernameByte(int n, int j)
+    {
+        return slabs[n / SLAB_RECORDS][(n % SLAB_RECORDS) * stride + R_USERNAME + j];
+    }
+
+    /**
+     * Flyweight parameter view on a table record. Iteration count and
+     * algorithm are read when the view is bound; salt and derived key are
+     * copied out of the slab on first access. Setters work as usual and take
+     * precedence, also when setting <code>null</code>. Charset is not stored
+     * in the table; set it on the view as needed (default UTF-8).
+     */
+    public static class View extends PBKDF2Parameters
+    {
+        private byte[] slab;
+
+        private int record;
+
+        private int saltOffset;
+
+        private int dkOffset;
+
+        /** Salt read from the slab or set explicitly. */
+        private boolean saltLoaded;
+
+        /** Derived key read from the slab or set explicitly. */
+        private boolean dkLoaded;
+
+        void bind(byte[] slab, int record, int saltOffset, int dkOffset)
+        {
+            this.slab = slab;
+            this.record = record;
+            this.saltOffset = saltOffset;
+            this.dkOffset = dkOffset;
+            this.salt = null;
+            this.derivedKey = null;
+            this.saltLoaded = false;
+            this.dkLoaded = false;
+            this.iterationCount = ((slab[record + R_ITERATIONS] & 0xFF) << 24)
+                    | ((slab[record + R_ITERATIONS + 1] & 0xFF) << 16)
+                    | ((slab[record + R_ITERATIONS + 2] & 0xFF) << 8)
+                    | (slab[record + R_ITERATIONS + 3] & 0xFF);
+            this.hashAlgorithm = PBKDF2Algorithms.getName(slab[record + R_ALGORITHM]);
+        }
+
+        @Override
+        public byte[] getSalt()
+        {
+            if (!saltLoaded && slab != null)
+            {
+                salt = copy(record + saltOffset, slab[record + R_SALT_LENGTH] & 0xFF);
+                saltLoaded = true;
+            }
+            return salt;
+        }
+
+        @Override
+        public void setSalt(byte[] salt)
+        {
+            this.salt = salt;
+            this.saltLoaded = true;
+        }
+
+        @Override
+        public byte[] getDerivedKey()
+        {
+            if (!dkLoaded && slab != null)
+            {
+                derivedKey = copy(record + dkOffset, slab[record + R_DK_LENGTH] & 0xFF);
+                dkLoaded = true;
+            }
+            return derivedKey;
+        }
+
+        @Override
+        public void setDerivedKey(byte[] derivedKey)
+        {
+            this.derivedKey = derivedKey;
+            this.dkLoaded = true;
+        }
+
+        private byte[] copy(int offset, int length)
+        {
+            byte[] b = new byte[length];
+            System.arraycopy(slab, offset, b, 0, length);
+            return b;
+        }
+    }
+}
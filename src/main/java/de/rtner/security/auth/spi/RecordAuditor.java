@@ -0,0 +1,797 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Offline audit of exported records.
+ * <p>
+ * The export holds one record per line, optionally preceded by a key and a
+ * tab character, as read by {@link RecordStrengthener}. Plain records follow
+ * {@link PBKDF2HexFormatter}, layered records
+ * {@link LayeredPBKDF2HexFormatter}; fields are checked with the same rules
+ * (hex digits with odd lengths padded, Integer.parseInt counts, trailing
+ * empty fields ignored), but directly on the bytes, without creating Strings.
+ * <p>
+ * The file is memory-mapped in chunks that end at line boundaries and the
+ * chunks are scanned in parallel. The result holds histograms of iteration
+ * counts (both stages for layered records), salt lengths and derived key
+ * lengths, and the lines of weak records: malformed, too few iterations or
+ * too short a salt. The hex format does not name the PRF, so the derived key
+ * length, which defaults to the PRF output length, stands in for the
+ * algorithm.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class RecordAuditor
+{
+    /** Weak record reason flag: not a valid record. */
+    public static final int MALFORMED = 1;
+
+    /** Weak record reason flag: iteration count below the minimum. */
+    public static final int ITERATIONS = 2;
+
+    /** Weak record reason flag: salt shorter than the minimum. */
+    public static final int SALT = 4;
+
+    /** Default chunk size, 64 MiB. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+    protected final int minIterations;
+
+    protected final int minSaltBytes;
+
+    protected final int chunkSize;
+
+    /**
+     * Constructor.
+     *
+     * @param minIterations
+     *            Records with fewer (total) iterations are weak
+     * @param minSaltBytes
+     *            Records with a shorter salt are weak
+     */
+    public RecordAuditor(int minIterations, int minSaltBytes)
+    {
+        this(minIterations, minSaltBytes, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param minIterations
+     *            Records with fewer (total) iterations are weak
+     * @param minSaltBytes
+     *            Records with a shorter salt are weak
+     * @param chunkSize
+     *            Nominal bytes per parallel chunk, positive
+     */
+    public RecordAuditor(int minIterations, int minSaltBytes, int chunkSize)
+    {
+        if (chunkSize <= 0)
+        {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.minIterations = minIterations;
+        this.minSaltBytes = minSaltBytes;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Scan an export file.
+     *
+     * @param export
+     *            Export file
+     * @param threads
+     *            Number of scanning threads, positive
+     * @return Merged result of all chunks
+     * @throws IOException
+     *             Read error
+     */
+    public Report audit(File export, int threads) throws IOException
+    {
+        if (threads <= 0)
+        {
+            throw new IllegalArgumentException("Threads must be positive.");
+        }
+        RandomAccessFile raf = new RandomAccessFile(export, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "PBKDF2-audit");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try
+        {
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+            List<Future<Report>> parts = new ArrayList<Future<Report>>();
+            long start = 0;
+            while (start < size)
+            {
+                long end = (size - start > chunkSize) ? lineStart(ch,
+                        start + chunkSize) : size;
+                parts.add(executor.submit(new Chunk(ch, start, end)));
+                start = end;
+            }
+            Report r = new Report();
+            for (Future<Report> f : parts)
+            {
+                r.merge(f.get());
+            }
+            return r;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            raf.close();
+        }
+    }
+
+    /**
+     * Find the first line start at or after a position.
+     */
+    private static long lineStart(FileChannel ch, long position)
+            throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        long pos = position - 1;
+        for (;;)
+        {
+            b.clear();
+            int n = ch.read(b, pos);
+            if (n < 0)
+            {
+                return ch.size();
+            }
+            for (int i = 0; i < n; i++)
+            {
+                if (b.get(i) == '\n')
+                {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * Scanner for one chunk. Holds the field positions of the current line.
+     */
+    private final class Chunk implements Callable<Report>
+    {
+        private final FileChannel ch;
+
+        private final long start;
+
+        private final long end;
+
+        private final int[] fs = new int[5];
+
+        private final int[] fe = new int[5];
+
+        private MappedByteBuffer b;
+
+        Chunk(FileChannel ch, long start, long end)
+        {
+            this.ch = ch;
+            this.start = start;
+            this.end = end;
+        }
+
+        public Report call() throws IOException
+        {
+            Report r = new Report();
+            if (end - start > Integer.MAX_VALUE)
+            {
+                throw new IOException("Line too long near offset " + start);
+            }
+            b = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int n = b.limit();
+            int ls = 0;
+            while (ls < n)
+            {
+                int le = ls;
+                while (le < n && b.get(le) != '\n')
+                {
+                    le++;
+                }
+                int next = le + 1;
+                if (le > ls && b.get(le - 1) == '\r')
+                {
+                    le--;
+                }
+                if (le > ls)
+                {
+                    scan(r, ls, le);
+                }
+                r.lines++;
+                ls = next;
+            }
+            b = null;
+            return r;
+        }
+
+        private void scan(Report r, int ls, int le)
+        {
+            r.records++;
+            int rs = ls;
+            for (int i = le - 1; i >= ls; i--)
+            {
+                if (b.get(i) == '\t')
+                {
+                    rs = i + 1;
+                    break;
+                }
+            }
+            // Split at colons like String.split(":"): trailing empty fields
+            // do not count
+            int count = 0;
+            int fields = 0;
+            int s = rs;
+            for (int i = rs;; i++)
+            {
+                if (i == le || b.get(i) == ':')
+                {
+                    if (count < fs.length)
+                    {
+                        fs[count] = s;
+                        fe[count] = i;
+                    }
+                    count++;
+                    if (i > s)
+                    {
+                        fields = count;
+                    }
+                    s = i + 1;
+                    if (i == le)
+                    {
+                        break;
+                    }
+                }
+            }
+            long iterations;
+            int saltLength = hexLength(0);
+            int keyLength;
+            if (fields == 3)
+            {
+                iterations = parseInt(1);
+                keyLength = hexLength(2);
+            }
+            else if (fields == 5)
+            {
+                long outer = parseInt(3);
+                iterations = parseInt(1);
+                keyLength = (hexLength(2) < 0 || outer == Long.MIN_VALUE) ? -1
+                        : hexLength(4);
+                if (iterations != Long.MIN_VALUE)
+                {
+                    iterations += outer;
+                }
+            }
+            else
+            {
+                iterations = Long.MIN_VALUE;
+                keyLength = -1;
+            }
+            if (saltLength < 0 || keyLength < 0 || iterations == Long.MIN_VALUE)
+            {
+                r.malformed++;
+                r.weak(MALFORMED, start + ls, r.lines);
+                return;
+            }
+            if (fields == 5)
+            {
+                r.layered++;
+            }
+            int total = (int) Math.min(iterations, Integer.MAX_VALUE);
+            r.iterations.add(total, 1);
+            r.saltLengths.add(saltLength, 1);
+            r.keyLengths.add(keyLength, 1);
+            int reasons = 0;
+            if (total < minIterations)
+            {
+                reasons |= ITERATIONS;
+            }
+            if (saltLength < minSaltBytes)
+            {
+                reasons |= SALT;
+            }
+            if (reasons != 0)
+            {
+                r.weak(reasons, start + ls, r.lines);
+            }
+        }
+
+        /**
+         * @return Decoded length of hex field i, -1 if not hex.
+         */
+        private int hexLength(int i)
+        {
+            for (int j = fs[i]; j < fe[i]; j++)
+            {
+                int c = b.get(j);
+                if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f')))
+                {
+                    return -1;
+                }
+            }
+            return (fe[i] - fs[i] + 1) / 2;
+        }
+
+        /**
+         * @return Value of decimal field i, Long.MIN_VALUE if not an int.
+         */
+        private long parseInt(int i)
+        {
+            int j = fs[i];
+            boolean negative = false;
+            if (j < fe[i] && (b.get(j) == '-' || b.get(j) == '+'))
+            {
+                negative = (b.get(j) == '-');
+                j++;
+            }
+            if (j == fe[i] || fe[i] - j > 10)
+            {
+                return Long.MIN_VALUE;
+            }
+            long v = 0;
+            for (; j < fe[i]; j++)
+            {
+                int c = b.get(j);
+                if (c < '0' || c > '9')
+                {
+                    return Long.MIN_VALUE;
+                }
+                v = v * 10 + (c - '0');
+            }
+            v = negative ? -v : v;
+            return (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) ? Long.MIN_VALUE : v;
+        }
+    }
+
+    /**
+     * Counts of int values.
+     */
+    public static final class Histogram
+    {
+        private int[] keys = new int[16];
+
+        private long[] counts = new long[16];
+
+        private int size = 0;
+
+        void add(int key, long n)
+        {
+            int i = slot(key);
+            if (counts[i] == 0)
+            {
+                keys[i] = key;
+                if (++size * 2 > keys.length)
+                {
+                    counts[i] = n;
+                    grow();
+                    return;
+                }
+            }
+            counts[i] += n;
+        }
+
+        /**
+         * @param key
+         *            Value
+         * @return Number of occurrences of the value
+         */
+        public long get(int key)
+        {
+            return counts[slot(key)];
+        }
+
+        /**
+         * @return Distinct values in ascending order
+         */
+        public int[] keys()
+        {
+            int[] r = new int[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (counts[i] != 0)
+                {
+                    r[n++] = keys[i];
+                }
+            }
+            Arrays.sort(r);
+            return r;
+        }
+
+        void addAll(Histogram h)
+        {
+            for (int i = 0; i < h.keys.length; i++)
+            {
+                if (h.counts[i] != 0)
+                {
+                    add(h.keys[i], h.counts[i]);
+                }
+            }
+        }
+
+        private int slot(int key)
+        {
+            int mask = keys.length - 1;
+            int h = key * 0x9E3779B9;
+            int i = (h ^ (h >>> 16)) & mask;
+            while (counts[i] != 0 && keys[i] != key)
+            {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow()
+        {
+            int[] k = keys;
+            long[] c = counts;
+            keys = new int[k.length * 2];
+            counts = new long[c.length * 2];
+            for (int i = 0; i < k.length; i++)
+            {
+                if (c[i] != 0)
+                {
+                    int j = slot(k[i]);
+                    keys[j] = k[i];
+                    counts[j] = c[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Audit result.
+     */
+    public static final class Report
+    {
+        long lines;
+
+        long records;
+
+        long malformed;
+
+        long layered;
+
+        private final Histogram iterations = new Histogram();
+
+        private final Histogram saltLengths = new Histogram();
+
+        private final Histogram keyLengths = new Histogram();
+
+        private int weakCount = 0;
+
+        private long[] weakOffsets = new long[16];
+
+        private long[] weakLines = new long[16];
+
+        private byte[] weakReasons = new byte[16];
+
+        void weak(int reasons, long offset, long line)
+        {
+            if (weakCount == weakOffsets.length)
+            {
+                weakOffsets = Arrays.copyOf(weakOffsets, weakCount * 2);
+                weakLines = Arrays.copyOf(weakLines, weakCount * 2);
+                weakReasons = Arrays.copyOf(weakReasons, weakCount * 2);
+            }
+            weakOffsets[weakCount] = offset;
+            weakLines[weakCount] = line;
+            weakReasons[weakCount] = (byte) reasons;
+            weakCount++;
+        }
+
+        /**
+         * Append a following chunk.
+         */
+        void merge(Report r)
+        {
+            for (int i = 0; i < r.weakCount; i++)
+            {
+                weak(r.weakReasons[i], r.weakOffsets[i], lines + r.weakLines[i]);
+            }
+            malformed += r.malformed;
+            lines += r.lines;
+            records += r.records;
+            layered += r.layered;
+            iterations.addAll(r.iterations);
+            saltLengths.addAll(r.saltLengths);
+            keyLengths.addAll(r.keyLengths);
+        }
+
+        /** @return Number of lines, including empty ones */
+        public long getLines()
+        {
+            return lines;
+        }
+
+        /** @return Number of non-empty lines */
+        public long getRecords()
+        {
+            return records;
+        }
+
+        /** @return Number of lines that are not valid records */
+        public long getMalformed()
+        {
+            return malformed;
+        }
+
+        /** @return Number of valid layered records */
+        public long getLayered()
+        {
+            return layered;
+        }
+
+        /** @return Total iteration counts of valid records */
+        public Histogram getIterations()
+        {
+            return iterations;
+        }
+
+        /** @return Salt lengths in bytes of valid records */
+        public Histogram getSaltLengths()
+        {
+            return saltLengths;
+        }
+
+        /** @return Derived key lengths in bytes of valid records */
+        public Histogram getKeyLengths()
+        {
+            return keyLengths;
+        }
+
+        /** @return Number of weak records, including malformed lines */
+        public int getWeakCount()
+        {
+            return weakCount;
+        }
+
+        /**
+         * @param i
+         *            Index below {@link #getWeakCount()}, in file order
+         * @return One-based line number of a weak record
+         */
+        public long getWeakLine(int i)
+        {
+            return weakLines[i] + 1;
+        }
+
+        /**
+         * @param i
+         *            Index below {@link #getWeakCount()}, in file order
+         * @return Reason flags of a weak record
+         */
+        public int getWeakReasons(int i)
+        {
+            return weakReasons[i];
+        }
+
+        /**
+         * Print counts and histograms.
+         *
+         * @param out
+         *            Target
+         */
+        public void print(PrintStream out)
+        {
+            out.println("lines\t" + lines);
+            out.println("records\t" + records);
+            out.println("malformed\t" + malformed);
+            out.println("layered\t" + layered);
+            out.println("weak\t" + weakCount);
+            print(out, "iterations", iterations);
+            print(out, "salt-bytes", saltLengths);
+            print(out, "key-bytes", keyLengths);
+        }
+
+        private static void print(PrintStream out, String title,
+                Histogram h)
+        {
+            out.println(title);
+            for (int k : h.keys())
+            {
+                out.println("\t" + k + "\t" + h.get(k));
+            }
+        }
+
+        /**
+         * Write one line per weak record: line number, reasons and the line
+         * as found in the export, separated by tabs.
+         *
+         * @param export
+         *            The audited file
+         * @param out
+         *            Target
+         * @throws IOException
+         *             Read or write error
+         */
+        public void writeWeak(File export, Writer out) throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(export, "r");
+            try
+            {
+                FileChannel ch = raf.getChannel();
+                ByteBuffer b = ByteBuffer.allocate(8192);
+                for (int i = 0; i < weakCount; i++)
+                {
+                    b.clear();
+                    int n = 0;
+                    for (;;)
+                    {
+                        if (!b.hasRemaining())
+                        {
+                            ByteBuffer bigger = ByteBuffer.allocate(b.capacity() * 2);
+                            b.flip();
+                            bigger.put(b);
+                            b = bigger;
+                        }
+                        int r = ch.read(b, weakOffsets[i] + b.position());
+                        int m = b.position();
+                        while (n < m && b.get(n) != '\n')
+                        {
+                            n++;
+                        }
+                        if (r <= 0 || n < m)
+                        {
+                            break;
+                        }
+                    }
+                    if (n > 0 && b.get(n - 1) == '\r')
+                    {
+                        n--;
+                    }
+                    out.write(getWeakLine(i) + "\t" + reasons(weakReasons[i]) + "\t");
+                    out.write(new String(b.array(), 0, n, "ISO-8859-1"));
+                    out.write('\n');
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        private static String reasons(int r)
+        {
+            if ((r & MALFORMED) != 0)
+            {
+                return "malformed";
+            }
+            String s = ((r & ITERATIONS) != 0) ? "iterations" : "";
+            if ((r & SALT) != 0)
+            {
+                s += (s.length() > 0) ? ",salt" : "salt";
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Command line interface. Prints the report to stdout.
+     * <p>
+     * Usage: [-t threads] [-i minIterations] [-s minSaltBytes] [-w weakFile]
+     * exportFile
+     *
+     * @param args
+     *            Command line
+     * @throws IOException
+     *             Read or write error
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int minIterations = 10000;
+        int minSaltBytes = 8;
+        String weakFile = null;
+        for (;;)
+        {
+            if (args.length >= 2 && args[0].equals("-t"))
+            {
+                threads = Integer.parseInt(args[1]);
+            }
+            else if (args.length >= 2 && args[0].equals("-i"))
+            {
+                minIterations = Integer.parseInt(args[1]);
+            }
+            else if (args.length >= 2 && args[0].equals("-s"))
+            {
+                minSaltBytes = Integer.parseInt(args[1]);
+            }
+            else if (args.length >= 2 && args[0].equals("-w"))
+            {
+                weakFile = args[1];
+            }
+            else
+            {
+                break;
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length != 1)
+        {
+            System.err.println("Usage: [-t threads] [-i minIterations] [-s minSaltBytes] [-w weakFile] exportFile");
+            System.exit(2);
+        }
+        File export = new File(args[0]);
+        long t0 = System.nanoTime();
+        Report r = new RecordAuditor(minIterations, minSaltBytes).audit(export, threads);
+        long t1 = System.nanoTime();
+        r.print(System.out);
+        System.out.println("millis\t" + (t1 - t0) / 1000000);
+        if (weakFile != null)
+        {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(weakFile), "ISO-8859-1"), 65536);
+            try
+            {
+                r.writeWeak(export, out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.rtner.misc.LineIterator;
+import de.rtner.misc.ParallelMapper;
+
+/**
+ * Offline strengthening of stored records.
+ * <p>
+ * Each plain record &quot;salt:iteration-count:derived-key&quot; is wrapped
+ * into a layered record by running PBKDF2 with a fresh salt over its derived
+ * key. The password is not needed. Verification replays both stages, see
+ * {@link LayeredPBKDF2Engine} and {@link LayeredPBKDF2HexFormatter}.
+ * <p>
+ * Input is a stream of lines, each holding a record optionally preceded by a
+ * key and a tab character, i.e. &quot;username\tsalt:count:key&quot;. Keys
+ * are passed through. Layered or unparseable records are passed through
+ * unchanged. Records are processed in parallel and written in input order;
+ * memory use is bounded by the mapper's window.
+ * <p>
+ * The output file doubles as checkpoint: when resuming, complete output lines
+ * are kept, a partially written last line is cut off and the corresponding
+ * number of input lines is skipped.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class RecordStrengthener
+{
+    protected final String hashAlgorithm;
+
+    protected final int outerIterations;
+
+    protected final int saltSize;
+
+    private final PBKDF2Formatter formatter = new LayeredPBKDF2HexFormatter();
+
+    private final SaltGenerator saltGenerator = new StripedSaltGenerator();
+
+    private final ThreadLocal<LayeredPBKDF2Engine> engines = new ThreadLocal<LayeredPBKDF2Engine>()
+    {
+        @Override
+        protected LayeredPBKDF2Engine initialValue()
+        {
+            return new LayeredPBKDF2Engine();
+        }
+    };
+
+    private final AtomicLong strengthened = new AtomicLong();
+
+    private final AtomicLong unchanged = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param hashAlgorithm
+     *            PRF of the stored records, i.e. HmacSHA1. Used for the
+     *            outer stage as well.
+     * @param outerIterations
+     *            Outer stage iteration count, positive
+     * @param saltSize
+     *            Outer stage salt size in bytes, positive
+     */
+    public RecordStrengthener(String hashAlgorithm, int outerIterations, int saltSize)
+    {
+        if (outerIterations <= 0 || saltSize <= 0)
+        {
+            throw new IllegalArgumentException("Iteration count and salt size must be positive.");
+        }
+        this.hashAlgorithm = hashAlgorithm;
+        this.outerIterations = outerIterations;
+        this.saltSize = saltSize;
+    }
+
+    /**
+     * Strengthen one line. Thread-safe.
+     *
+     * @param line
+     *            Record, optionally preceded by key and tab
+     * @return Line with layered record, or the input line if the record is
+     *         already layered or cannot be decoded.
+     */
+    public String strengthen(String line)
+    {
+        int tab = line.lastIndexOf('\t');
+        String record = line.substring(tab + 1);
+        LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters();
+        p.setHashAlgorithm(hashAlgorithm);
+        boolean bad;
+        try
+        {
+            bad = formatter.fromString(p, record);
+        }
+        catch (RuntimeException e)
+        {
+            bad = true;
+        }
+        if (bad || p.isLayered() || p.getDerivedKey() == null
+                || p.getDerivedKey().length == 0)
+        {
+            unchanged.incrementAndGet();
+            return line;
+        }
+        byte[] outerSalt = new byte[saltSize];
+        saltGenerator.nextBytes(outerSalt);
+        p.setOuterSalt(outerSalt);
+        p.setOuterIterationCount(outerIterations);
+        LayeredPBKDF2Engine e = engines.get();
+        e.setParameters(p);
+        p.setDerivedKey(e.wrapKey(p.getDerivedKey()));
+        strengthened.incrementAndGet();
+        return line.substring(0, tab + 1) + formatter.toString(p);
+    }
+
+    /**
+     * Strengthen a stream of lines in parallel.
+     *
+     * @param lines
+     *            Input lines
+     * @param out
+     *            Output, one line per input line in input order
+     * @param threads
+     *            Number of worker threads
+     * @param skip
+     *            Number of input lines to skip, i.e. from {@link #resume(File)}
+     * @param progress
+     *            Progress and throughput report every five seconds and at the
+     *            end, <code>null</code> for none
+     * @return Number of lines written
+     * @throws IOException
+     *             Writing failed
+     */
+    public long run(Iterator<String> lines, Writer out, int threads, long skip,
+            PrintStream progress) throws IOException
+    {
+        for (long i = 0; i < skip && lines.hasNext(); i++)
+        {
+            lines.next();
+        }
+        ParallelMapper<String, String> mapper = new ParallelMapper<String, String>(threads)
+        {
+            @Override
+            protected String apply(String line)
+            {
+                return strengthen(line);
+            }
+        };
+        long count = 0;
+        long start = System.currentTimeMillis();
+        long report = start + 5000;
+        try
+        {
+            Iterator<String> results = mapper.map(lines);
+            while (results.hasNext())
+            {
+                out.write(results.next());
+                out.write('\n');
+                count++;
+                if (progress != null && System.currentTimeMillis() >= report)
+                {
+                    out.flush();
+                    report(progress, skip + count, count, start);
+                    report += 5000;
+                }
+            }
+            out.flush();
+        }
+        finally
+        {
+            mapper.shutdown();
+        }
+        if (progress != null)
+        {
+            report(progress, skip + count, count, start);
+        }
+        return count;
+    }
+
+    private void report(PrintStream progress, long total, long count, long start)
+    {
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        progress.println(total + " records (" + strengthened.get()
+                + " strengthened, " + unchanged.get() + " unchanged), "
+                + (count * 1000 / millis) + " records/s");
+    }
+
+    public long getStrengthened()
+    {
+        return strengthened.get();
+    }
+
+    public long getUnchanged()
+    {
+        return unchanged.get();
+    }
+
+    /**
+     * Prepare an output file for resuming: cut off a partially written last
+     * line.
+     *
+     * @param out
+     *            Output file of an interrupted run
+     * @return Number of complete lines, i.e. input lines to skip. Zero if the
+     *         file does not exist.
+     * @throws IOException
+     *             File access failed
+     */
+    public static long resume(File out) throws IOException
+    {
+        if (!out.exists())
+        {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        try
+        {
+            long lines = 0;
+            long end = 0;
+            byte[] buf = new byte[8192];
+            long pos = 0;
+            int n;
+            while ((n = raf.read(buf)) > 0)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    if (buf[i] == '\n')
+                    {
+                        lines++;
+                        end = pos + i + 1;
+                    }
+                }
+                pos += n;
+            }
+            raf.setLength(end);
+            return lines;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Adapt a reader to an iterator of lines.
+     *
+     * @param r
+     *            Input. Not closed.
+     * @return Lines without line terminators. IOException surfaces as
+     *         RuntimeException.
+     */
+    public static Iterator<String> lines(final BufferedReader r)
+    {
+        return LineIterator.of(r);
+    }
+
+    /**
+     * Adapt a JDBC cursor to an iterator of lines &quot;key\trecord&quot;.
+     * Set a fetch size on the statement to keep memory bounded.
+     *
+     * @param rs
+     *            Result set. Not closed.
+     * @param keyColumn
+     *            Column holding the key, i.e. username
+     * @param recordColumn
+     *            Column holding the record
+     * @return Lines. SQLException surfaces as RuntimeException.
+     */
+    public static Iterator<String> lines(final ResultSet rs, final int keyColumn,
+            final int recordColumn)
+    {
+        return new LineIterator()
+        {
+            @Override
+            protected String read() throws SQLException
+            {
+                return rs.next() ? rs.getString(keyColumn) + "\t"
+                        + rs.getString(recordColumn) : null;
+            }
+        };
+    }
+
+    /**
+     * Command line: strengthen an export file. An existing output file is
+     * resumed.
+     * <p>
+     * Usage: [-i outer-iterations] [-a algorithm] [-t threads] input output
+     *
+     * @param args
+     *            See usage
+     * @throws IOException
+     *             File access failed
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int iterations = 10000;
+        String algorithm = "HmacSHA1";
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        for (; i + 1 < args.length && args[i].startsWith("-"); i += 2)
+        {
+            if (args[i].equals("-i"))
+            {
+                iterations = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-a"))
+            {
+                algorithm = args[i + 1];
+            }
+            else if (args[i].equals("-t"))
+            {
+                threads = Integer.parseInt(args[i + 1]);
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (args.length - i != 2)
+        {
+            System.err.println("Usage: RecordStrengthener [-i outer-iterations] [-a algorithm] [-t threads] input output");
+            System.exit(2);
+        }
+        File outFile = new File(args[i + 1]);
+        long skip = resume(outFile);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(args[i]), "UTF-8"));
+        try
+        {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(outFile, true), "UTF-8"));
+            try
+            {
+                new RecordStrengthener(algorithm, iterations, 8).run(lines(in),
+                        out, threads, skip, System.err);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PBKDF2 engine that delegates the whole derivation to the platform's
+ * <code>SecretKeyFactory</code> &quot;PBKDF2With&lt;hashAlgorithm&gt;&quot;,
+ * i.e. PBKDF2WithHmacSHA256, whose HMAC path benefits from SHA intrinsics on
+ * modern JDKs.
+ * <p>
+ * The JCA implementation always encodes the password as UTF-8. Delegation
+ * therefore only takes place when the password octets under the configured
+ * character set are identical to its UTF-8 octets (always the case for UTF-8,
+ * and for pure ASCII passwords under ISO-8859-1). It is also skipped when a
+ * custom PRF was set, for empty salt or password, and when the platform lacks
+ * the algorithm. In all these cases the iterative {@link PBKDF2Engine} code
+ * path is used. Results are byte-for-byte identical either way, so this
+ * engine can be swapped in for existing records, for example via the
+ * <code>engine</code> option of SaltedDatabaseServerLoginModule.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class SecretKeyFactoryPBKDF2Engine extends PBKDF2Engine
+{
+    /**
+     * Upper-case algorithm names known to be unavailable on this platform.
+     */
+    private static final Set<String> unsupported = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Mac lengths by upper-case Mac algorithm name, for dkLen 0.
+     */
+    private static final ConcurrentMap<String, Integer> macLengths = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Whether the PRF was supplied by the caller rather than created by the
+     * fallback path.
+     */
+    protected boolean customPRF = false;
+
+    public SecretKeyFactoryPBKDF2Engine()
+    {
+        super();
+    }
+
+    public SecretKeyFactoryPBKDF2Engine(PBKDF2Parameters parameters)
+    {
+        super(parameters);
+    }
+
+    @Override
+    public byte[] deriveKey(String inputPassword, int dkLen)
+    {
+        if (inputPassword == null)
+        {
+            inputPassword = "";
+        }
+        byte[] r = null;
+        if (!customPRF && inputPassword.length() > 0)
+        {
+            r = deriveKeyJCA(inputPassword, dkLen);
+        }
+        if (r == null)
+        {
+            r = super.deriveKey(inputPassword, dkLen);
+        }
+        return r;
+    }
+
+    @Override
+    public void setPseudoRandomFunction(PRF prf)
+    {
+        super.setPseudoRandomFunction(prf);
+        customPRF = (prf != null);
+    }
+
+    /**
+     * Derive key via SecretKeyFactory.
+     *
+     * @param inputPassword
+     *            Candidate password, non-empty
+     * @param dkLen
+     *            Desired key length, 0 means the Mac length
+     * @return Derived key, or <code>null</code> if delegation is not possible
+     *         for these inputs.
+     */
+    protected byte[] deriveKeyJCA(String inputPassword, int dkLen)
+    {
+        String algorithm = parameters.getHashAlgorithm();
+        byte[] S = parameters.getSalt();
+        int c = parameters.getIterationCount();
+        if (algorithm == null || S == null || S.length == 0 || c <= 0
+                || !isUTF8Compatible(inputPassword))
+        {
+            return null;
+        }
+        String jcaAlgorithm = "PBKDF2With" + algorithm;
+        String k = jcaAlgorithm.toUpperCase(Locale.ENGLISH);
+        if (unsupported.contains(k))
+        {
+            return null;
+        }
+        PBEKeySpec spec = null;
+        try
+        {
+            SecretKeyFactory f = SecretKeyFactory.getInstance(jcaAlgorithm);
+            if (dkLen == 0)
+            {
+                dkLen = getMacLength(algorithm);
+            }
+            spec = new PBEKeySpec(inputPassword.toCharArray(), S, c, dkLen * 8);
+            return f.generateSecret(spec).getEncoded();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            unsupported.add(k);
+            return null;
+        }
+        catch (GeneralSecurityException e)
+        {
+            return null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+        finally
+        {
+            if (spec != null)
+            {
+                spec.clearPassword();
+            }
+        }
+    }
+
+    /**
+     * Check whether the configured character set produces the same octets
+     * as UTF-8 for this password.
+     *
+     * @param inputPassword
+     *            Candidate password
+     * @return <code>true</code> if JCA derivation yields identical results
+     */
+    protected boolean isUTF8Compatible(String inputPassword)
+    {
+        String charset = parameters.getHashCharset();
+        if (charset != null && charset.equalsIgnoreCase("UTF-8"))
+        {
+            return true;
+        }
+        byte[] P = encodePassword(inputPassword);
+        try
+        {
+            byte[] U = inputPassword.getBytes("UTF-8");
+            boolean r = Arrays.equals(P, U);
+            Arrays.fill(U, (byte) 0);
+            return r;
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            Arrays.fill(P, (byte) 0);
+        }
+    }
+
+    private static int getMacLength(String algorithm)
+            throws NoSuchAlgorithmException
+    {
+        String k = algorithm.toUpperCase(Locale.ENGLISH);
+        Integer hLen = macLengths.get(k);
+        if (hLen == null)
+        {
+            hLen = Integer.valueOf(Mac.getInstance(algorithm).getMacLength());
+            macLengths.put(k, hLen);
+        }
+        return hLen.intValue();
+    }
+}
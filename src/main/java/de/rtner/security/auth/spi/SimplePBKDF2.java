@@ -32,6 +32,10 @@ import java.security.SecureRandom;
  * <li>Encoding: &quot;ISO-8859-1&quot;</li>
  * </ul>
  * Note: this class is <b>not thread-safe</b>. Create a new instance for each thread.
+ * When many threads create records concurrently, share one
+ * {@link StripedSaltGenerator} between these instances via
+ * {@link #setSaltGenerator(SaltGenerator)} so that salt generation does not
+ * serialize on one SecureRandom.
  *
  * @see <a href="http://tools.ietf.org/html/rfc2898">RFC 2898</a>
  * @author Matthias G&auml;rtner
@@ -42,6 +46,8 @@ public class SimplePBKDF2 extends PBKDF2Engine {
 
 	protected SecureRandom sr;
 
+	protected SaltGenerator saltGenerator;
+
 	protected PBKDF2Formatter formatter;
 
 	/**
@@ -94,6 +100,21 @@ public class SimplePBKDF2 extends PBKDF2Engine {
 		this.formatter = formatter;
 	}
 
+	public SaltGenerator getSaltGenerator() {
+		return saltGenerator;
+	}
+
+	/**
+	 * Set an alternative salt source.
+	 *
+	 * @param saltGenerator
+	 *            Salt source to use. <code>null</code> reverts to this
+	 *            instance's own SecureRandom.
+	 */
+	public void setSaltGenerator(SaltGenerator saltGenerator) {
+		this.saltGenerator = saltGenerator;
+	}
+
 	public int getSaltSize() {
 		return saltSize;
 	}
@@ -126,16 +147,42 @@ public class SimplePBKDF2 extends PBKDF2Engine {
 	}
 
 	/**
-	 * Generate Salt. Default is 8 Bytes obtained from SecureRandom.
+	 * Generate Salt. Default is 8 Bytes obtained from SecureRandom, or from the
+	 * salt generator if one is set.
 	 *
 	 * @return Random Bytes
 	 */
 	protected byte[] generateSalt() {
 		byte[] salt = new byte[getSaltSize()];
-		sr.nextBytes(salt);
+		if (saltGenerator != null) {
+			saltGenerator.nextBytes(salt);
+		} else {
+			sr.nextBytes(salt);
+		}
 		return salt;
 	}
 
+	/**
+	 * Check a stored record against this instance's policy. Callers can
+	 * replace the record using {@link #deriveKeyFormatted(String)} after the
+	 * next successful verification.
+	 *
+	 * @param formatted
+	 *            &quot;salt:iteration-count:derived-key&quot; (depends on
+	 *            effective formatter), as found in server-side storage.
+	 * @return <code>true</code> if iteration count or salt size are below this
+	 *         instance's settings. <code>false</code> otherwise, or if the
+	 *         formatter is unable to decode the input value.
+	 */
+	public boolean needsRehash(String formatted) {
+		PBKDF2Parameters q = new PBKDF2Parameters();
+		if (getFormatter().fromString(q, formatted)) {
+			return false;
+		}
+		return q.getIterationCount() < getParameters().getIterationCount()
+				|| q.getSalt() == null || q.getSalt().length < getSaltSize();
+	}
+
 	/**
 	 * Verification function.
 	 *
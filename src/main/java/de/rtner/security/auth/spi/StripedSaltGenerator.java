@@ -0,0 +1,218 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+
+/**
+ * Salt generator that keeps one SecureRandom instance per thread.
+ * <p>
+ * A single shared SecureRandom is synchronized and becomes a point of
+ * contention when many threads create records at once. This generator gives
+ * each thread its own instance of the configured algorithm and a prefetch
+ * buffer that is refilled in bulk, so that salts are handed out as slices of
+ * that buffer without any locking.
+ * <p>
+ * The algorithm is pluggable, for example &quot;SHA1PRNG&quot;,
+ * &quot;NativePRNGNonBlocking&quot; (Java 8, Unix) or &quot;DRBG&quot; (Java
+ * 9). <code>null</code> selects the platform default
+ * <code>new SecureRandom()</code>.
+ * <p>
+ * Note: instances hold thread-local state. In containers with pooled threads,
+ * create one generator and share it rather than creating one per request.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class StripedSaltGenerator implements SaltGenerator
+{
+    /**
+     * Default size of each thread's prefetch buffer in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    protected final String algorithm;
+
+    protected final String provider;
+
+    protected final int bufferSize;
+
+    private final ThreadLocal<Stripe> stripes = new ThreadLocal<Stripe>()
+    {
+        @Override
+        protected Stripe initialValue()
+        {
+            return new Stripe(newSecureRandom(), bufferSize);
+        }
+    };
+
+    /**
+     * Constructor using the platform default SecureRandom and default buffer
+     * size.
+     */
+    public StripedSaltGenerator()
+    {
+        this.algorithm = null;
+        this.provider = null;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param algorithm
+     *            SecureRandom algorithm, i.e. &quot;NativePRNGNonBlocking&quot;
+     *            or &quot;DRBG&quot;. <code>null</code> means platform
+     *            default.
+     * @param bufferSize
+     *            Size of each thread's prefetch buffer in bytes, positive.
+     * @throws NoSuchAlgorithmException
+     *             Algorithm not supported by any installed provider.
+     */
+    public StripedSaltGenerator(String algorithm, int bufferSize)
+            throws NoSuchAlgorithmException
+    {
+        this(algorithm, null, bufferSize);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param algorithm
+     *            SecureRandom algorithm. <code>null</code> means platform
+     *            default.
+     * @param provider
+     *            Provider name, may be <code>null</code>.
+     * @param bufferSize
+     *            Size of each thread's prefetch buffer in bytes, positive.
+     * @throws NoSuchAlgorithmException
+     *             Algorithm not supported by the provider(s).
+     */
+    public StripedSaltGenerator(String algorithm, String provider,
+            int bufferSize) throws NoSuchAlgorithmException
+    {
+        if (bufferSize <= 0)
+        {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        this.algorithm = algorithm;
+        this.provider = provider;
+        this.bufferSize = bufferSize;
+        // Fail early on unknown algorithm or provider
+        try
+        {
+            getInstance();
+        }
+        catch (NoSuchProviderException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public void nextBytes(byte[] salt)
+    {
+        Stripe s = stripes.get();
+        int off = 0;
+        while (off < salt.length)
+        {
+            if (s.pos == s.buf.length)
+            {
+                s.sr.nextBytes(s.buf);
+                s.pos = 0;
+            }
+            int n = Math.min(salt.length - off, s.buf.length - s.pos);
+            System.arraycopy(s.buf, s.pos, salt, off, n);
+            s.pos += n;
+            off += n;
+        }
+    }
+
+    public String getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    public String getProvider()
+    {
+        return provider;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Factory method for the per-thread SecureRandom instances. Override to
+     * apply custom seeding.
+     *
+     * @return new SecureRandom instance
+     */
+    protected SecureRandom newSecureRandom()
+    {
+        try
+        {
+            return getInstance();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (NoSuchProviderException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private SecureRandom getInstance() throws NoSuchAlgorithmException,
+            NoSuchProviderException
+    {
+        if (algorithm == null)
+        {
+            return new SecureRandom();
+        }
+        if (provider == null)
+        {
+            return SecureRandom.getInstance(algorithm);
+        }
+        return SecureRandom.getInstance(algorithm, provider);
+    }
+
+    /**
+     * Per-thread state: generator and prefetched bytes.
+     */
+    private static final class Stripe
+    {
+        final SecureRandom sr;
+
+        final byte[] buf;
+
+        int pos;
+
+        Stripe(SecureRandom sr, int bufferSize)
+        {
+            this.sr = sr;
+            this.buf = new byte[bufferSize];
+            this.pos = bufferSize;
+        }
+    }
+}
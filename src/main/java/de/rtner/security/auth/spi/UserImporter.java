@@ -0,0 +1,199 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bulk import of users from CSV lines &quot;username,password&quot;.
+ * <p>
+ * Passwords are hashed in parallel by a {@link BulkPBKDF2}, records are
+ * written with JDBC batches of a configurable chunk size. The password is
+ * everything after the first comma, so it may contain commas. Blank lines are
+ * skipped. Input is consumed lazily; memory use is bounded by the chunk size
+ * and the hashing window.
+ * <p>
+ * The statement takes username and record, i.e.
+ * <code>MERGE INTO Users (username, password) VALUES (?, ?)</code>. Commit
+ * handling is left to the caller's connection settings.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class UserImporter
+{
+    public static final String DEFAULT_MERGE_QUERY = "MERGE INTO Users (username, password) VALUES (?, ?)";
+
+    protected final BulkPBKDF2 bulk;
+
+    protected final String mergeQuery;
+
+    protected final int chunkSize;
+
+    /**
+     * Constructor.
+     *
+     * @param bulk
+     *            Hashing engine, not shut down by this class
+     * @param mergeQuery
+     *            Insert or merge statement, parameters username and record
+     * @param chunkSize
+     *            Rows per JDBC batch, positive
+     */
+    public UserImporter(BulkPBKDF2 bulk, String mergeQuery, int chunkSize)
+    {
+        if (chunkSize <= 0)
+        {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.bulk = bulk;
+        this.mergeQuery = mergeQuery;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Import users.
+     *
+     * @param lines
+     *            CSV lines &quot;username,password&quot;
+     * @param con
+     *            Target connection. Not closed.
+     * @param progress
+     *            Receives a line with count and throughput after each chunk,
+     *            <code>null</code> for none
+     * @return Number of users written
+     * @throws SQLException
+     *             Writing failed. Earlier chunks stay written unless the
+     *             caller rolls back.
+     */
+    public long importUsers(Iterator<String> lines, Connection con, PrintWriter progress)
+            throws SQLException
+    {
+        CsvSplitter csv = new CsvSplitter(lines);
+        Iterator<String> records = bulk.deriveKeysFormatted(csv);
+        long count = 0;
+        long start = System.currentTimeMillis();
+        PreparedStatement ps = con.prepareStatement(mergeQuery);
+        try
+        {
+            int pending = 0;
+            while (records.hasNext())
+            {
+                String record = records.next();
+                ps.setString(1, csv.usernames.poll());
+                ps.setString(2, record);
+                ps.addBatch();
+                if (++pending == chunkSize)
+                {
+                    ps.executeBatch();
+                    count += pending;
+                    pending = 0;
+                    report(progress, count, start);
+                }
+            }
+            if (pending > 0)
+            {
+                ps.executeBatch();
+                count += pending;
+                report(progress, count, start);
+            }
+        }
+        finally
+        {
+            ps.close();
+        }
+        return count;
+    }
+
+    private static void report(PrintWriter progress, long count, long start)
+    {
+        if (progress != null)
+        {
+            long millis = Math.max(1, System.currentTimeMillis() - start);
+            progress.println(count + " users, " + (count * 1000 / millis) + " users/s");
+            progress.flush();
+        }
+    }
+
+    /**
+     * Feeds passwords to the hashing engine and remembers the usernames in
+     * the same order. Results are consumed on the thread that pulls the
+     * input, so no synchronization is needed.
+     */
+    private static final class CsvSplitter implements Iterator<String>
+    {
+        final ArrayDeque<String> usernames = new ArrayDeque<String>();
+
+        private final Iterator<String> lines;
+
+        private String next;
+
+        private long lineNumber = 0;
+
+        CsvSplitter(Iterator<String> lines)
+        {
+            this.lines = lines;
+        }
+
+        public boolean hasNext()
+        {
+            while (next == null && lines.hasNext())
+            {
+                String line = lines.next();
+                lineNumber++;
+                if (line.trim().length() == 0)
+                {
+                    continue;
+                }
+                int comma = line.indexOf(',');
+                if (comma <= 0)
+                {
+                    // Do not echo the line, it holds a password
+                    throw new IllegalArgumentException("Expected username,password in line " + lineNumber);
+                }
+                usernames.add(line.substring(0, comma).trim());
+                next = line.substring(comma + 1);
+            }
+            return next != null;
+        }
+
+        public String next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            String s = next;
+            next = null;
+            return s;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client for {@link VerificationServer}. One instance holds one connection
+ * and is thread-safe: concurrent callers pipeline their requests over it, a
+ * reader thread hands each response to the caller waiting for it. After a
+ * connection failure all pending and further requests fail; create a new
+ * client to reconnect.
+ *
+ * @author Matthias G&auml;rtner
+ */
+public class VerificationClient implements Closeable
+{
+    private static final PBKDF2BinaryFormatter formatter = new PBKDF2BinaryFormatter();
+
+    private final Socket socket;
+
+    private final OutputStream out;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private final ConcurrentMap<Integer, Response> pending = new ConcurrentHashMap<Integer, Response>();
+
+    private volatile IOException failure = null;
+
+    /**
+     * Connect to a server.
+     *
+     * @param address
+     *            Server address
+     * @param connectTimeoutMillis
+     *            Connect timeout, zero means none.
+     * @throws IOException
+     *             Connection failed
+     */
+    public VerificationClient(InetSocketAddress address, int connectTimeoutMillis)
+            throws IOException
+    {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address, connectTimeoutMillis);
+        out = socket.getOutputStream();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        Thread t = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                receive(in);
+            }
+        }, "PBKDF2-verify-client");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Parse a &quot;host:port&quot; address.
+     *
+     * @param hostAndPort
+     *            i.e. localhost:7000
+     * @return Unresolved socket address
+     * @throws IllegalArgumentException
+     *             No port given
+     */
+    public static InetSocketAddress parseAddress(String hostAndPort)
+    {
+        int i = hostAndPort.lastIndexOf(':');
+        if (i < 0)
+        {
+            throw new IllegalArgumentException("Expected host:port, got " + hostAndPort);
+        }
+        return new InetSocketAddress(hostAndPort.substring(0, i),
+                Integer.parseInt(hostAndPort.substring(i + 1)));
+    }
+
+    /**
+     * Verify a password against a stored record and wait for the result.
+     *
+     * @param p
+     *            Stored record. Its charset encodes the password.
+     * @param inputPassword
+     *            Candidate password, <code>null</code> is treated as empty.
+     * @param timeoutMillis
+     *            Maximum wait, zero means no limit.
+     * @return <code>true</code> if the password matches
+     * @throws IOException
+     *             Connection failed, timeout, or the server rejected the
+     *             request (i.e. unknown algorithm, iteration limit).
+     */
+    public boolean verify(PBKDF2Parameters p, String inputPassword,
+            long timeoutMillis) throws IOException
+    {
+        byte[] P = encodePassword(p, inputPassword);
+        try
+        {
+            return await(submit(p, P), timeoutMillis);
+        }
+        finally
+        {
+            Arrays.fill(P, (byte) 0);
+        }
+    }
+
+    /**
+     * Send a verification request without waiting.
+     *
+     * @param p
+     *            Stored record
+     * @param P
+     *            Candidate password octets. May be wiped once this method
+     *            returns.
+     * @return Result; fails with an IOException as described for
+     *         {@link #verify(PBKDF2Parameters, String, long)}.
+     * @throws IOException
+     *             Connection failed
+     */
+    public Future<Boolean> submit(PBKDF2Parameters p, byte[] P)
+            throws IOException
+    {
+        int len = 4 + formatter.getEncodedLength(p) + P.length;
+        if (len > VerificationServer.MAX_FRAME)
+        {
+            throw new IOException("Request too large");
+        }
+        Integer id = Integer.valueOf(nextId.incrementAndGet());
+        byte[] frame = new byte[4 + len];
+        ByteBuffer bb = ByteBuffer.wrap(frame);
+        bb.putInt(len).putInt(id.intValue());
+        formatter.encode(p, bb);
+        bb.put(P);
+        Response r = new Response(pending, id);
+        pending.put(id, r);
+        try
+        {
+            synchronized (out)
+            {
+                checkFailure();
+                out.write(frame);
+                out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            pending.remove(id);
+            fail(e);
+            throw e;
+        }
+        finally
+        {
+            Arrays.fill(frame, (byte) 0);
+        }
+        // The reader may have failed everything before this entry was added
+        if (failure != null && pending.remove(id) != null)
+        {
+            r.fail(failure);
+        }
+        return r;
+    }
+
+    /**
+     * @return Number of requests sent and neither answered, failed nor
+     *         cancelled.
+     */
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return <code>true</code> once the connection has failed or was closed
+     */
+    public boolean isClosed()
+    {
+        return failure != null;
+    }
+
+    public void close()
+    {
+        fail(new IOException("Client closed"));
+    }
+
+    private boolean await(Future<Boolean> f, long timeoutMillis)
+            throws IOException
+    {
+        try
+        {
+            return (timeoutMillis > 0) ? f.get(timeoutMillis,
+                    TimeUnit.MILLISECONDS) : f.get();
+        }
+        catch (TimeoutException e)
+        {
+            f.cancel(false);
+            throw new IOException("Verification timed out");
+        }
+        catch (InterruptedException e)
+        {
+            f.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().toString());
+        }
+    }
+
+    private void receive(DataInputStream in)
+    {
+        try
+        {
+            for (;;)
+            {
+                int len = in.readInt();
+                if (len != 5)
+                {
+                    throw new IOException("Bad response length " + len);
+                }
+                Integer id = Integer.valueOf(in.readInt());
+                int status = in.readByte();
+                Response r = pending.remove(id);
+                if (r != null)
+                {
+                    r.complete(status);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e)
+    {
+        if (failure == null)
+        {
+            failure = e;
+        }
+        try
+        {
+            socket.close();
+        }
+        catch (IOException ignored)
+        {
+            // ignore
+        }
+        Iterator<Response> it = pending.values().iterator();
+        while (it.hasNext())
+        {
+            Response r = it.next();
+            it.remove();
+            r.fail(failure);
+        }
+    }
+
+    private void checkFailure() throws IOException
+    {
+        IOException e = failure;
+        if (e != null)
+        {
+            throw new IOException("Connection failed: " + e.getMessage());
+        }
+    }
+
+    private static byte[] encodePassword(PBKDF2Parameters p, String inputPassword)
+    {
+        String charset = p.getHashCharset();
+        if (inputPassword == null)
+        {
+            inputPassword = "";
+        }
+        try
+        {
+            if (charset == null)
+            {
+                return inputPassword.getBytes();
+            }
+            return inputPassword.getBytes(charset);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Result holder completed by the reader thread. Leaves the pending map
+     * when done, including on timeout or cancel, so that requests the server
+     * never answers do not accumulate.
+     */
+    private static final class Response extends FutureTask<Boolean>
+    {
+        private static final Callable<Boolean> NONE = new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return null;
+            }
+        };
+
+        private final ConcurrentMap<Integer, Response> pending;
+
+        private final Integer id;
+
+        Response(ConcurrentMap<Integer, Response> pending, Integer id)
+        {
+            super(NONE);
+            this.pending = pending;
+            this.id = id;
+        }
+
+        @Override
+        protected void done()
+        {
+            pending.remove(id, this);
+        }
+
+        void complete(int status)
+        {
+            if (status == VerificationServer.STATUS_MATCH)
+            {
+                set(Boolean.TRUE);
+            }
+            else if (status == VerificationServer.STATUS_MISMATCH)
+            {
+                set(Boolean.FALSE);
+            }
+            else
+            {
+                setException(new IOException("Request rejected by server"));
+            }
+        }
+
+        void fail(IOException e)
+        {
+            setException(e);
+        }
+    }
+}
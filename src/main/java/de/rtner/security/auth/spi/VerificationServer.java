@@ -0,0 +1,492 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Standalone password verification server, so that PBKDF2 CPU load can be
+ * moved off latency-sensitive application servers onto dedicated nodes.
+ * <p>
+ * One selector thread handles all connections; derivations run on a fixed
+ * worker pool. Protocol, all integers big-endian:
+ * <ul>
+ * <li>Request: int32 length of the remainder, int32 request id, stored
+ * record in {@link PBKDF2BinaryFormatter} layout, then the candidate password
+ * octets up to the end of the frame. The client encodes the password with
+ * the record's charset.</li>
+ * <li>Response: int32 length (5), int32 request id, status byte
+ * {@link #STATUS_MISMATCH}, {@link #STATUS_MATCH} or {@link #STATUS_ERROR}.
+ * </li>
+ * </ul>
+ * Clients may pipeline requests; responses are sent as derivations complete,
+ * so they may arrive out of order and are matched by id. A connection stops
+ * being read while {@link #MAX_PENDING} of its requests are in progress or
+ * have responses not yet sent, so a client that does not read its responses
+ * cannot make the server buffer them without bound.
+ * Frames larger than {@link #MAX_FRAME} close the connection.
+ * <p>
+ * The server does not authenticate clients and the password travels in the
+ * clear; bind it to loopback or a private network only.
+ *
+ * @see VerificationClient
+ * @author Matthias G&auml;rtner
+ */
+public class VerificationServer implements Runnable
+{
+    public static final int STATUS_MISMATCH = 0;
+
+    public static final int STATUS_MATCH = 1;
+
+    public static final int STATUS_ERROR = 2;
+
+    /** Largest accepted request, excluding the length field. */
+    public static final int MAX_FRAME = 4096;
+
+    /** Requests per connection in progress before reading pauses. */
+    public static final int MAX_PENDING = 256;
+
+    /** Iteration limit of {@link #main(String[])} unless set by -m. */
+    public static final int DEFAULT_MAX_ITERATIONS = 1000000;
+
+    private static final Logger LOG = Logger.getLogger(VerificationServer.class.getName());
+
+    private static final PBKDF2BinaryFormatter formatter = new PBKDF2BinaryFormatter();
+
+    protected final int maxIterations;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel server;
+
+    private final ExecutorService workers;
+
+    /** Connections with new responses, handed from workers to the selector. */
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor. Binds the socket; call {@link #start()} to serve.
+     *
+     * @param address
+     *            Local address, port 0 picks a free port.
+     * @param threads
+     *            Number of worker threads
+     * @param maxIterations
+     *            Records with a higher (total) iteration count are answered
+     *            with {@link #STATUS_ERROR}. Zero means no limit.
+     * @throws IOException
+     *             Socket could not be bound
+     */
+    public VerificationServer(InetSocketAddress address, int threads,
+            int maxIterations) throws IOException
+    {
+        if (threads <= 0)
+        {
+            throw new IllegalArgumentException("Threads must be positive.");
+        }
+        this.maxIterations = maxIterations;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "PBKDF2-verify");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return Address the server is bound to
+     */
+    public InetSocketAddress getLocalAddress()
+    {
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Run the selector loop in a new daemon thread.
+     */
+    public void start()
+    {
+        Thread t = new Thread(this, "PBKDF2-verify-selector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stop serving. Open connections are closed, derivations in progress are
+     * abandoned.
+     */
+    public void close()
+    {
+        closed = true;
+        selector.wakeup();
+        workers.shutdownNow();
+        try
+        {
+            server.close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * Selector loop, returns after {@link #close()}.
+     */
+    public void run()
+    {
+        try
+        {
+            while (!closed)
+            {
+                selector.select();
+                Connection c;
+                while ((c = ready.poll()) != null)
+                {
+                    c.updateInterest();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try
+                    {
+                        if (!key.isValid())
+                        {
+                            continue;
+                        }
+                        if (key.isAcceptable())
+                        {
+                            accept();
+                            continue;
+                        }
+                        c = (Connection) key.attachment();
+                        if (key.isReadable())
+                        {
+                            c.read();
+                        }
+                        if (key.isValid() && key.isWritable())
+                        {
+                            c.write();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        closeChannel(key);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.log(Level.SEVERE, "Verification server failed", e);
+        }
+        finally
+        {
+            for (SelectionKey key : selector.keys())
+            {
+                closeChannel(key);
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Verify one request. Called on a worker thread.
+     *
+     * @param frame
+     *            Request without the length field, starting with the id.
+     * @return Status byte for the response
+     */
+    protected int verify(byte[] frame)
+    {
+        LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters();
+        ByteBuffer bb = ByteBuffer.wrap(frame, 4, frame.length - 4);
+        byte[] P = null;
+        try
+        {
+            formatter.decode(p, bb);
+            if (maxIterations > 0 && p.getTotalIterationCount() > maxIterations)
+            {
+                return STATUS_ERROR;
+            }
+            byte[] referenceKey = p.getDerivedKey();
+            if (referenceKey.length == 0)
+            {
+                return STATUS_MISMATCH;
+            }
+            P = Arrays.copyOfRange(frame, bb.position(), frame.length);
+            byte[] inputKey = new LayeredPBKDF2Engine(p).deriveKey(P,
+                    referenceKey.length);
+            return PBKDF2Engine.isEqual(inputKey, referenceKey) ? STATUS_MATCH
+                    : STATUS_MISMATCH;
+        }
+        catch (RuntimeException e)
+        {
+            // Malformed record, unknown algorithm et cetera
+            return STATUS_ERROR;
+        }
+        finally
+        {
+            if (P != null)
+            {
+                Arrays.fill(P, (byte) 0);
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel ch = server.accept();
+        if (ch == null)
+        {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(ch, key));
+    }
+
+    private static void closeChannel(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * Per-connection state. Only the selector thread reads and writes the
+     * channel; workers append to the response queue.
+     */
+    private final class Connection
+    {
+        private final SocketChannel channel;
+
+        private final SelectionKey key;
+
+        private final ByteBuffer in = ByteBuffer.allocate(4 + MAX_FRAME);
+
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private ByteBuffer current = null;
+
+        Connection(SocketChannel channel, SelectionKey key)
+        {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException
+        {
+            if (channel.read(in) < 0)
+            {
+                throw new IOException("Closed by peer");
+            }
+            dispatch();
+            updateInterest();
+        }
+
+        /**
+         * Hand complete frames in the input buffer to the workers while fewer
+         * than MAX_PENDING requests await their response.
+         */
+        private void dispatch() throws IOException
+        {
+            in.flip();
+            while (in.remaining() >= 4 && pending.get() < MAX_PENDING)
+            {
+                int len = in.getInt(in.position());
+                if (len < 4 || len > MAX_FRAME)
+                {
+                    throw new IOException("Bad frame length " + len);
+                }
+                if (in.remaining() < 4 + len)
+                {
+                    break;
+                }
+                in.getInt();
+                final byte[] frame = new byte[len];
+                in.get(frame);
+                pending.incrementAndGet();
+                workers.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        int status = verify(frame);
+                        ByteBuffer r = ByteBuffer.allocate(9);
+                        r.putInt(5).put(frame, 0, 4).put((byte) status).flip();
+                        Arrays.fill(frame, (byte) 0);
+                        out.add(r);
+                        ready.add(Connection.this);
+                        selector.wakeup();
+                    }
+                });
+            }
+            // Wipe the copies of consumed passwords left behind by compact()
+            int end = in.limit();
+            in.compact();
+            Arrays.fill(in.array(), in.position(), end, (byte) 0);
+        }
+
+        void write() throws IOException
+        {
+            boolean sent = false;
+            for (;;)
+            {
+                if (current == null)
+                {
+                    current = out.poll();
+                    if (current == null)
+                    {
+                        break;
+                    }
+                }
+                channel.write(current);
+                if (current.hasRemaining())
+                {
+                    break;
+                }
+                current = null;
+                // A request counts as pending until its response is sent
+                pending.decrementAndGet();
+                sent = true;
+            }
+            if (sent && in.position() > 0)
+            {
+                dispatch();
+            }
+            updateInterest();
+        }
+
+        void updateInterest()
+        {
+            if (!key.isValid())
+            {
+                return;
+            }
+            int ops = 0;
+            if (pending.get() < MAX_PENDING)
+            {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (current != null || !out.isEmpty())
+            {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Run a server until the process is terminated.
+     * <p>
+     * Usage: [-t threads] [-m maxIterations] port [bindAddress]
+     * <p>
+     * Binds to loopback unless a bind address is given. maxIterations
+     * defaults to {@link #DEFAULT_MAX_ITERATIONS}; 0 removes the limit.
+     *
+     * @param args
+     *            Command line
+     * @throws IOException
+     *             Socket could not be bound
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxIterations = DEFAULT_MAX_ITERATIONS;
+        for (;;)
+        {
+            if (args.length >= 2 && args[0].equals("-t"))
+            {
+                threads = Integer.parseInt(args[1]);
+                args = Arrays.copyOfRange(args, 2, args.length);
+            }
+            else if (args.length >= 2 && args[0].equals("-m"))
+            {
+                maxIterations = Integer.parseInt(args[1]);
+                args = Arrays.copyOfRange(args, 2, args.length);
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (args.length < 1)
+        {
+            System.err.println("Usage: [-t threads] [-m maxIterations] port [bindAddress]");
+            System.exit(2);
+        }
+        int port = Integer.parseInt(args[0]);
+        // Unauthenticated and plaintext: other interfaces only on request
+        InetSocketAddress address = (args.length >= 2) ? new InetSocketAddress(
+                args[1], port) : new InetSocketAddress(InetAddress.getByName(null), port);
+        VerificationServer s = new VerificationServer(address, threads,
+                maxIterations);
+        System.out.println("Listening on " + s.getLocalAddress());
+        s.run();
+    }
+}
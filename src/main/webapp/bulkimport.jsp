@@ -0,0 +1,52 @@
+<%@ page language="java"
+         import="javax.naming.*,
+                 javax.sql.*,
+                 java.io.*,
+                 java.sql.*,
+                 de.rtner.misc.LineIterator,
+                 de.rtner.security.auth.spi.*" %>
+<%
+    // Imports change data: POST only. Access is restricted to role "admin" in web.xml.
+    if (!"POST".equals(request.getMethod())) {
+        response.setHeader("Allow", "POST");
+        response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        return;
+    }
+%>
+<jsp:include page="WEB-INF/jspx/header.jsp" />
+
+<h1>Bulk Import Users</h1>
+<pre>
+<%
+    // CSV "username,password" per line, either from form field "csv" or
+    // streamed as request body, i.e.
+    //   curl -u admin --data-binary @users.csv -H "Content-Type: text/csv" http://localhost:8080/PBKDF2-Sample/bulkimport.jsp?chunk=1000
+    // Needs the de.rtner.PBKDF2 module, see WEB-INF/jboss-deployment-structure.xml
+    String csv = request.getParameter("csv");
+    BufferedReader in = (csv != null) ? new BufferedReader(new StringReader(csv)) : request.getReader();
+
+    String s = request.getParameter("chunk");
+    int chunk = (s != null) ? Integer.parseInt(s) : 500;
+    s = request.getParameter("iterations");
+    int iterations = (s != null) ? Integer.parseInt(s) : 1000;
+
+    BulkPBKDF2 bulk = new BulkPBKDF2(8, iterations);
+    DataSource ds = InitialContext.doLookup("java:jboss/datasources/ExampleDS");
+    Connection con = ds.getConnection();
+    try {
+        PrintWriter progress = new PrintWriter(out);
+        long n = new UserImporter(bulk, UserImporter.DEFAULT_MERGE_QUERY, chunk)
+                .importUsers(LineIterator.of(in), con, progress);
+        progress.println("Imported " + n + " users.");
+        progress.flush();
+    } finally {
+        con.close();
+        bulk.shutdown();
+    }
+%>
+</pre>
+<p>
+<a href="index.jsp">Back</a>
+</p>
+
+<jsp:include page="WEB-INF/jspx/footer.jsp" />
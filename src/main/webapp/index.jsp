@@ -26,6 +26,23 @@ assuming the JAR would be included.
 7008119CDC9AD6D9:1000:D213E20E346F4A762350C530BBBAD375ABA3FEB6
 </pre>
 
+<h2>Bulk Import Users</h2>
+
+Import many users at once. Enter one &quot;username,password&quot; per line.
+Passwords are hashed on the server, so this page needs the de.rtner.PBKDF2
+module that the security domain uses anyway. Large files are better streamed
+as request body, see the comment in bulkimport.jsp. Importing overwrites the
+passwords of existing users, so bulkimport.jsp requires the &quot;admin&quot;
+role, which the sample rolesQuery does not grant.
+
+<form method="POST" action="bulkimport.jsp">
+<textarea name="csv" rows="5" cols="40">john,password
+jane,secret</textarea><br />
+Chunk size <input type="text" name="chunk" value="500" size="6" />
+Iterations <input type="text" name="iterations" value="1000" size="8" /><br />
+<input type="submit" value="Import Users" />
+</form>
+
 <h2>Access protected resource</h2>
 
 Click <a href="hello.jsp">here</a> for a request to secured <a href="hello.jsp">hello.jsp</a>.
@@ -0,0 +1,141 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+	@Test
+	public void testRejectBeyondLimit() {
+		AdaptiveConcurrencyLimiter l = new AdaptiveConcurrencyLimiter(2, 1, 8);
+		assertTrue(l.tryAcquire());
+		assertTrue(l.tryAcquire());
+		assertFalse("Third permit should be refused", l.tryAcquire());
+		assertEquals(1, l.getRejected());
+		assertEquals(2, l.getInFlight());
+		l.release(100);
+		assertTrue("Released permit should be available", l.tryAcquire());
+	}
+
+	@Test
+	public void testAdditiveIncrease() {
+		AdaptiveConcurrencyLimiter l = new AdaptiveConcurrencyLimiter(2, 1, 8);
+		// Only the release that finds all permits taken counts: 2 + 1/2
+		saturate(l, 100);
+		assertEquals(2, l.getLimit());
+		// 2.5 + 1/2.5 = 2.9
+		saturate(l, 100);
+		assertEquals(2, l.getLimit());
+		// 2.9 + 1/2.9
+		saturate(l, 100);
+		assertEquals(3, l.getLimit());
+	}
+
+	@Test
+	public void testNoIncreaseWhenUnused() {
+		AdaptiveConcurrencyLimiter l = new AdaptiveConcurrencyLimiter(2, 1, 8);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(l.tryAcquire());
+			l.release(100);
+		}
+		assertEquals(2, l.getLimit());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() {
+		AdaptiveConcurrencyLimiter l = new AdaptiveConcurrencyLimiter(10, 1, 10);
+		assertTrue(l.tryAcquire());
+		l.release(100);
+		assertTrue(l.tryAcquire());
+		// Far above 1.5 times the baseline: 10 * 0.9
+		l.release(1000);
+		assertEquals(9, l.getLimit());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(l.tryAcquire());
+			l.release(1000);
+		}
+		assertEquals("Limit must not drop below minLimit", 1, l.getLimit());
+	}
+
+	@Test
+	public void testOneDecreasePerRound() {
+		AdaptiveConcurrencyLimiter l = new AdaptiveConcurrencyLimiter(10, 1, 10);
+		assertTrue(l.tryAcquire());
+		l.release(100);
+		// Ten overlapping slow operations are one overload signal
+		saturate(l, 1000);
+		assertEquals(9, l.getLimit());
+		saturate(l, 1000);
+		assertEquals(8, l.getLimit());
+	}
+
+	@Test
+	public void testLatencyPerWork() {
+		AdaptiveConcurrencyLimiter l = new AdaptiveConcurrencyLimiter(2, 1, 8);
+		assertTrue(l.tryAcquire());
+		l.release(1000, 1000);
+		// Ten times the iterations in ten times the time is not overload
+		for (int i = 0; i < 10; i++) {
+			assertTrue(l.tryAcquire());
+			l.release(10000, 10000);
+		}
+		assertEquals(2, l.getLimit());
+		assertTrue(l.tryAcquire());
+		l.release(10000, 1000);
+		assertEquals(1, l.getLimit());
+	}
+
+	@Test
+	public void testMaxLimit() {
+		AdaptiveConcurrencyLimiter l = new AdaptiveConcurrencyLimiter(2, 1, 3);
+		for (int i = 0; i < 20; i++) {
+			saturate(l, 100);
+		}
+		assertEquals(3, l.getLimit());
+		assertEquals(3, new AdaptiveConcurrencyLimiter(100, 1, 3).getLimit());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBounds() {
+		new AdaptiveConcurrencyLimiter(1, 0, 4);
+	}
+
+	/**
+	 * Take all permits, then release them with the given latency.
+	 */
+	private static void saturate(AdaptiveConcurrencyLimiter l, long latency) {
+		int n = 0;
+		while (l.tryAcquire()) {
+			n++;
+		}
+		for (int i = 0; i < n; i++) {
+			l.release(latency);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Allocation budgets of the derivation hot path, measured with
+ * com.sun.management.ThreadMXBean. That interface is accessed by reflection,
+ * so that this test compiles on any JDK; it is skipped on JVMs without
+ * per-thread allocation accounting.
+ * <p>
+ * The per-iteration budget is one hLen-sized array: javax.crypto.Mac
+ * allocates its result on every doFinal and offers no way around that.
+ * Anything else allocated per iteration is a regression.
+ */
+public class AllocationBudgetTest {
+
+	private static final String[] ALGORITHMS = { "HmacSHA1", "HmacSHA256", "HmacSHA512" };
+
+	/** Per derivation: password octets, key spec, blocks, scratch arrays. */
+	private static final long FIXED_BUDGET = 1024;
+
+	private static ThreadMXBean threadBean;
+
+	/** com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long) */
+	private static Method getThreadAllocatedBytes;
+
+	private static Method setThreadAllocatedMemoryEnabled;
+
+	/** Accounting was off before this test enabled it. */
+	private static boolean enabledByTest = false;
+
+	/** Bytes reported between two consecutive reads of the counter. */
+	private static long baseline;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Class<?> sunBean;
+		try {
+			sunBean = Class.forName("com.sun.management.ThreadMXBean");
+		} catch (ClassNotFoundException e) {
+			sunBean = null;
+		}
+		threadBean = ManagementFactory.getThreadMXBean();
+		assumeTrue(sunBean != null && sunBean.isInstance(threadBean));
+		assumeTrue(((Boolean) sunBean.getMethod("isThreadAllocatedMemorySupported").invoke(threadBean)).booleanValue());
+		getThreadAllocatedBytes = sunBean.getMethod("getThreadAllocatedBytes", long.class);
+		setThreadAllocatedMemoryEnabled = sunBean.getMethod("setThreadAllocatedMemoryEnabled", boolean.class);
+		if (!((Boolean) sunBean.getMethod("isThreadAllocatedMemoryEnabled").invoke(threadBean)).booleanValue()) {
+			setThreadAllocatedMemoryEnabled.invoke(threadBean, Boolean.TRUE);
+			enabledByTest = true;
+		}
+		baseline = Long.MAX_VALUE;
+		for (int i = 0; i < 100; i++) {
+			long t0 = allocatedBytes();
+			long t1 = allocatedBytes();
+			baseline = Math.min(baseline, t1 - t0);
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		if (enabledByTest) {
+			setThreadAllocatedMemoryEnabled.invoke(threadBean, Boolean.FALSE);
+			enabledByTest = false;
+		}
+	}
+
+	@Test
+	public void testDeriveKey() {
+		for (String algorithm : ALGORITHMS) {
+			for (int blocks = 1; blocks <= 3; blocks += 2) {
+				final PBKDF2Parameters p = new PBKDF2Parameters(algorithm, "UTF-8", new byte[16], 0);
+				final PBKDF2Engine e = new PBKDF2Engine(p);
+				final int dkLen = blocks * hLen(algorithm);
+				checkBudget(algorithm + " deriveKey dkLen=" + dkLen, blocks, hLen(algorithm), new Derivation() {
+					public void run(int c) {
+						p.setIterationCount(c);
+						e.deriveKey("password", dkLen);
+					}
+				});
+			}
+		}
+	}
+
+	@Test
+	public void testDeriveKeyByteBuffer() {
+		for (String algorithm : ALGORITHMS) {
+			final PBKDF2Engine e = new PBKDF2Engine(new PBKDF2Parameters(algorithm, "UTF-8", null, 0));
+			final ByteBuffer P = ByteBuffer.allocateDirect(8);
+			P.put(new byte[] { 'p', 'a', 's', 's', 'w', 'o', 'r', 'd' }).flip();
+			final ByteBuffer S = ByteBuffer.allocateDirect(16);
+			final ByteBuffer out = ByteBuffer.allocateDirect(2 * hLen(algorithm) + 1);
+			checkBudget(algorithm + " deriveKey(ByteBuffer)", 3, hLen(algorithm), new Derivation() {
+				public void run(int c) {
+					out.clear();
+					e.deriveKey(P, S, c, out);
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testVerifyKey() {
+		for (String algorithm : ALGORITHMS) {
+			final PBKDF2Parameters p = new PBKDF2Parameters(algorithm, "UTF-8", new byte[8], 1);
+			p.setDerivedKey(new PBKDF2Engine(p).deriveKey("password"));
+			final PBKDF2Engine e = new PBKDF2Engine(p);
+			checkBudget(algorithm + " verifyKey", 1, hLen(algorithm), new Derivation() {
+				public void run(int c) {
+					p.setIterationCount(c);
+					e.verifyKey("password");
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testPRF() {
+		for (String algorithm : ALGORITHMS) {
+			final MacBasedPRF prf = new MacBasedPRF(algorithm);
+			prf.init(new byte[] { 1, 2, 3 });
+			final byte[] U = new byte[prf.getHLen()];
+			checkBudget(algorithm + " MacBasedPRF", 1, prf.getHLen(), new Derivation() {
+				public void run(int c) {
+					for (int i = 0; i < c; i++) {
+						prf.update(U, 0, U.length);
+						prf.doFinal(U, 0);
+					}
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testParse() {
+		final String record = "0102030405060708:1000:4b007901b765489abead49d926f721d065a429c1";
+		final PBKDF2HexFormatter hex = new PBKDF2HexFormatter();
+		final PBKDF2BinaryFormatter binary = new PBKDF2BinaryFormatter();
+		final PBKDF2Parameters p = new PBKDF2Parameters();
+		hex.fromString(p, record);
+		final byte[] b = binary.encode(p);
+
+		long a = measure(new Runnable() {
+			public void run() {
+				hex.fromString(p, record);
+			}
+		});
+		assertTrue("PBKDF2HexFormatter.fromString allocated " + a + " bytes", a <= 1024);
+
+		a = measure(new Runnable() {
+			public void run() {
+				binary.decode(p, b, 0, b.length);
+			}
+		});
+		assertTrue("PBKDF2BinaryFormatter.decode allocated " + a + " bytes", a <= 256);
+	}
+
+	/**
+	 * A derivation with a variable iteration count.
+	 */
+	private interface Derivation {
+		void run(int c);
+	}
+
+	/**
+	 * Measure at two iteration counts. The difference must stay within one
+	 * result array per iteration and block, the rest within the fixed budget.
+	 */
+	private static void checkBudget(String what, int blocks, int hLen, final Derivation d) {
+		final int c = 256;
+		for (int i = 0; i < 200; i++) {
+			d.run(c);
+		}
+		long a1 = measure(new Runnable() {
+			public void run() {
+				d.run(c);
+			}
+		});
+		long a2 = measure(new Runnable() {
+			public void run() {
+				d.run(2 * c);
+			}
+		});
+		long perIteration = (a2 - a1) / ((long) c * blocks);
+		long perIterationBudget = (24 + hLen + 7) & ~7;
+		assertTrue(what + ": " + perIteration + " bytes per iteration, budget " + perIterationBudget,
+			perIteration <= perIterationBudget);
+		long fixed = a1 - perIteration * c * blocks;
+		assertTrue(what + ": " + fixed + " bytes per call, budget " + FIXED_BUDGET, fixed <= FIXED_BUDGET);
+	}
+
+	/**
+	 * @return Smallest allocation of several runs, so that one-off events
+	 *         such as class loading do not count.
+	 */
+	private static long measure(Runnable r) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long t0 = allocatedBytes();
+			r.run();
+			long t1 = allocatedBytes();
+			best = Math.min(best, t1 - t0 - baseline);
+		}
+		return best;
+	}
+
+	/**
+	 * Reflective call; its own allocation is constant and part of the
+	 * baseline.
+	 */
+	private static long allocatedBytes() {
+		try {
+			return ((Long) getThreadAllocatedBytes.invoke(threadBean, Thread.currentThread().getId())).longValue();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int hLen(String algorithm) {
+		return new MacBasedPRF(algorithm).getHLen();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class AttemptThrottleTest {
+
+	@Test
+	public void testLimit() {
+		AttemptThrottle t = new AttemptThrottle(3, 3600000);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(t.tryAttempt("john"));
+		}
+		assertFalse("Fourth attempt should be rejected", t.tryAttempt("john"));
+		assertEquals(3, t.estimate("john"));
+		assertTrue("Other users unaffected", t.tryAttempt("jane"));
+	}
+
+	@Test
+	public void testManyUsersFixedMemory() {
+		AttemptThrottle t = new AttemptThrottle(5, 3600000);
+		int rejected = 0;
+		for (int i = 0; i < 2000; i++) {
+			if (!t.tryAttempt("user" + i)) {
+				rejected++;
+			}
+		}
+		// One attempt each; collisions in all four rows must be rare
+		assertTrue("Too many false positives: " + rejected, rejected < 5);
+	}
+
+	@Test
+	public void testEqualHashCodes() {
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		AttemptThrottle t = new AttemptThrottle(1, 3600000);
+		assertTrue(t.tryAttempt("AaAa"));
+		assertTrue("Rows must not depend on String.hashCode()", t.tryAttempt("BBBB"));
+		assertTrue(t.tryAttempt("AaBB"));
+		assertFalse(t.tryAttempt("AaAa"));
+	}
+
+	@Test
+	public void testConcurrentAttempts() throws InterruptedException {
+		final AttemptThrottle t = new AttemptThrottle(5, 3600000);
+		final AtomicInteger allowed = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[16];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 100; j++) {
+						if (t.tryAttempt("john")) {
+							allowed.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("Concurrent attempts must not exceed the limit", 5, allowed.get());
+		assertEquals(5, t.estimate("john"));
+	}
+
+	@Test
+	public void testWindowExpires() throws InterruptedException {
+		AttemptThrottle t = new AttemptThrottle(1, 50);
+		assertTrue(t.tryAttempt("john"));
+		Thread.sleep(120);
+		assertTrue("Count should have expired", t.tryAttempt("john"));
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class BulkPBKDF2Test {
+
+	@Test
+	public void testOrderAndVerify() {
+		List<String> passwords = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			passwords.add("pw" + i);
+		}
+		BulkPBKDF2 bulk = new BulkPBKDF2(8, 10, 4);
+		try {
+			int i = 0;
+			SimplePBKDF2 check = new SimplePBKDF2();
+			for (String record : bulk.deriveKeysFormatted(passwords)) {
+				assertTrue("Record " + i, check.verifyKeyFormatted(record, "pw" + i));
+				assertFalse(check.verifyKeyFormatted(record, "pw" + (i + 1)));
+				i++;
+			}
+			assertEquals(200, i);
+		} finally {
+			bulk.shutdown();
+		}
+	}
+
+	@Test
+	public void testFormatMatchesHexFormatter() {
+		BulkPBKDF2 bulk = new BulkPBKDF2(12, 22, 1);
+		try {
+			Iterator<String> it = bulk.deriveKeysFormatted(Arrays.asList("password").iterator());
+			String record = it.next();
+			assertFalse(it.hasNext());
+			PBKDF2Parameters p = new PBKDF2Parameters();
+			PBKDF2HexFormatter f = new PBKDF2HexFormatter();
+			assertFalse(f.fromString(p, record));
+			assertEquals(record, f.toString(p));
+			assertEquals(":22:", record.substring(24, 28));
+		} finally {
+			bulk.shutdown();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit Tests.
+ */
+public class CheckpointedDerivationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testInterruptAndResume() throws IOException {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "UTF-8", "salt".getBytes(), 4096);
+		byte[] expected = new PBKDF2Engine(p).deriveKey("password", 25);
+		final File f = new File(folder.getRoot(), "dk.checkpoint");
+		CheckpointSink interrupting = new FileCheckpointSink(f) {
+			int saves = 0;
+			@Override
+			public void save(byte[] checkpoint) throws IOException {
+				super.save(checkpoint);
+				if (++saves == 3) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		CheckpointedDerivation d = new CheckpointedDerivation(new PBKDF2Engine(p), interrupting);
+		d.setSliceIterations(500);
+		d.setIntervalMillis(0);
+		try {
+			d.deriveKey("password", 25);
+			fail("Should have been interrupted");
+		} catch (DerivationAbortedException e) {
+			assertTrue(Thread.interrupted());
+		}
+		assertTrue("Checkpoint missing", f.isFile());
+
+		PBKDF2State st = new PBKDF2Engine(p).resumeDerivation("password", 25, new FileCheckpointSink(f).load());
+		assertTrue("Should resume mid-way", st.getRemainingIterations() < 2 * 4096 - 1500);
+
+		d = new CheckpointedDerivation(new PBKDF2Engine(p), new FileCheckpointSink(f));
+		assertArrayEquals(expected, d.deriveKey("password", 25));
+		assertFalse("Checkpoint not wiped", f.exists());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMismatchedCheckpoint() {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "UTF-8", "salt".getBytes(), 4096);
+		PBKDF2Engine e = new PBKDF2Engine(p);
+		PBKDF2State st = e.startDerivation("password", 0);
+		e.advance(st, 100);
+		p.setIterationCount(8192);
+		new PBKDF2Engine(p).resumeDerivation("password", 0, st.toCheckpoint());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFlippedBitCheckpoint() {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "UTF-8", "salt".getBytes(), 4096);
+		PBKDF2Engine e = new PBKDF2Engine(p);
+		PBKDF2State st = e.startDerivation("password", 0);
+		e.advance(st, 100);
+		byte[] cp = st.toCheckpoint();
+		cp[cp.length - 10] ^= 1;
+		new PBKDF2Engine(p).resumeDerivation("password", 0, cp);
+	}
+
+	@Test
+	public void testCorruptCheckpoint() {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "UTF-8", "salt".getBytes(), 4096);
+		PBKDF2Engine e = new PBKDF2Engine(p);
+		PBKDF2State st = e.startDerivation("password", 0);
+		e.advance(st, 100);
+		byte[] cp = st.toCheckpoint();
+		// Salt length field follows magic, version, c, dkLen and hLen
+		ByteBuffer.wrap(cp).putInt(17, Integer.MAX_VALUE);
+		try {
+			e.resumeDerivation("password", 0, cp);
+			fail("Corrupt checkpoint accepted");
+		} catch (IllegalArgumentException ok) {
+		}
+		byte[] truncated = new byte[30];
+		System.arraycopy(st.toCheckpoint(), 0, truncated, 0, truncated.length);
+		try {
+			e.resumeDerivation("password", 0, truncated);
+			fail("Truncated checkpoint accepted");
+		} catch (IllegalArgumentException ok) {
+		}
+	}
+
+	@Test
+	public void testRestartOnCorruptCheckpoint() throws IOException {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "UTF-8", "salt".getBytes(), 4096);
+		PBKDF2Engine e = new PBKDF2Engine(p);
+		PBKDF2State st = e.startDerivation("password", 0);
+		e.advance(st, 100);
+		byte[] cp = st.toCheckpoint();
+		cp[cp.length - 10] ^= 1;
+		File f = new File(folder.getRoot(), "dk.checkpoint");
+		FileCheckpointSink sink = new FileCheckpointSink(f);
+		sink.save(cp);
+		CheckpointedDerivation d = new CheckpointedDerivation(new PBKDF2Engine(p), sink);
+		assertArrayEquals(new PBKDF2Engine(p).deriveKey("password", 0), d.deriveKey("password", 0));
+	}
+}
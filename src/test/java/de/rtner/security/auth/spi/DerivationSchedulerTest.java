@@ -0,0 +1,122 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class DerivationSchedulerTest {
+
+	@Test
+	public void testAdvanceInSlices() {
+		// 50 octets with HmacSHA1 spans three blocks, slice size does not divide c
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "UTF-8", "salt".getBytes(), 1000);
+		byte[] expected = new PBKDF2Engine(p).deriveKey("password", 50);
+		PBKDF2Engine e = new PBKDF2Engine(p);
+		PBKDF2State st = e.startDerivation("password", 50);
+		int slices = 0;
+		while (!e.advance(st, 333)) {
+			slices++;
+		}
+		assertTrue("Too few slices", slices >= 8);
+		assertArrayEquals(expected, st.getDerivedKey());
+	}
+
+	@Test
+	public void testScheduler() throws Exception {
+		DerivationScheduler s = new DerivationScheduler(2, 100, true);
+		try {
+			PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", null, 0);
+			new PBKDF2HexFormatter().fromString(p, "73616C74:4096:4b007901b765489abead49d926f721d065a429c1");
+			List<Future<Boolean>> f = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 8; i++) {
+				f.add(s.submitVerify(new PBKDF2Engine(p), (i % 2 == 0) ? "password" : "wrong", 0));
+			}
+			for (int i = 0; i < f.size(); i++) {
+				assertTrue(f.get(i).get().booleanValue() == (i % 2 == 0));
+			}
+			assertFalse("Completed future cannot be cancelled", f.get(0).cancel(false));
+			assertFalse(f.get(0).isCancelled());
+			assertTrue(f.get(0).get().booleanValue());
+			Future<byte[]> dk = s.submit(new PBKDF2Engine(p), "password", 0, System.currentTimeMillis() + 60000);
+			assertArrayEquals(p.getDerivedKey(), dk.get());
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	@Test
+	public void testSchedulerDeadline() throws Exception {
+		DerivationScheduler s = new DerivationScheduler(1, 100, false);
+		try {
+			PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", "salt".getBytes(), 16777216);
+			Future<byte[]> f = s.submit(new PBKDF2Engine(p), "password", 0, System.currentTimeMillis() + 50);
+			try {
+				f.get();
+				fail("Should have timed out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof DerivationAbortedException);
+			}
+			assertFalse(f.isCancelled());
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	@Test
+	public void testSchedulerError() throws Exception {
+		DerivationScheduler s = new DerivationScheduler(1, 100, false);
+		try {
+			PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", "salt".getBytes(), 1000);
+			PBKDF2Engine broken = new PBKDF2Engine(p) {
+				@Override
+				public boolean advance(PBKDF2State state, int maxIterations) {
+					throw new AssertionError("broken");
+				}
+			};
+			Future<byte[]> f = s.submit(broken, "password", 0, 0);
+			try {
+				f.get();
+				fail("Should have failed");
+			} catch (ExecutionException e) {
+				assertEquals("broken", e.getCause().getMessage());
+			}
+			// The worker survived
+			assertArrayEquals(new PBKDF2Engine(p).deriveKey("password"),
+				s.submit(new PBKDF2Engine(p), "password", 0, 0).get());
+		} finally {
+			s.shutdown();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests. Runs the RFC 6070 vectors against the governed engine, then
+ * checks metering and rejection.
+ */
+public class GovernedPBKDF2EngineTest extends PBKDF2EngineTest {
+
+	@Override
+	protected PBKDF2 newEngine(PBKDF2Parameters p) {
+		GovernedPBKDF2Engine e = new GovernedPBKDF2Engine(p);
+		e.setGovernor(new IterationGovernor(Integer.MAX_VALUE, Integer.MAX_VALUE));
+		return e;
+	}
+
+	@Test
+	public void testRateLimited() {
+		IterationGovernor g = new IterationGovernor(100000, 10000);
+		GovernedPBKDF2Engine e = new GovernedPBKDF2Engine(
+				new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", "salt".getBytes(), 50000));
+		e.setGovernor(g);
+		e.setCheckInterval(5000);
+		long start = System.currentTimeMillis();
+		e.deriveKey("password");
+		// 10000 from the initial burst, 40000 refilled at 100000/s minus one chunk of debt
+		assertTrue("Too fast", System.currentTimeMillis() - start >= 300);
+		assertEquals(50000, g.getInteractiveGranted());
+		assertTrue(g.getInteractiveWaits() > 0);
+	}
+
+	@Test
+	public void testBatchRejected() {
+		IterationGovernor g = new IterationGovernor(1000, 10000);
+		g.setMaxWait(IterationGovernor.Priority.BATCH, 0);
+		GovernedPBKDF2Engine e = new GovernedPBKDF2Engine(
+				new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", "salt".getBytes(), 50000));
+		e.setGovernor(g);
+		e.setPriority(IterationGovernor.Priority.BATCH);
+		try {
+			e.deriveKey("password");
+			fail("Should have been rejected");
+		} catch (DerivationAbortedException ex) {
+			assertTrue(ex.isTimeout());
+		}
+		assertEquals(1, g.getBatchRejects());
+		assertTrue("Reserve must remain for interactive work", g.getAvailable() >= 0);
+	}
+}
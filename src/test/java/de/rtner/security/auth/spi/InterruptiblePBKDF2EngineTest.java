@@ -0,0 +1,71 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests. Runs the RFC 6070 vectors against the interruptible engine,
+ * then checks that it aborts.
+ */
+public class InterruptiblePBKDF2EngineTest extends PBKDF2EngineTest {
+
+	@Override
+	protected PBKDF2 newEngine(PBKDF2Parameters p) {
+		InterruptiblePBKDF2Engine e = new InterruptiblePBKDF2Engine(p);
+		e.setCheckInterval(3);
+		e.setTimeout(60000);
+		return e;
+	}
+
+	@Test
+	public void testDeadline() {
+		InterruptiblePBKDF2Engine e = new InterruptiblePBKDF2Engine(
+				new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", "salt".getBytes(), 16777216));
+		e.setTimeout(50);
+		long start = System.currentTimeMillis();
+		try {
+			e.deriveKey("password");
+			fail("Should have timed out");
+		} catch (DerivationAbortedException ex) {
+			assertTrue(ex.isTimeout());
+		}
+		assertTrue("Took too long", System.currentTimeMillis() - start < 5000);
+	}
+
+	@Test
+	public void testInterrupted() {
+		InterruptiblePBKDF2Engine e = new InterruptiblePBKDF2Engine(
+				new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", "salt".getBytes(), 16777216));
+		Thread.currentThread().interrupt();
+		try {
+			e.deriveKey("password");
+			fail("Should have been interrupted");
+		} catch (DerivationAbortedException ex) {
+			assertFalse(ex.isTimeout());
+			assertTrue("Interrupt flag must remain set", Thread.interrupted());
+		}
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.naming.Context;
+import javax.naming.spi.InitialContextFactory;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.LoginException;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * Open-loop load generator for password verification.
+ * <p>
+ * Requests are issued at a fixed arrival rate, independent of how fast
+ * earlier requests complete. Latency is measured from each request's
+ * scheduled start time, so queueing behind slow requests and dispatcher
+ * stalls count (no coordinated omission). Requests are run on a fixed
+ * worker pool.
+ * <p>
+ * Two targets: &quot;engine&quot; calls PBKDF2Engine.verifyKey() on
+ * pre-parsed records, &quot;login&quot; runs a full
+ * SaltedDatabaseServerLoginModule login against an in-memory H2 Users table.
+ * Every combination of algorithm and iteration count is run in turn and
+ * reported as one CSV line.
+ * <p>
+ * Usage: [-m engine|login] [-r rate] [-d seconds] [-w warmupSeconds]
+ * [-t threads] [-u users] [-a algorithms] [-i iterationCounts] [-o csvFile]
+ * <br>
+ * Lists are comma-separated, i.e. <code>-a HmacSHA1,HmacSHA256 -i
+ * 1000,10000</code>. Gradle: <code>gradle loadTest -PloadArgs="-r 800"</code>
+ */
+public class LoginLoadGenerator {
+
+	public static final String CSV_HEADER = "target,algorithm,iterations,rate,threads,seconds,"
+		+ "completed,failed,throughput,p50_ms,p90_ms,p99_ms,p999_ms,max_ms";
+
+	private static final String PASSWORD = "password";
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * System under test. Implementations must be thread-safe.
+	 */
+	public interface Target {
+		/**
+		 * @param user Index of the user, below the number of users set up
+		 * @return <code>true</code> if the password was accepted
+		 */
+		boolean verify(int user) throws Exception;
+	}
+
+	/**
+	 * Outcome of one run.
+	 */
+	public static class Result {
+		public final int completed;
+		public final long failed;
+		public final double throughput;
+		/** Latencies in nanoseconds, ascending. */
+		private final long[] latencies;
+
+		Result(long[] latencies, long failed, double throughput) {
+			this.latencies = latencies;
+			this.completed = latencies.length;
+			this.failed = failed;
+			this.throughput = throughput;
+		}
+
+		/**
+		 * @param q Quantile, i.e. 0.99
+		 * @return Latency in nanoseconds, 0 if nothing completed
+		 */
+		public long percentile(double q) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int i = (int) Math.ceil(q * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, i))];
+		}
+	}
+
+	/**
+	 * Run one open-loop measurement.
+	 *
+	 * @param target System under test
+	 * @param users Number of distinct users, requests cycle through them
+	 * @param rate Requests per second
+	 * @param seconds Measured duration
+	 * @param warmupSeconds Duration before the measurement, same rate
+	 * @param threads Worker threads
+	 * @return Latencies and counts of requests scheduled in the measured duration
+	 */
+	public static Result run(final Target target, int users, double rate, double seconds,
+			double warmupSeconds, int threads) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PBKDF2-load");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final long[] latencies = new long[(int) Math.ceil(rate * seconds) + 1];
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong lastDone = new AtomicLong();
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		final long measureFrom = start + (long) (warmupSeconds * 1e9);
+		long end = measureFrom + (long) (seconds * 1e9);
+		try {
+			for (long k = 0;; k++) {
+				final long intended = start + (long) (k * 1e9 / rate);
+				if (intended >= end) {
+					break;
+				}
+				long wait;
+				while ((wait = intended - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				final int user = (int) (k % users);
+				pool.execute(new Runnable() {
+					public void run() {
+						boolean ok;
+						try {
+							ok = target.verify(user);
+						} catch (Exception e) {
+							ok = false;
+						}
+						long done = System.nanoTime();
+						if (intended < measureFrom) {
+							return;
+						}
+						int i = count.getAndIncrement();
+						if (i < latencies.length) {
+							latencies[i] = done - intended;
+						}
+						if (!ok) {
+							failed.incrementAndGet();
+						}
+						long last;
+						while ((last = lastDone.get()) < done && !lastDone.compareAndSet(last, done)) {
+							// retry
+						}
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+		}
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		long[] l = Arrays.copyOf(latencies, Math.min(count.get(), latencies.length));
+		Arrays.sort(l);
+		double elapsed = (lastDone.get() - measureFrom) / 1e9;
+		return new Result(l, failed.get(), (elapsed > 0) ? l.length / elapsed : 0);
+	}
+
+	/**
+	 * Verification by PBKDF2Engine, one engine per thread.
+	 */
+	public static class EngineTarget implements Target {
+		private final PBKDF2Parameters[] records;
+		private final ThreadLocal<PBKDF2Engine> engines = new ThreadLocal<PBKDF2Engine>() {
+			@Override
+			protected PBKDF2Engine initialValue() {
+				return new PBKDF2Engine();
+			}
+		};
+
+		public EngineTarget(String algorithm, int iterations, int users) {
+			records = new PBKDF2Parameters[users];
+			for (int i = 0; i < users; i++) {
+				records[i] = newRecord(algorithm, iterations);
+			}
+		}
+
+		public boolean verify(int user) {
+			PBKDF2Engine e = engines.get();
+			e.setParameters(records[user]);
+			return e.verifyKey(PASSWORD);
+		}
+	}
+
+	/**
+	 * Verification by a full login of SaltedDatabaseServerLoginModule. The
+	 * in-memory database is served to the module via JNDI.
+	 */
+	public static class LoginTarget implements Target {
+		private static volatile JdbcDataSource dataSource;
+		private final Map<String, String> options = new HashMap<String, String>();
+		private final Connection keepAlive;
+		private final String oldFactory;
+
+		/**
+		 * Serves every lookup with the current data source.
+		 */
+		public static class LoadContextFactory implements InitialContextFactory {
+			public Context getInitialContext(Hashtable<?, ?> environment) {
+				return (Context) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { Context.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							return "lookup".equals(method.getName()) ? dataSource : null;
+						}
+					});
+			}
+		}
+
+		public LoginTarget(String algorithm, int iterations, int users) throws SQLException {
+			JdbcDataSource ds = new JdbcDataSource();
+			ds.setURL("jdbc:h2:mem:pbkdf2load;DB_CLOSE_DELAY=-1");
+			keepAlive = ds.getConnection();
+			keepAlive.createStatement().execute("DROP TABLE IF EXISTS Users");
+			keepAlive.createStatement().execute(
+				"CREATE TABLE Users(username VARCHAR(64) PRIMARY KEY, password VARCHAR(255))");
+			PreparedStatement ps = keepAlive.prepareStatement("INSERT INTO Users VALUES(?, ?)");
+			try {
+				PBKDF2Formatter f = new PBKDF2HexFormatter();
+				for (int i = 0; i < users; i++) {
+					ps.setString(1, "user" + i);
+					ps.setString(2, f.toString(newRecord(algorithm, iterations)));
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			} finally {
+				ps.close();
+			}
+			dataSource = ds;
+			oldFactory = System.getProperty(Context.INITIAL_CONTEXT_FACTORY);
+			System.setProperty(Context.INITIAL_CONTEXT_FACTORY, LoadContextFactory.class.getName());
+			options.put("dsJndiName", "java:/PBKDF2LoadDS");
+			options.put("principalsQuery", "SELECT password FROM Users WHERE username=?");
+			options.put("suspendResume", "false");
+			options.put("hmacAlgorithm", algorithm);
+			options.put("hashCharset", "ISO-8859-1");
+		}
+
+		public boolean verify(int user) throws LoginException {
+			final String username = "user" + user;
+			SaltedDatabaseServerLoginModule m = new SaltedDatabaseServerLoginModule();
+			m.initialize(new Subject(), new CallbackHandler() {
+				public void handle(Callback[] callbacks) {
+					for (Callback c : callbacks) {
+						if (c instanceof NameCallback) {
+							((NameCallback) c).setName(username);
+						} else if (c instanceof PasswordCallback) {
+							((PasswordCallback) c).setPassword(PASSWORD.toCharArray());
+						}
+					}
+				}
+			}, new HashMap<String, Object>(), options);
+			return m.login();
+		}
+
+		/**
+		 * Drop the table and restore the JNDI factory.
+		 */
+		public void close() throws SQLException {
+			if (oldFactory == null) {
+				System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+			} else {
+				System.setProperty(Context.INITIAL_CONTEXT_FACTORY, oldFactory);
+			}
+			keepAlive.createStatement().execute("DROP TABLE Users");
+			keepAlive.close();
+		}
+	}
+
+	private static PBKDF2Parameters newRecord(String algorithm, int iterations) {
+		byte[] salt = new byte[8];
+		random.nextBytes(salt);
+		PBKDF2Parameters p = new PBKDF2Parameters(algorithm, "ISO-8859-1", salt, iterations);
+		p.setDerivedKey(new PBKDF2Engine(p).deriveKey(PASSWORD));
+		return p;
+	}
+
+	/**
+	 * Format one CSV line. Latencies in milliseconds.
+	 */
+	public static String toCsv(String target, String algorithm, int iterations, double rate,
+			int threads, double seconds, Result r) {
+		return String.format(Locale.ENGLISH, "%s,%s,%d,%.1f,%d,%.1f,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f",
+			target, algorithm, iterations, rate, threads, seconds, r.completed, r.failed, r.throughput,
+			r.percentile(0.5) / 1e6, r.percentile(0.9) / 1e6, r.percentile(0.99) / 1e6,
+			r.percentile(0.999) / 1e6, r.percentile(1.0) / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = "engine";
+		double rate = 100;
+		double seconds = 10;
+		double warmupSeconds = 5;
+		int threads = 2 * Runtime.getRuntime().availableProcessors();
+		int users = 1000;
+		String[] algorithms = { "HmacSHA1", "HmacSHA256" };
+		String[] iterations = { "1000", "10000" };
+		String csvFile = null;
+		while (args.length >= 2 && args[0].startsWith("-")) {
+			String o = args[0];
+			String v = args[1];
+			if (o.equals("-m")) {
+				mode = v;
+			} else if (o.equals("-r")) {
+				rate = Double.parseDouble(v);
+			} else if (o.equals("-d")) {
+				seconds = Double.parseDouble(v);
+			} else if (o.equals("-w")) {
+				warmupSeconds = Double.parseDouble(v);
+			} else if (o.equals("-t")) {
+				threads = Integer.parseInt(v);
+			} else if (o.equals("-u")) {
+				users = Integer.parseInt(v);
+			} else if (o.equals("-a")) {
+				algorithms = v.split(",");
+			} else if (o.equals("-i")) {
+				iterations = v.split(",");
+			} else if (o.equals("-o")) {
+				csvFile = v;
+			} else {
+				break;
+			}
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length > 0 || !(mode.equals("engine") || mode.equals("login"))) {
+			System.err.println("Usage: [-m engine|login] [-r rate] [-d seconds] [-w warmupSeconds] "
+				+ "[-t threads] [-u users] [-a algorithms] [-i iterationCounts] [-o csvFile]");
+			System.exit(2);
+		}
+		PrintWriter csv = (csvFile != null) ? new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(csvFile), "ISO-8859-1")) : null;
+		try {
+			System.out.println(CSV_HEADER);
+			if (csv != null) {
+				csv.println(CSV_HEADER);
+			}
+			for (String algorithm : algorithms) {
+				for (String s : iterations) {
+					int c = Integer.parseInt(s);
+					Result r;
+					if (mode.equals("login")) {
+						LoginTarget t = new LoginTarget(algorithm, c, users);
+						try {
+							r = run(t, users, rate, seconds, warmupSeconds, threads);
+						} finally {
+							t.close();
+						}
+					} else {
+						r = run(new EngineTarget(algorithm, c, users), users, rate, seconds, warmupSeconds,
+							threads);
+					}
+					String line = toCsv(mode, algorithm, c, rate, threads, seconds, r);
+					System.out.println(line);
+					if (csv != null) {
+						csv.println(line);
+						csv.flush();
+					}
+				}
+			}
+		} finally {
+			if (csv != null) {
+				csv.close();
+			}
+		}
+	}
+}
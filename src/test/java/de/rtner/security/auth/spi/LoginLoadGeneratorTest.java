@@ -0,0 +1,74 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Short runs of the load generator against both targets.
+ */
+public class LoginLoadGeneratorTest {
+
+	@Test
+	public void testEngine() throws Exception {
+		LoginLoadGenerator.Result r = LoginLoadGenerator.run(
+			new LoginLoadGenerator.EngineTarget("HmacSHA256", 10, 20), 20, 200, 0.5, 0.1, 2);
+		assertTrue("Completed " + r.completed, r.completed >= 95 && r.completed <= 101);
+		assertEquals(0, r.failed);
+		assertTrue(r.percentile(0.5) <= r.percentile(0.99));
+		assertTrue(r.percentile(0.99) <= r.percentile(1.0));
+		String csv = LoginLoadGenerator.toCsv("engine", "HmacSHA256", 10, 200, 2, 0.5, r);
+		assertEquals(LoginLoadGenerator.CSV_HEADER.split(",").length, csv.split(",").length);
+	}
+
+	@Test
+	public void testLogin() throws Exception {
+		LoginLoadGenerator.LoginTarget t = new LoginLoadGenerator.LoginTarget("HmacSHA1", 10, 5);
+		try {
+			assertTrue(t.verify(3));
+			LoginLoadGenerator.Result r = LoginLoadGenerator.run(t, 5, 100, 0.3, 0.1, 2);
+			assertTrue("Completed " + r.completed, r.completed >= 25);
+			assertEquals(0, r.failed);
+		} finally {
+			t.close();
+		}
+	}
+
+	@Test
+	public void testPercentile() throws Exception {
+		LoginLoadGenerator.Result r = LoginLoadGenerator.run(new LoginLoadGenerator.Target() {
+			private int n = 0;
+
+			public synchronized boolean verify(int user) throws Exception {
+				// Every tenth request stalls, the requests queued behind it
+				// must show the wait
+				if (n++ % 10 == 0) {
+					Thread.sleep(50);
+				}
+				return true;
+			}
+		}, 1, 200, 0.5, 0, 1);
+		assertTrue("p99 " + r.percentile(0.99), r.percentile(0.99) >= 40000000L);
+	}
+}
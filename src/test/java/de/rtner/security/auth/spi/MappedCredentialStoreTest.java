@@ -0,0 +1,172 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class MappedCredentialStoreTest {
+
+	private static PBKDF2Parameters record(int i) {
+		return new PBKDF2Parameters("HmacSHA256", null, new byte[] { 1, 2, (byte) i }, 1000 + i,
+				new byte[] { 9, 8, 7, (byte) i });
+	}
+
+	@Test
+	public void testPutGetRemove() throws IOException {
+		File f = File.createTempFile("store", ".pbks");
+		try {
+			MappedCredentialStore s = MappedCredentialStore.create(f, 4);
+			for (int i = 0; i < 10; i++) {
+				s.put("user" + i, record(i));
+			}
+			s.put("user3", record(33));
+			assertEquals(10, s.size());
+
+			PBKDF2Parameters p = new PBKDF2Parameters();
+			assertTrue(s.get("user3", p));
+			assertEquals("HmacSHA256", p.getHashAlgorithm());
+			assertEquals(1033, p.getIterationCount());
+			assertArrayEquals(record(33).getSalt(), p.getSalt());
+			assertArrayEquals(record(33).getDerivedKey(), p.getDerivedKey());
+			assertFalse(s.get("nobody", p));
+
+			assertTrue(s.remove("user5"));
+			assertFalse(s.remove("user5"));
+			assertFalse(s.get("user5", p));
+			s.compact();
+			assertEquals(9, s.size());
+			s.force();
+
+			MappedCredentialStore r = MappedCredentialStore.open(f, true);
+			assertEquals(9, r.size());
+			for (int i = 0; i < 10; i++) {
+				assertEquals("user" + i, i != 5, r.get("user" + i, p));
+			}
+			assertTrue(r.get("user9", p));
+			assertEquals(1009, p.getIterationCount());
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testManyUsers() throws IOException {
+		File f = File.createTempFile("store", ".pbks");
+		try {
+			MappedCredentialStore s = MappedCredentialStore.create(f, 1000);
+			for (int i = 0; i < 5000; i++) {
+				s.put("u\u00e4" + i, record(i));
+			}
+			PBKDF2Parameters p = new PBKDF2Parameters();
+			for (int i = 0; i < 5000; i += 7) {
+				assertTrue(s.get("u\u00e4" + i, p));
+				assertEquals(1000 + i, p.getIterationCount());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testFailedCompaction() throws IOException {
+		File f = File.createTempFile("store", ".pbks");
+		// A directory in the way makes creating the temporary file fail
+		File tmp = new File(f.getPath() + ".tmp");
+		assertTrue(tmp.mkdir());
+		try {
+			MappedCredentialStore s = MappedCredentialStore.create(f, 2);
+			s.put("user0", record(0));
+			s.put("user1", record(1));
+			try {
+				s.put("user2", record(2));
+				fail("Compaction should have failed");
+			} catch (IOException e) {
+			}
+			PBKDF2Parameters p = new PBKDF2Parameters();
+			assertTrue("Old mapping lost", s.get("user1", p));
+			assertEquals(1001, p.getIterationCount());
+			assertFalse(s.get("user2", p));
+
+			assertTrue(tmp.delete());
+			s.put("user2", record(2));
+			assertFalse("Temporary file left behind", tmp.exists());
+			MappedCredentialStore r = MappedCredentialStore.open(f, true);
+			assertEquals(3, r.size());
+			assertTrue(r.get("user2", p));
+		} finally {
+			tmp.delete();
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testReaderFollowsCompaction() throws IOException {
+		File f = File.createTempFile("store", ".pbks");
+		try {
+			MappedCredentialStore s = MappedCredentialStore.create(f, 2);
+			s.put("alice", record(0));
+			s.put("bob", record(1));
+			MappedCredentialStore r = MappedCredentialStore.open(f, true);
+			PBKDF2Parameters p = new PBKDF2Parameters();
+			assertTrue(r.get("alice", p));
+
+			// Store full: the put compacts and replaces the file
+			s.put("alice", record(2));
+			assertTrue(s.remove("bob"));
+			assertTrue(r.get("alice", p));
+			assertEquals("Reader still on the old file", 1002, p.getIterationCount());
+			assertFalse("Removed user still present", r.get("bob", p));
+			assertEquals(1, r.size());
+
+			s.compact();
+			s.put("carol", record(3));
+			assertTrue("Second compaction not followed", r.get("carol", p));
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUsernameTooLong() throws IOException {
+		File f = File.createTempFile("store", ".pbks");
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i <= MappedCredentialStore.MAX_USERNAME; i++) {
+				sb.append('x');
+			}
+			MappedCredentialStore.create(f, 1).put(sb.toString(), record(1));
+		} finally {
+			f.delete();
+		}
+	}
+}
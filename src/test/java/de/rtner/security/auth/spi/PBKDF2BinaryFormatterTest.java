@@ -0,0 +1,113 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class PBKDF2BinaryFormatterTest {
+
+	private final PBKDF2BinaryFormatter f = new PBKDF2BinaryFormatter();
+
+	@Test
+	public void testRoundTripArray() {
+		PBKDF2Parameters p = new PBKDF2Parameters();
+		assertFalse(new PBKDF2HexFormatter().fromString(p, "73616C7473616C74:4096:4b007901b765489abead49d926f721d065a429c1"));
+		p.setHashAlgorithm("HMacSHA1");
+		assertEquals(2 + 2 + 9 + 21, f.getEncodedLength(p));
+
+		byte[] b = new byte[100];
+		int n = f.encode(p, b, 7);
+		assertEquals(f.getEncodedLength(p), n);
+		PBKDF2Parameters q = new PBKDF2Parameters();
+		assertEquals(n, f.decode(q, b, 7, n));
+		assertEquals("HmacSHA1", q.getHashAlgorithm());
+		assertEquals(4096, q.getIterationCount());
+		assertArrayEquals(p.getSalt(), q.getSalt());
+		assertArrayEquals(p.getDerivedKey(), q.getDerivedKey());
+	}
+
+	@Test
+	public void testDirectBufferSequence() {
+		ByteBuffer bb = ByteBuffer.allocateDirect(256);
+		for (int i = 0; i < 3; i++) {
+			f.encode(new PBKDF2Parameters("HmacSHA256", null, new byte[i], 1 << (7 * i + 3), new byte[] { (byte) i }), bb);
+		}
+		bb.flip();
+		PBKDF2Parameters q = new PBKDF2Parameters();
+		for (int i = 0; i < 3; i++) {
+			f.decode(q, bb);
+			assertEquals(1 << (7 * i + 3), q.getIterationCount());
+			assertEquals(i, q.getSalt().length);
+			assertEquals(i, q.getDerivedKey()[0]);
+		}
+		assertFalse(bb.hasRemaining());
+	}
+
+	@Test
+	public void testLayeredAndString() {
+		LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters("HmacSHA512", null, new byte[] { 1 }, 1000,
+				new byte[] { 2, 3 }, 20000);
+		p.setDerivedKey(new byte[] { 4, 5, 6 });
+		String s = f.toString(p);
+		LayeredPBKDF2Parameters q = new LayeredPBKDF2Parameters();
+		assertFalse(f.fromString(q, s));
+		assertEquals(21000, q.getTotalIterationCount());
+		assertArrayEquals(p.getOuterSalt(), q.getOuterSalt());
+		assertTrue("Layered record needs layered parameters", f.fromString(new PBKDF2Parameters(), s));
+	}
+
+	@Test
+	public void testOversizedLayered() {
+		LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters("HmacSHA1", null, new byte[] { 1 },
+				Integer.MAX_VALUE, new byte[] { 2 }, Integer.MAX_VALUE);
+		p.setDerivedKey(new byte[] { 3 });
+		LayeredPBKDF2Parameters q = new LayeredPBKDF2Parameters();
+		assertFalse(f.fromString(q, f.toString(p)));
+		assertEquals("Total must saturate, not wrap", Integer.MAX_VALUE, q.getTotalIterationCount());
+
+		p.setOuterIterationCount(1);
+		p.setIterationCount(-1);
+		assertTrue("Negative inner count", f.fromString(q, f.toString(p)));
+		p.setIterationCount(1);
+		String s = f.toString(p);
+		// Outer count 1 follows version, algorithm, inner count and salt
+		assertTrue("Negative outer count", f.fromString(q, s.substring(0, 10) + "FFFFFFFF0F" + s.substring(12)));
+	}
+
+	@Test
+	public void testMalformed() {
+		assertTrue(f.fromString(new PBKDF2Parameters(), "0101"));
+		assertTrue(f.fromString(new PBKDF2Parameters(), "09"));
+		assertTrue("Trailing bytes", f.fromString(new PBKDF2Parameters(), "01010100000100"));
+		assertFalse(f.fromString(new PBKDF2Parameters(), "0101010001FF"));
+		assertTrue(f.fromString(new PBKDF2Parameters(), "73616C74:1:0c60"));
+	}
+}
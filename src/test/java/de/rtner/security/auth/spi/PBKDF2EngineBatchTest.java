@@ -0,0 +1,66 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests for the batch mode of the command line.
+ */
+public class PBKDF2EngineBatchTest {
+
+	@Test
+	public void testBatch() throws IOException {
+		String rfc = "73616C74:4096:4b007901b765489abead49d926f721d065a429c1";
+		StringWriter out = new StringWriter();
+		long failed = PBKDF2Engine.batch(Arrays.asList("password", "password\t" + rfc,
+				"wrong\t" + rfc, "password\tnot:a:number", "password\t73616C74:1:0c60c80f961f0e71f3a9b524af6012062fe037a6",
+				"secret").iterator(), out, 1000, 3);
+		String[] lines = out.toString().split("\n");
+		assertEquals(6, lines.length);
+		assertEquals("Formatting and Iteration count?", ":1000:", lines[0].substring(16, 22));
+		assertEquals("OK", lines[1]);
+		assertEquals("FAIL", lines[2]);
+		assertEquals("FAIL", lines[3]);
+		assertEquals("Iteration count below minimum", "FAIL", lines[4]);
+		assertEquals(3, failed);
+
+		out = new StringWriter();
+		PBKDF2Engine.batch(Arrays.asList("secret\t" + lines[5]).iterator(), out, 1000, 1);
+		assertTrue(out.toString().startsWith("OK"));
+
+		// An empty password fails its line only
+		out = new StringWriter();
+		failed = PBKDF2Engine.batch(Arrays.asList("a", "", "b").iterator(), out, 1000, 2);
+		lines = out.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("FAIL", lines[1]);
+		assertEquals(":1000:", lines[2].substring(16, 22));
+		assertEquals(1, failed);
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import de.rtner.misc.BinTools;
+
+/**
+ * Unit Tests.
+ */
+public class PBKDF2EngineByteBufferTest {
+
+	@Test
+	public void testDirectBuffersRFC6070() {
+		ByteBuffer P = direct("passwordPASSWORDpassword");
+		ByteBuffer S = direct("saltSALTsaltSALTsaltSALTsaltSALTsalt");
+		ByteBuffer out = ByteBuffer.allocateDirect(32);
+		out.position(3).limit(28);
+		new PBKDF2Engine(new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", null, 0)).deriveKey(P, S, 4096, out);
+		assertEquals(28, out.position());
+		assertEquals(0, P.position());
+		assertEquals(0, S.position());
+		byte[] dk = new byte[25];
+		out.position(3);
+		out.get(dk);
+		assertArrayEquals(BinTools.hex2bin("3d2eec4fe41c849b80c8d83662c0e44a8b291a964cf2f07038"), dk);
+	}
+
+	@Test
+	public void testMatchesArrayPath() throws Exception {
+		String[] algorithms = { "HmacSHA1", "HmacSHA256", "HmacSHA512" };
+		byte[] salt = BinTools.hex2bin("0102030405060708");
+		for (String a : algorithms) {
+			PBKDF2Parameters p = new PBKDF2Parameters(a, "UTF-8", salt, 3);
+			for (int dkLen = 1; dkLen <= 70; dkLen += 23) {
+				byte[] expected = new PBKDF2Engine(p).deriveKey("p\u00e4ss", dkLen);
+				ByteBuffer out = ByteBuffer.allocate(dkLen);
+				new PBKDF2Engine(p).deriveKey(ByteBuffer.wrap("p\u00e4ss".getBytes("UTF-8")), out);
+				assertArrayEquals(a + "/" + dkLen, expected, out.array());
+			}
+		}
+	}
+
+	@Test
+	public void testPlainPRFFallback() {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", BinTools.hex2bin("73616C74"), 2);
+		final PRF mac = new MacBasedPRF("HmacSHA1");
+		PRF plain = new PRF() {
+			public void init(byte[] P) { mac.init(P); }
+			public byte[] doFinal(byte[] M) { return mac.doFinal(M); }
+			public int getHLen() { return mac.getHLen(); }
+		};
+		ByteBuffer out = ByteBuffer.allocate(20);
+		new PBKDF2Engine(p, plain).deriveKey(direct("password"), out);
+		assertArrayEquals(BinTools.hex2bin("ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957"), out.array());
+	}
+
+	@Test
+	public void testLayered() {
+		LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters();
+		assertEquals(false, new LayeredPBKDF2HexFormatter().fromString(p, "73616C74:2:0102:3:00"));
+		p.setHashAlgorithm("HmacSHA1");
+		p.setHashCharset("ISO-8859-1");
+		byte[] expected = new LayeredPBKDF2Engine(p).deriveKey("password", 20);
+		ByteBuffer out = ByteBuffer.allocateDirect(20);
+		new LayeredPBKDF2Engine(p).deriveKey(direct("password"), out);
+		byte[] dk = new byte[20];
+		out.flip();
+		out.get(dk);
+		assertArrayEquals(expected, dk);
+
+		// Explicit inner salt and count get the outer stage as well
+		out.clear();
+		new LayeredPBKDF2Engine(p).deriveKey(direct("password"), ByteBuffer.wrap(p.getSalt()),
+				p.getIterationCount(), out);
+		out.flip();
+		out.get(dk);
+		assertArrayEquals(expected, dk);
+	}
+
+	private static ByteBuffer direct(String s) {
+		byte[] b = s.getBytes();
+		ByteBuffer bb = ByteBuffer.allocateDirect(b.length);
+		bb.put(b).flip();
+		return bb;
+	}
+}
@@ -20,9 +20,13 @@
 
 package de.rtner.security.auth.spi;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
+import java.security.Security;
+
 import org.junit.Test;
 
 /**
@@ -64,6 +68,29 @@ public class PBKDF2EngineTest {
 		decodeAndCheck("pass\0word", "7361006C74:4096:56fa6aa75548099dcc37d7f03425e0c3");
 	}
 
+	@Test
+	public void testProviderSelection() {
+		String provider = MacProviderSelector.select("HmacSHA1");
+		assertNotNull("No provider qualified", provider);
+		assertEquals(provider, MacProviderSelector.getSelectedProvider("HMacSHA1"));
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1","ISO-8859-1",null,0);
+		new PBKDF2HexFormatter().fromString(p, "73616C74:4096:4b007901b765489abead49d926f721d065a429c1");
+		assertTrue(new PBKDF2Engine(p, new MacBasedPRF("HmacSHA1", provider)).verifyKey("password"));
+	}
+
+	@Test
+	public void testPinWithoutAutoselect() {
+		assertTrue(!Boolean.getBoolean(MacProviderSelector.AUTOSELECT_PROPERTY));
+		String provider = Security.getProviders("Mac.HmacSHA256")[0].getName();
+		MacProviderSelector.pin("HmacSHA256", provider);
+		try {
+			assertEquals(provider, MacProviderSelector.getProvider("HMACSHA256"));
+		} finally {
+			MacProviderSelector.pin("HmacSHA256", null);
+		}
+		assertEquals(null, MacProviderSelector.getProvider("HmacSHA256"));
+	}
+
 	/**
 	 * Run one check.
 	 * @param pwd The password string
@@ -72,7 +99,16 @@ public class PBKDF2EngineTest {
 	protected void decodeAndCheck(String pwd, String saltIterDK) {
 		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1","ISO-8859-1",null,0);
 		new PBKDF2HexFormatter().fromString(p, saltIterDK);
-		boolean verifyOK = new PBKDF2Engine(p).verifyKey(pwd);
+		boolean verifyOK = newEngine(p).verifyKey(pwd);
 		assertTrue(verifyOK);
 	}
+
+	/**
+	 * Engine under test. Override to run the vectors against other engines.
+	 * @param p Parameters
+	 * @return Engine
+	 */
+	protected PBKDF2 newEngine(PBKDF2Parameters p) {
+		return new PBKDF2Engine(p);
+	}
 }
@@ -0,0 +1,58 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.Test;
+
+import de.rtner.misc.BinTools;
+
+/**
+ * Unit Tests.
+ */
+public class PBKDF2ProviderTest {
+
+	@Test
+	public void testRFC6070_3() throws Exception {
+		SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1", new PBKDF2Provider());
+		SecretKey k = f.generateSecret(new PBEKeySpec("password".toCharArray(), "salt".getBytes("ISO-8859-1"), 4096, 160));
+		assertEquals("4B007901B765489ABEAD49D926F721D065A429C1", BinTools.bin2hex(k.getEncoded()));
+		assertEquals("PBKDF2WithHmacSHA1", k.getAlgorithm());
+	}
+
+	@Test
+	public void testSameAsPlatform() throws Exception {
+		char[] pwd = "Matthias G\u00E4rtner \u20AC".toCharArray();
+		byte[] salt = BinTools.hex2bin("CCD16F76AF3DE30A");
+		for (String mac : PBKDF2Provider.MAC_ALGORITHMS) {
+			PBEKeySpec spec = new PBEKeySpec(pwd, salt, 1000, 400);
+			byte[] expected = SecretKeyFactory.getInstance("PBKDF2With" + mac).generateSecret(spec).getEncoded();
+			byte[] actual = SecretKeyFactory.getInstance("PBKDF2With" + mac, new PBKDF2Provider()).generateSecret(spec).getEncoded();
+			assertArrayEquals(mac, expected, actual);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class PBKDF2WarmupTest {
+
+	@Test
+	public void testFinishes() throws InterruptedException {
+		PBKDF2Warmup w = new PBKDF2Warmup("HmacSHA1", "UTF-8", new PBKDF2HexFormatter(), 30000);
+		assertFalse(w.isFinished());
+		w.startInBackground();
+		assertTrue("Warm-up did not finish", w.await(60, TimeUnit.SECONDS));
+		assertTrue(w.isFinished());
+		assertTrue("Stopped before MIN_ROUNDS", w.getRounds() >= PBKDF2Warmup.MIN_ROUNDS);
+	}
+
+	@Test
+	public void testBudget() {
+		PBKDF2Warmup w = new PBKDF2Warmup("HmacSHA1", "UTF-8", new PBKDF2HexFormatter(), 0);
+		w.run();
+		assertTrue(w.isFinished());
+		assertEquals("Exhausted budget must not run rounds", 0, w.getRounds());
+
+		w = new PBKDF2Warmup("HmacSHA1", "UTF-8", new PBKDF2HexFormatter(), 50) {
+			@Override
+			protected PBKDF2 newEngine(PBKDF2Parameters p) {
+				p.setIterationCount(100000);
+				return super.newEngine(p);
+			}
+		};
+		long start = System.nanoTime();
+		w.run();
+		assertTrue(w.isFinished());
+		assertTrue("Budget overrun", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertTrue(w.getRounds() < PBKDF2Warmup.MIN_ROUNDS);
+	}
+
+	@Test
+	public void testFailureFinishes() {
+		PBKDF2Warmup w = new PBKDF2Warmup("HmacSHA1", "UTF-8", new PBKDF2HexFormatter() {
+			@Override
+			public boolean fromString(PBKDF2Parameters p, String s) {
+				return true;
+			}
+		}, 30000);
+		w.run();
+		assertTrue("Failed warm-up must count as finished", w.isFinished());
+		assertEquals(0, w.getRounds());
+	}
+}
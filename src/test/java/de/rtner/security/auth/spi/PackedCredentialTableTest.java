@@ -0,0 +1,132 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class PackedCredentialTableTest {
+
+	private static PBKDF2Parameters record(int i) {
+		return new PBKDF2Parameters("HmacSHA512", null, new byte[] { 1, 2, (byte) i }, 1000 + i,
+				new byte[] { 9, 8, 7, (byte) i });
+	}
+
+	@Test
+	public void testManyUsers() {
+		PackedCredentialTable t = new PackedCredentialTable();
+		for (int i = 0; i < 20000; i++) {
+			t.put("user" + i, record(i));
+		}
+		assertEquals(20000, t.size());
+		// 88 bytes per record plus index, far below one object graph per user
+		assertTrue("Memory " + t.getMemoryUsage(), t.getMemoryUsage() < 20000 * 100 + 65536 * 4);
+
+		PackedCredentialTable.View v = new PackedCredentialTable.View();
+		for (int i = 0; i < 20000; i += 13) {
+			assertTrue(t.get("user" + i, v));
+			assertEquals(1000 + i, v.getIterationCount());
+			assertEquals("HmacSHA512", v.getHashAlgorithm());
+			assertArrayEquals(record(i).getSalt(), v.getSalt());
+			assertArrayEquals(record(i).getDerivedKey(), v.getDerivedKey());
+		}
+		assertNull(t.get("nobody"));
+	}
+
+	@Test
+	public void testUpdateRemoveCompact() {
+		PackedCredentialTable t = new PackedCredentialTable();
+		for (int i = 0; i < 100; i++) {
+			t.put("user" + i, record(i));
+		}
+		PackedCredentialTable.View before = t.get("user7");
+		t.put("user7", record(77));
+		assertTrue(t.remove("user8"));
+		assertFalse(t.remove("user8"));
+		t.compact();
+		assertEquals(99, t.size());
+		assertEquals(1077, t.get("user7").getIterationCount());
+		assertNull(t.get("user8"));
+		assertEquals(1099, t.get("user99").getIterationCount());
+		assertArrayEquals("View survives updates", record(7).getDerivedKey(), before.getDerivedKey());
+	}
+
+	@Test
+	public void testAutoCompact() {
+		PackedCredentialTable t = new PackedCredentialTable();
+		t.put("other", record(1));
+		PackedCredentialTable.View first = t.get("other");
+		for (int i = 0; i < 50000; i++) {
+			t.put("user", record(i));
+		}
+		assertEquals(2, t.size());
+		// Without compaction 50000 records would need 13 slabs
+		assertTrue("Memory " + t.getMemoryUsage(), t.getMemoryUsage() < 2 * 4096 * 88 + 1024);
+		assertEquals(1000 + 49999, t.get("user").getIterationCount());
+		assertArrayEquals(record(1).getDerivedKey(), t.get("other").getDerivedKey());
+		assertArrayEquals("View survives compaction", record(1).getSalt(), first.getSalt());
+
+		for (int i = 0; i < 10000; i++) {
+			t.put("user" + i, record(i));
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(t.remove("user" + i));
+		}
+		assertEquals(2, t.size());
+		assertTrue("Memory " + t.getMemoryUsage(), t.getMemoryUsage() < 2 * 4096 * 88 + 65536 * 4);
+	}
+
+	@Test
+	public void testViewSetters() {
+		PackedCredentialTable t = new PackedCredentialTable();
+		t.put("john", record(3));
+		PackedCredentialTable.View v = t.get("john");
+		v.setSalt(null);
+		v.setDerivedKey(null);
+		assertNull("Setter must take precedence", v.getSalt());
+		assertNull("Setter must take precedence", v.getDerivedKey());
+		v.setSalt(new byte[] { 5 });
+		assertArrayEquals(new byte[] { 5 }, v.getSalt());
+		assertTrue(t.get("john", v));
+		assertArrayEquals("Rebinding reloads", record(3).getSalt(), v.getSalt());
+		assertArrayEquals(record(3).getDerivedKey(), v.getDerivedKey());
+	}
+
+	@Test
+	public void testVerifyThroughView() {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "US-ASCII", new byte[] { 's', 'a', 'l', 't' }, 4096);
+		p.setDerivedKey(new PBKDF2Engine(p).deriveKey("password"));
+		PackedCredentialTable t = new PackedCredentialTable();
+		t.put("john", p);
+		PackedCredentialTable.View v = t.get("john");
+		v.setHashCharset("US-ASCII");
+		assertTrue(new PBKDF2Engine(v).verifyKey("password"));
+		assertFalse(new PBKDF2Engine(v).verifyKey("passwort"));
+	}
+}
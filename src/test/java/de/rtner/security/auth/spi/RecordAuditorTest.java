@@ -0,0 +1,120 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class RecordAuditorTest {
+
+	private static final String[] LINES = {
+		"alice\t0102030405060708:10000:4b007901b765489abead49d926f721d065a429c1",
+		"bob\t73616C74:1000:0c60c80f961f0e71f3a9b524af6012062fe037a6",
+		"",
+		"carol\t0102030405060708:2000:0102:8000:000102030405060708090a0b0c0d0e0f\r",
+		"0102030405060708:10000:0c60c80f961f0e71f3a9b524af6012062fe037a6a0a1a2a3a4a5a6a7a8a9aaabacad",
+		"dave\tnot-a-record",
+		"erin\t0102030405060708:+10000:0c6:",
+		"frank\t0102030405060708:99999999999:00",
+		"grace\t0102030405060708:12x:00",
+		"heidi\t0102030405060708:20000:0c60c80f961f0e71f3a9b524af6012062fe037a6",
+	};
+
+	@Test
+	public void testAudit() throws IOException {
+		File f = export();
+		try {
+			for (int chunkSize : new int[] { 1, 40, 100, RecordAuditor.DEFAULT_CHUNK_SIZE }) {
+				RecordAuditor.Report r = new RecordAuditor(10000, 8, chunkSize).audit(f, 3);
+				assertEquals(10, r.getLines());
+				assertEquals(9, r.getRecords());
+				assertEquals(3, r.getMalformed());
+				assertEquals(1, r.getLayered());
+				assertEquals(4, r.getIterations().get(10000));
+				assertEquals(1, r.getIterations().get(1000));
+				assertEquals(1, r.getIterations().get(20000));
+				assertEquals(5, r.getSaltLengths().get(8));
+				assertEquals(1, r.getSaltLengths().get(4));
+				assertEquals(3, r.getKeyLengths().get(20));
+				assertEquals(1, r.getKeyLengths().get(16));
+				assertEquals(1, r.getKeyLengths().get(34));
+				assertEquals(1, r.getKeyLengths().get(2));
+				assertEquals(4, r.getWeakCount());
+
+				StringWriter w = new StringWriter();
+				r.writeWeak(f, w);
+				assertEquals("2\titerations,salt\t" + LINES[1] + "\n"
+					+ "6\tmalformed\t" + LINES[5] + "\n"
+					+ "8\tmalformed\t" + LINES[7] + "\n"
+					+ "9\tmalformed\t" + LINES[8] + "\n", w.toString());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testFormatterRules() throws IOException {
+		LayeredPBKDF2HexFormatter formatter = new LayeredPBKDF2HexFormatter();
+		int malformed = 0;
+		for (String line : LINES) {
+			if (line.length() == 0) {
+				continue;
+			}
+			String record = line.substring(line.lastIndexOf('\t') + 1).trim();
+			try {
+				if (formatter.fromString(new LayeredPBKDF2Parameters(), record)) {
+					malformed++;
+				}
+			} catch (IllegalArgumentException e) {
+				malformed++;
+			}
+		}
+		File f = export();
+		try {
+			assertEquals(malformed, new RecordAuditor(0, 0).audit(f, 1).getMalformed());
+		} finally {
+			f.delete();
+		}
+	}
+
+	private static File export() throws IOException {
+		File f = File.createTempFile("audit", ".txt");
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			for (String line : LINES) {
+				out.write((line + "\n").getBytes("ISO-8859-1"));
+			}
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests.
+ */
+public class RecordStrengthenerTest {
+
+	@Test
+	public void testStrengthen() {
+		String plain = new SimplePBKDF2(8, 10).deriveKeyFormatted("password");
+		String layered = new RecordStrengthener("HmacSHA1", 20, 8).strengthen(plain);
+		assertEquals("Five fields", 5, layered.split(":").length);
+
+		LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters();
+		p.setHashAlgorithm("HmacSHA1");
+		p.setHashCharset("ISO-8859-1");
+		assertFalse(new LayeredPBKDF2HexFormatter().fromString(p, layered));
+		assertEquals(30, p.getTotalIterationCount());
+		LayeredPBKDF2Engine e = new LayeredPBKDF2Engine(p);
+		assertTrue("Should verify OK", e.verifyKey("password"));
+		assertFalse("Should fail", e.verifyKey("pasSword"));
+		assertEquals(layered, new LayeredPBKDF2HexFormatter().toString(p));
+	}
+
+	@Test
+	public void testOversizedLayeredRecord() {
+		LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters();
+		LayeredPBKDF2HexFormatter f = new LayeredPBKDF2HexFormatter();
+		assertFalse(f.fromString(p, "00:2147483647:01:2147483647:02"));
+		assertEquals("Total must saturate, not wrap", Integer.MAX_VALUE, p.getTotalIterationCount());
+		assertTrue("Negative inner count", f.fromString(p, "00:-1:01:10:02"));
+		assertTrue("Negative outer count", f.fromString(p, "00:10:01:-2147483648:02"));
+		assertTrue("Negative plain count", f.fromString(p, "00:-1:02"));
+	}
+
+	@Test
+	public void testPlainRecordWithLayeredEngine() {
+		LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters();
+		p.setHashAlgorithm("HmacSHA1");
+		p.setHashCharset("US-ASCII");
+		assertFalse(new LayeredPBKDF2HexFormatter().fromString(p, "73616C74:4096:4b007901b765489abead49d926f721d065a429c1"));
+		assertFalse(p.isLayered());
+		assertTrue(new LayeredPBKDF2Engine(p).verifyKey("password"));
+	}
+
+	@Test
+	public void testPassThrough() {
+		RecordStrengthener s = new RecordStrengthener("HmacSHA1", 20, 8);
+		String layered = s.strengthen("alice\t" + new SimplePBKDF2(8, 10).deriveKeyFormatted("password"));
+		assertTrue(layered.startsWith("alice\t"));
+		assertEquals("Already layered", layered, s.strengthen(layered));
+		assertEquals("Unparseable", "bob\tnot:a:number", s.strengthen("bob\tnot:a:number"));
+		assertEquals(1, s.getStrengthened());
+		assertEquals(2, s.getUnchanged());
+	}
+
+	@Test
+	public void testRunKeepsOrderAndResumes() throws IOException {
+		SimplePBKDF2 kdf = new SimplePBKDF2(8, 2);
+		StringBuilder in = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			in.append("user").append(i).append('\t').append(kdf.deriveKeyFormatted("pw" + i)).append('\n');
+		}
+		StringWriter out = new StringWriter();
+		RecordStrengthener s = new RecordStrengthener("HmacSHA1", 5, 8);
+		long n = s.run(RecordStrengthener.lines(new BufferedReader(new StringReader(in.toString()))), out, 4, 10, null);
+		assertEquals(40, n);
+		String[] lines = out.toString().split("\n");
+		assertEquals(40, lines.length);
+		for (int i = 0; i < lines.length; i++) {
+			assertTrue("Order", lines[i].startsWith("user" + (i + 10) + "\t"));
+			assertEquals(5, lines[i].split(":").length);
+		}
+	}
+
+	@Test
+	public void testResumeCutsPartialLine() throws IOException {
+		File f = File.createTempFile("strengthen", ".txt");
+		try {
+			FileOutputStream os = new FileOutputStream(f);
+			os.write("a\nb\nc\npartial".getBytes("UTF-8"));
+			os.close();
+			assertEquals(3, RecordStrengthener.resume(f));
+			assertEquals(6, f.length());
+		} finally {
+			f.delete();
+		}
+		assertEquals(0, RecordStrengthener.resume(f));
+	}
+}
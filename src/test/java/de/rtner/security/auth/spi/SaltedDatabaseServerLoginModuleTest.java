@@ -0,0 +1,414 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.spi.InitialContextFactory;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.LoginException;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Login module tests against an in-memory H2 database. JNDI lookups of the
+ * data source are served by a minimal InitialContextFactory.
+ */
+public class SaltedDatabaseServerLoginModuleTest {
+
+	private static final String DS_JNDI_NAME = "java:/PBKDF2TestDS";
+
+	private static JdbcDataSource dataSource;
+
+	/** Keeps the in-memory database alive for the duration of the test. */
+	private static Connection keepAlive;
+
+	private static String oldFactory;
+
+	/**
+	 * Serves every lookup with the H2 data source.
+	 */
+	public static class TestContextFactory implements InitialContextFactory {
+		public Context getInitialContext(Hashtable<?, ?> environment) {
+			return (Context) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Context.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return "lookup".equals(method.getName()) ? dataSource : null;
+					}
+				});
+		}
+	}
+
+	@BeforeClass
+	public static void setUpDatabase() throws SQLException {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:pbkdf2test;DB_CLOSE_DELAY=-1");
+		keepAlive = dataSource.getConnection();
+		keepAlive.createStatement().execute(
+			"CREATE TABLE Users(username VARCHAR(64) PRIMARY KEY, password VARCHAR(255))");
+		keepAlive.createStatement().execute(
+			"CREATE TABLE OtherUsers(username VARCHAR(64) PRIMARY KEY, password VARCHAR(255))");
+		oldFactory = System.getProperty(Context.INITIAL_CONTEXT_FACTORY);
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY, TestContextFactory.class.getName());
+	}
+
+	@AfterClass
+	public static void tearDownDatabase() throws SQLException {
+		if (oldFactory == null) {
+			System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+		} else {
+			System.setProperty(Context.INITIAL_CONTEXT_FACTORY, oldFactory);
+		}
+		keepAlive.close();
+	}
+
+	@Test
+	public void testContextFactory() throws Exception {
+		assertTrue(new InitialContext().lookup(DS_JNDI_NAME) == dataSource);
+	}
+
+	@Test
+	public void testLogin() throws Exception {
+		setPassword("alice", "secret");
+		assertTrue(login(options(), "alice", "secret"));
+		assertTrue(!login(options(), "alice", "wrong"));
+	}
+
+	@Test
+	public void testRecordCache() throws Exception {
+		Map<String, String> options = options();
+		options.put("recordCacheSize", "100");
+		options.put("recordCacheTtl", "600");
+
+		setPassword("bob", "secret");
+		assertTrue(login(options, "bob", "secret"));
+
+		// Served from the cache: the database record no longer matters
+		setPassword("bob", "changed");
+		assertTrue(login(options, "bob", "secret"));
+		assertTrue(!login(options, "bob", "changed"));
+
+		SaltedDatabaseServerLoginModule.invalidateCachedRecord("bob");
+		assertTrue(!login(options, "bob", "secret"));
+		assertTrue(login(options, "bob", "changed"));
+
+		PBKDF2ParametersCache cache = SaltedDatabaseServerLoginModule.getSharedRecordCache(DS_JNDI_NAME,
+			options.get("principalsQuery"), 100, 600000);
+		assertEquals(100, cache.getMaxEntries());
+		try {
+			SaltedDatabaseServerLoginModule.getSharedRecordCache(DS_JNDI_NAME, options.get("principalsQuery"), 1, 1);
+			fail("Conflicting cache settings accepted");
+		} catch (IllegalArgumentException ok) {
+		}
+	}
+
+	@Test
+	public void testRecordCachePerDomain() throws Exception {
+		Map<String, String> a = options();
+		a.put("recordCacheSize", "100");
+		a.put("recordCacheTtl", "600");
+		Map<String, String> b = options();
+		b.put("principalsQuery", "SELECT password FROM OtherUsers WHERE username=?");
+		b.put("recordCacheSize", "10");
+		b.put("recordCacheTtl", "60");
+
+		setPassword("heidi", "secret");
+		assertTrue(login(a, "heidi", "secret"));
+		// Domain b has no such user and must not see domain a's cached record
+		assertTrue(!login(b, "heidi", "secret"));
+	}
+
+	@Test
+	public void testRehash() throws Exception {
+		Map<String, String> options = options();
+		options.put("rehashIterations", "2000");
+		options.put("rehashQuery", "UPDATE Users SET password=? WHERE username=? AND password=?");
+		options.put("rehashBatchSize", "1");
+
+		setPassword("carol", "secret");
+		assertTrue(login(options, "carol", "secret"));
+		String record = null;
+		for (int i = 0; i < 100 && (record == null || record.indexOf(":2000:") < 0); i++) {
+			Thread.sleep(50);
+			record = getPassword("carol");
+		}
+		assertTrue("Record not upgraded: " + record, record.indexOf(":2000:") > 0);
+		assertTrue(login(options, "carol", "secret"));
+		assertTrue(!login(options, "carol", "wrong"));
+		for (int i = 0; i < 100 && isThreadAlive("PBKDF2-rehash-flush"); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue("Idle flusher still running", !isThreadAlive("PBKDF2-rehash-flush"));
+
+		setPassword("carol", "secret");
+		assertTrue(login(options, "carol", "secret"));
+		SaltedDatabaseServerLoginModule.closeSharedRehasher();
+		assertTrue("Flusher survived close", !isThreadAlive("PBKDF2-rehash-flush"));
+		assertTrue("Upgrade thread survived close", !isThreadAlive("PBKDF2-rehash"));
+	}
+
+	@Test
+	public void testRehashCachedRecord() throws Exception {
+		Map<String, String> options = options();
+		options.put("recordCacheSize", "100");
+		options.put("recordCacheTtl", "600");
+		setPassword("ivan", "secret");
+		// Stored in lower case, the formatter writes upper case
+		String stored = getPassword("ivan").toLowerCase();
+		PreparedStatement ps = keepAlive.prepareStatement("UPDATE Users SET password=? WHERE username=?");
+		try {
+			ps.setString(1, stored);
+			ps.setString(2, "ivan");
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+		assertTrue(login(options, "ivan", "secret"));
+
+		options.put("rehashIterations", "2000");
+		options.put("rehashQuery", "UPDATE Users SET password=? WHERE username=? AND password=?");
+		options.put("rehashBatchSize", "1");
+		assertTrue(login(options, "ivan", "secret"));
+		String record = null;
+		for (int i = 0; i < 100 && (record == null || record.indexOf(":2000:") < 0); i++) {
+			Thread.sleep(50);
+			record = getPassword("ivan");
+		}
+		assertTrue("Cached record not upgraded: " + record, record.indexOf(":2000:") > 0);
+		SaltedDatabaseServerLoginModule.closeSharedRehasher();
+	}
+
+	@Test
+	public void testRehasherPerQuery() throws Exception {
+		RecordRehasher a = SaltedDatabaseServerLoginModule.getSharedRehasher(DS_JNDI_NAME,
+			"UPDATE Users SET password=? WHERE username=? AND password=?", 1, 1);
+		RecordRehasher b = SaltedDatabaseServerLoginModule.getSharedRehasher(DS_JNDI_NAME,
+			"UPDATE OtherUsers SET password=? WHERE username=? AND password=?", 1, 1);
+		assertTrue("One rehasher per query", a != b);
+		assertTrue(a == SaltedDatabaseServerLoginModule.getSharedRehasher(DS_JNDI_NAME,
+			"UPDATE Users SET password=? WHERE username=? AND password=?", 1, 1));
+		SaltedDatabaseServerLoginModule.closeSharedRehasher();
+	}
+
+	@Test
+	public void testVerificationServer() throws Exception {
+		VerificationServer server = new VerificationServer(new InetSocketAddress("127.0.0.1", 0), 1, 0);
+		server.start();
+		try {
+			Map<String, String> options = options();
+			options.put("verificationServer", "127.0.0.1:" + server.getLocalAddress().getPort());
+			options.put("verifyTimeout", "10000");
+			setPassword("dave", "secret");
+			assertTrue(login(options, "dave", "secret"));
+			assertTrue(!login(options, "dave", "wrong"));
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testVerificationClientPerAddress() throws Exception {
+		VerificationServer a = new VerificationServer(new InetSocketAddress("127.0.0.1", 0), 1, 0);
+		VerificationServer b = new VerificationServer(new InetSocketAddress("127.0.0.1", 0), 1, 0);
+		a.start();
+		b.start();
+		try {
+			String addressA = "127.0.0.1:" + a.getLocalAddress().getPort();
+			String addressB = "127.0.0.1:" + b.getLocalAddress().getPort();
+			VerificationClient ca = SaltedDatabaseServerLoginModule.getSharedVerificationClient(addressA, 5000);
+			VerificationClient cb = SaltedDatabaseServerLoginModule.getSharedVerificationClient(addressB, 5000);
+			assertTrue("One client per address", ca != cb);
+			assertTrue(ca == SaltedDatabaseServerLoginModule.getSharedVerificationClient(addressA, 5000));
+
+			Map<String, String> options = options();
+			options.put("verificationServer", addressB);
+			setPassword("grace", "secret");
+			assertTrue(login(options, "grace", "secret"));
+		} finally {
+			a.close();
+			b.close();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void testOversizedLayeredRecord() throws Exception {
+		Map<String, String> options = options();
+		options.put("formatter", LayeredPBKDF2HexFormatter.class.getName());
+		options.put("engine", LayeredPBKDF2Engine.class.getName());
+		options.put("engine-parameters", LayeredPBKDF2Parameters.class.getName());
+		options.put("maxIterations", "100000");
+		PreparedStatement ps = keepAlive.prepareStatement("MERGE INTO Users KEY(username) VALUES(?, ?)");
+		try {
+			ps.setString(1, "frank");
+			// Sum of both stages overflows int
+			ps.setString(2, "00:2147483647:01:2147483647:0123456789ABCDEF0123456789ABCDEF01234567");
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+		assertTrue(!login(options, "frank", "secret"));
+	}
+
+	@Test
+	public void testWarmup() throws Exception {
+		Map<String, String> options = options();
+		options.put("warmup", "true");
+		options.put("warmupMillis", "2000");
+		setPassword("erin", "secret");
+		assertTrue(login(options, "erin", "secret"));
+		for (int i = 0; i < 200 && !SaltedDatabaseServerLoginModule.isWarmupFinished(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue("Warm-up did not finish", SaltedDatabaseServerLoginModule.isWarmupFinished());
+	}
+
+	@Test
+	public void testWarmupFactory() throws Exception {
+		PBKDF2Warmup w = SaltedDatabaseServerLoginModule.newWarmup(getClass().getClassLoader(),
+			"HmacSHA1", "UTF-8", PBKDF2HexFormatter.class.getName(), PBKDF2Engine.class.getName(),
+			PBKDF2Parameters.class.getName(), 1000);
+		for (Class<?> c = w.getClass(); c != null; c = c.getSuperclass()) {
+			for (Field f : c.getDeclaredFields()) {
+				assertTrue("Warm-up must not hold the login module: " + f,
+					!SaltedDatabaseServerLoginModule.class.isAssignableFrom(f.getType()));
+			}
+		}
+		w.run();
+		assertTrue(w.isFinished());
+		assertTrue(w.getRounds() > 0);
+		assertTrue("Unknown formatter", SaltedDatabaseServerLoginModule.newWarmup(getClass().getClassLoader(),
+			"HmacSHA1", null, "no.such.Formatter", PBKDF2Engine.class.getName(),
+			PBKDF2Parameters.class.getName(), 1000) == null);
+	}
+
+	@Test
+	public void testParametersCache() throws Exception {
+		PBKDF2ParametersCache cache = new PBKDF2ParametersCache(2, 600000);
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "UTF-8", new byte[] { 1, 2 }, 1000,
+			new byte[] { 3, 4 });
+		cache.put("a", p);
+		cache.put("b", p);
+		PBKDF2Parameters q = new PBKDF2Parameters();
+		assertTrue(cache.get("a", q));
+		assertEquals(1000, q.getIterationCount());
+		assertEquals(2, q.getDerivedKey().length);
+		cache.put("c", p);
+		assertTrue("Least recently used entry evicted", !cache.get("b", q));
+		assertTrue(cache.get("a", q));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		cache = new PBKDF2ParametersCache(2, 1);
+		cache.put("a", p);
+		Thread.sleep(10);
+		assertTrue("Expired", !cache.get("a", q));
+		assertEquals(0, cache.size());
+	}
+
+	private static Map<String, String> options() {
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("dsJndiName", DS_JNDI_NAME);
+		options.put("principalsQuery", "SELECT password FROM Users WHERE username=?");
+		options.put("suspendResume", "false");
+		return options;
+	}
+
+	private static void setPassword(String username, String password) throws SQLException {
+		SimplePBKDF2 crypto = new SimplePBKDF2(8, 1000);
+		PreparedStatement ps = keepAlive.prepareStatement("MERGE INTO Users KEY(username) VALUES(?, ?)");
+		try {
+			ps.setString(1, username);
+			ps.setString(2, crypto.deriveKeyFormatted(password));
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static String getPassword(String username) throws SQLException {
+		PreparedStatement ps = keepAlive.prepareStatement("SELECT password FROM Users WHERE username=?");
+		try {
+			ps.setString(1, username);
+			ResultSet rs = ps.executeQuery();
+			return rs.next() ? rs.getString(1) : null;
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static boolean isThreadAlive(String name) throws InterruptedException {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (name.equals(t.getName())) {
+				t.join(2000);
+				if (t.isAlive()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean login(Map<String, String> options, final String username,
+			final String password) {
+		SaltedDatabaseServerLoginModule m = new SaltedDatabaseServerLoginModule();
+		CallbackHandler handler = new CallbackHandler() {
+			public void handle(Callback[] callbacks) {
+				for (Callback c : callbacks) {
+					if (c instanceof NameCallback) {
+						((NameCallback) c).setName(username);
+					} else if (c instanceof PasswordCallback) {
+						((PasswordCallback) c).setPassword(password.toCharArray());
+					}
+				}
+			}
+		};
+		m.initialize(new Subject(), handler, new HashMap<String, Object>(), options);
+		try {
+			return m.login();
+		} catch (LoginException e) {
+			return false;
+		}
+	}
+}
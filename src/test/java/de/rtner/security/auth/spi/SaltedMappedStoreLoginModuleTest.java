@@ -0,0 +1,89 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.LoginException;
+
+import org.junit.Test;
+
+/**
+ * Login module tests against a temporary store file.
+ */
+public class SaltedMappedStoreLoginModuleTest {
+
+	@Test
+	public void testLogin() throws Exception {
+		File f = File.createTempFile("store", ".pbks");
+		try {
+			MappedCredentialStore s = MappedCredentialStore.create(f, 16);
+			PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA256", "UTF-8", new byte[] { 1, 2, 3, 4 }, 1000);
+			p.setDerivedKey(new PBKDF2Engine(p).deriveKey("secret"));
+			s.put("alice", p);
+			s.force();
+
+			Map<String, String> options = new HashMap<String, String>();
+			options.put("storeFile", f.getPath());
+			options.put("roles", "manager");
+			options.put("suspendResume", "false");
+			assertTrue(login(options, "alice", "secret"));
+			assertFalse(login(options, "alice", "wrong"));
+			assertFalse(login(options, "bob", "secret"));
+		} finally {
+			SaltedMappedStoreLoginModule.reopenStore(f);
+			f.delete();
+		}
+	}
+
+	private static boolean login(Map<String, String> options, final String username,
+			final String password) throws IOException {
+		SaltedMappedStoreLoginModule m = new SaltedMappedStoreLoginModule();
+		CallbackHandler handler = new CallbackHandler() {
+			public void handle(Callback[] callbacks) {
+				for (Callback c : callbacks) {
+					if (c instanceof NameCallback) {
+						((NameCallback) c).setName(username);
+					} else if (c instanceof PasswordCallback) {
+						((PasswordCallback) c).setPassword(password.toCharArray());
+					}
+				}
+			}
+		};
+		m.initialize(new Subject(), handler, new HashMap<String, Object>(), options);
+		try {
+			return m.login() && m.commit();
+		} catch (LoginException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Unit Tests. Runs the RFC 6070 vectors against the JCA-backed engine and
+ * compares it to the iterative engine where delegation is and is not possible.
+ */
+public class SecretKeyFactoryPBKDF2EngineTest extends PBKDF2EngineTest {
+
+	@Override
+	protected PBKDF2 newEngine(PBKDF2Parameters p) {
+		return new SecretKeyFactoryPBKDF2Engine(p);
+	}
+
+	@Test
+	public void testSameAsIterative() {
+		String[] passwords = { "password", "Matthias G\u00E4rtner", "\u20AC" };
+		String[] algorithms = { "HmacSHA1", "HmacSHA256", "HmacSHA512", "HmacMD5" };
+		String[] charsets = { "UTF-8", "ISO-8859-1" };
+		for (String a : algorithms) {
+			for (String c : charsets) {
+				for (String pwd : passwords) {
+					PBKDF2Parameters p = new PBKDF2Parameters(a, c, "saltsalt".getBytes(), 7);
+					byte[] expected = new PBKDF2Engine(p).deriveKey(pwd);
+					assertArrayEquals(a + "/" + c + "/" + pwd, expected, newEngine(p).deriveKey(pwd));
+					assertArrayEquals(a + "/" + c + "/" + pwd, new PBKDF2Engine(p).deriveKey(pwd, 50), newEngine(p).deriveKey(pwd, 50));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDelegation() {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA256", "ISO-8859-1", "saltsalt".getBytes(), 7);
+		PBKDF2 e = newEngine(p);
+		e.deriveKey("password");
+		assertNull("ASCII password should be delegated", e.getPseudoRandomFunction());
+		e.deriveKey("G\u00E4rtner");
+		assertNotNull("Non-ASCII ISO-8859-1 password must not be delegated", e.getPseudoRandomFunction());
+	}
+}
@@ -24,6 +24,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.security.NoSuchAlgorithmException;
+
 import org.junit.Test;
 
 /**
@@ -74,6 +76,33 @@ public class SimplePBKDF2Test {
 				e.getParameters().getIterationCount(), 0);
 	}
 
+	@Test
+	public void testDeriveStripedSalt() throws NoSuchAlgorithmException {
+		// Buffer smaller than salt forces refills within one salt
+		SimplePBKDF2 e = new SimplePBKDF2(12, 2);
+		e.setSaltGenerator(new StripedSaltGenerator("SHA1PRNG", 5));
+		String s = e.deriveKeyFormatted("password");
+		String t = e.deriveKeyFormatted("password");
+		assertEquals("Inaccurate result length", s.length(), 67);
+		assertFalse("Salt repeated", s.substring(0, 24).equals(t.substring(0, 24)));
+		assertTrue("Should verify OK", e.verifyKeyFormatted(s, "password"));
+	}
+
+	@Test(expected = NoSuchAlgorithmException.class)
+	public void testStripedSaltUnknownAlgorithm() throws NoSuchAlgorithmException {
+		new StripedSaltGenerator("NoSuchPRNG", 16);
+	}
+
+	@Test
+	public void testNeedsRehash() {
+		SimplePBKDF2 e = new SimplePBKDF2(8, 2000);
+		assertTrue("Iteration count below policy", e.needsRehash("73616C7473616C74:1000:0c60c80f961f0e71f3a9b524af6012062fe037a6"));
+		assertTrue("Salt below policy", e.needsRehash("73616C74:2000:0c60c80f961f0e71f3a9b524af6012062fe037a6"));
+		assertFalse(e.needsRehash("73616C7473616C74:2000:0c60c80f961f0e71f3a9b524af6012062fe037a6"));
+		assertFalse("Unparseable", e.needsRehash("73616C74_1_0c60c80f961f0e71f3a9b524af6012062fe037a6"));
+		assertFalse(e.needsRehash(e.deriveKeyFormatted("password")));
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void testBadSaltLength() {
 		new SimplePBKDF2(0, 1);
@@ -0,0 +1,95 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+/**
+ * Unit Tests against an in-memory H2 database.
+ */
+public class UserImporterTest {
+
+	@Test
+	public void testImport() throws SQLException {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:mem:importtest");
+		Connection con = ds.getConnection();
+		BulkPBKDF2 bulk = new BulkPBKDF2(8, 10, 3);
+		try {
+			con.createStatement().execute(
+				"CREATE TABLE Users(username VARCHAR(255), password VARCHAR(255), PRIMARY KEY (username))");
+			List<String> lines = new ArrayList<String>();
+			for (int i = 0; i < 25; i++) {
+				lines.add("user" + i + ",pw," + i);
+			}
+			lines.add("");
+			lines.add("user0,changed");
+			StringWriter progress = new StringWriter();
+			long n = new UserImporter(bulk, UserImporter.DEFAULT_MERGE_QUERY, 10)
+				.importUsers(lines.iterator(), con, new PrintWriter(progress));
+			assertEquals(26, n);
+			assertEquals("One line per chunk", 3, progress.toString().split("\n").length);
+
+			SimplePBKDF2 check = new SimplePBKDF2();
+			ResultSet rs = con.createStatement().executeQuery("SELECT username, password FROM Users ORDER BY username");
+			int rows = 0;
+			while (rs.next()) {
+				String u = rs.getString(1);
+				String pw = u.equals("user0") ? "changed" : "pw," + u.substring(4);
+				assertTrue(u, check.verifyKeyFormatted(rs.getString(2), pw));
+				rows++;
+			}
+			assertEquals(25, rows);
+		} finally {
+			bulk.shutdown();
+			con.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedLine() throws SQLException {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:mem:importtest2");
+		Connection con = ds.getConnection();
+		BulkPBKDF2 bulk = new BulkPBKDF2(8, 10, 1);
+		try {
+			con.createStatement().execute("CREATE TABLE Users(username VARCHAR(255) PRIMARY KEY, password VARCHAR(255))");
+			new UserImporter(bulk, UserImporter.DEFAULT_MERGE_QUERY, 10)
+				.importUsers(Arrays.asList("nocomma").iterator(), con, null);
+		} finally {
+			bulk.shutdown();
+			con.close();
+		}
+	}
+}
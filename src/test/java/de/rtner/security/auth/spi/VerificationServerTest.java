@@ -0,0 +1,185 @@
+/*
+ * A free Java implementation of Password Based Key Derivation Function 2 as
+ * defined by RFC 2898. Copyright 2007, 2014, Matthias G&auml;rtner
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package de.rtner.security.auth.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Loopback tests of VerificationServer and VerificationClient.
+ */
+public class VerificationServerTest {
+
+	private static VerificationServer server;
+
+	private static VerificationClient client;
+
+	@BeforeClass
+	public static void startServer() throws IOException {
+		server = new VerificationServer(new InetSocketAddress("127.0.0.1", 0), 2, 100000);
+		server.start();
+		client = new VerificationClient(server.getLocalAddress(), 5000);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void testVerify() throws IOException {
+		PBKDF2Parameters p = record("73616C74:4096:4b007901b765489abead49d926f721d065a429c1");
+		assertTrue(client.verify(p, "password", 10000));
+		assertFalse(client.verify(p, "passwort", 10000));
+	}
+
+	@Test
+	public void testLayered() throws IOException {
+		LayeredPBKDF2Parameters p = new LayeredPBKDF2Parameters("HmacSHA256", "UTF-8",
+			new byte[] { 1, 2, 3 }, 10, new byte[] { 4, 5 }, 20);
+		p.setDerivedKey(new LayeredPBKDF2Engine(p).deriveKey("s\u00e4cret"));
+		assertTrue(client.verify(p, "s\u00e4cret", 10000));
+		assertFalse(client.verify(p, "secret", 10000));
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		PBKDF2Parameters p = record("73616C74:2:ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957");
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 500; i++) {
+			results.add(client.submit(p, ((i % 3 == 0) ? "wrong" : "password").getBytes("ISO-8859-1")));
+		}
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals("Request " + i, i % 3 != 0, results.get(i).get().booleanValue());
+		}
+	}
+
+	@Test
+	public void testIterationLimit() {
+		PBKDF2Parameters p = record("73616C74:100001:00");
+		try {
+			client.verify(p, "password", 10000);
+			fail("Limit not enforced");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(client.isClosed());
+	}
+
+	@Test
+	public void testMalformedAndOversized() throws IOException {
+		Socket s = new Socket("127.0.0.1", server.getLocalAddress().getPort());
+		try {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.writeInt(7);
+			out.writeInt(42);
+			out.write(new byte[] { 9, 9, 9 });
+			out.flush();
+			assertEquals(5, in.readInt());
+			assertEquals(42, in.readInt());
+			assertEquals(VerificationServer.STATUS_ERROR, in.readByte());
+
+			out.writeInt(VerificationServer.MAX_FRAME + 1);
+			out.flush();
+			assertEquals("Connection closed", -1, in.read());
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testPendingLimit() throws IOException {
+		Socket s = new Socket("127.0.0.1", server.getLocalAddress().getPort());
+		try {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			// Several times MAX_PENDING requests before reading any response
+			int n = 4 * VerificationServer.MAX_PENDING;
+			for (int i = 0; i < n; i++) {
+				out.writeInt(7);
+				out.writeInt(i);
+				out.write(new byte[] { 9, 9, 9 });
+			}
+			out.flush();
+			boolean[] seen = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				assertEquals(5, in.readInt());
+				int id = in.readInt();
+				assertFalse("Duplicate " + id, seen[id]);
+				seen[id] = true;
+				assertEquals(VerificationServer.STATUS_ERROR, in.readByte());
+			}
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testTimeoutReleasesRequest() throws Exception {
+		// Accepts the connection and never answers
+		ServerSocket silent = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			VerificationClient c = new VerificationClient(
+				(InetSocketAddress) silent.getLocalSocketAddress(), 5000);
+			try {
+				PBKDF2Parameters p = record("73616C74:2:ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957");
+				try {
+					c.verify(p, "password", 100);
+					fail("No timeout");
+				} catch (IOException e) {
+					// expected
+				}
+				assertEquals(0, c.getPendingCount());
+				c.submit(p, "password".getBytes("ISO-8859-1")).cancel(false);
+				assertEquals(0, c.getPendingCount());
+			} finally {
+				c.close();
+			}
+		} finally {
+			silent.close();
+		}
+	}
+
+	private static PBKDF2Parameters record(String s) {
+		PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "ISO-8859-1", null, 0);
+		assertFalse(new PBKDF2HexFormatter().fromString(p, s));
+		return p;
+	}
+}